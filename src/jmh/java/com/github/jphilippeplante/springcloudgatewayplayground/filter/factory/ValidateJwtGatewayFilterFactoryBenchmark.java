@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.factory;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.DefaultFilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.FilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtVerificationScheduler;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.RejectedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.VerifiedTokenCache;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Cost of the {@link ValidateJwtGatewayFilterFactory} filter for a request, from the
+ * Authorization header to the next filter of the chain.
+ * <p>
+ * Run with {@code ./gradlew jmh}, the throughput, the latency percentiles and the allocation
+ * rate (gc profiler) are reported in {@code build/reports/jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ValidateJwtGatewayFilterFactoryBenchmark {
+
+    private static final String SIGNING_KEY_RESOLVER = "benchmarkFilterSigningKeyResolver";
+    private static final byte[] SECRET = "benchmark-secret-benchmark-secret".getBytes();
+    private static final int LARGE_CLAIMS = 50;
+    private static final int LARGE_SCOPES = 10;
+
+    private static final GatewayFilterChain CHAIN = exchange -> Mono.empty();
+
+    @Param({"HS256", "RS256", "ES256"})
+    private String algorithm;
+
+    /**
+     * valid, expired or badScope (no scope of the route).
+     */
+    @Param({"valid", "expired", "badScope"})
+    private String token;
+
+    @Param({"any", "all"})
+    private String scopeValidation;
+
+    /**
+     * small (registered claims and one scope) or large (50 custom claims and 10 scopes).
+     */
+    @Param({"small", "large"})
+    private String claims;
+
+    /**
+     * disabled to measure the parsing and the validations of every request, enabled to
+     * answer the valid tokens from the verified cache and the rejected ones from the
+     * negative cache.
+     */
+    @Param({"disabled", "enabled"})
+    private String cache;
+
+    private GenericApplicationContext context;
+    private JwtVerificationScheduler verificationScheduler;
+    private GatewayFilter filter;
+    private MockServerHttpRequest request;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.forName(algorithm);
+        Key signingKey;
+        Key verificationKey;
+        if (signatureAlgorithm.isHmac()) {
+            signingKey = new SecretKeySpec(SECRET, signatureAlgorithm.getJcaName());
+            verificationKey = signingKey;
+        } else {
+            KeyPair keyPair = keyPair(signatureAlgorithm);
+            signingKey = keyPair.getPrivate();
+            verificationKey = keyPair.getPublic();
+        }
+
+        FilterSigningKeyResolver filterSigningKeyResolver = () -> new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                return verificationKey;
+            }
+        };
+        context = new GenericApplicationContext();
+        context.registerBean(SIGNING_KEY_RESOLVER, FilterSigningKeyResolver.class, () -> filterSigningKeyResolver);
+        context.refresh();
+
+        boolean large = "large".equals(claims);
+        String scope = large ? scopes(LARGE_SCOPES) : "myscope";
+
+        ValidateJwtConfig config = new ValidateJwtConfig();
+        config.setIss("mine");
+        config.setAud("our_audience");
+        config.setScope(scope);
+        config.setScopeValidation(scopeValidation);
+        config.setSigningKeyResolver(SIGNING_KEY_RESOLVER);
+
+        boolean cached = "enabled".equals(cache);
+        VerifiedTokenCache verifiedTokenCache = new VerifiedTokenCache(cached ? VerifiedTokenCache.DEFAULT_MAXIMUM_SIZE : 0);
+        RejectedTokenCache rejectedTokenCache = new RejectedTokenCache(cached ? RejectedTokenCache.DEFAULT_MAXIMUM_SIZE : 0,
+                RejectedTokenCache.DEFAULT_TIME_TO_LIVE);
+        verificationScheduler = new JwtVerificationScheduler();
+        filter = new ValidateJwtGatewayFilterFactory(context, new DefaultFilterSigningKeyResolver(), verifiedTokenCache,
+                verificationScheduler, rejectedTokenCache)
+                .apply(config);
+
+        long now = System.currentTimeMillis();
+        JwtBuilder builder = Jwts.builder()
+                .setIssuer("mine")
+                .setAudience("our_audience")
+                .setIssuedAt(new Date(now))
+                .setExpiration(new Date("expired".equals(token) ? now - 60_000 : now + 3_600_000))
+                .claim("scope", "badScope".equals(token) ? "otherscope" : scope);
+        if (large) {
+            for (int i = 0; i < LARGE_CLAIMS; i++) {
+                builder.claim("claim" + i, "value of the custom claim " + i);
+            }
+        }
+        String jwt = builder.signWith(signatureAlgorithm, signingKey).compact();
+
+        request = MockServerHttpRequest
+                .method(HttpMethod.GET, URI.create("http://localhost/jwtvalidation"))
+                .header("Authorization", "Bearer " + jwt)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        verificationScheduler.destroy();
+        context.close();
+    }
+
+    @Benchmark
+    public void filter(Blackhole blackhole) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(request);
+        try {
+            blackhole.consume(filter.filter(exchange, CHAIN).block());
+        } catch (RuntimeException e) {
+            // rejected tokens are part of the measure
+            blackhole.consume(e);
+        }
+        blackhole.consume(exchange);
+    }
+
+    private static KeyPair keyPair(SignatureAlgorithm signatureAlgorithm) throws Exception {
+        if (signatureAlgorithm.isEllipticCurve()) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+    private static String scopes(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> i == 0 ? "myscope" : "scope" + i)
+                .collect(Collectors.joining(","));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the claim validation of an accepted token compared to a rejected one. The
+ * rejection is a preallocated result ({@code checkClaims}), or its stackless exception
+ * thrown and caught ({@code validateClaims}), the throughputs of the outcomes should stay
+ * close.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JwtValidatorBenchmark {
+
+    @Param({"valid", "expired", "badIssuer", "badScope"})
+    private String outcome;
+
+    private JwtValidator validator;
+    private Jwt<Header, Claims> claims;
+    private String jwt;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        validator = new JwtValidator("benchmark", new CustomFilterSigningKeyResolver(), "mine", "our_audience",
+                "myscope,other", JwtValidator.SCOPE_VALIDATION_ANY);
+
+        long now = System.currentTimeMillis();
+        jwt = Jwts.builder()
+                .setIssuer("badIssuer".equals(outcome) ? "another" : "mine")
+                .setAudience("our_audience")
+                .setExpiration(new Date("expired".equals(outcome) ? now - 60_000 : now + 3_600_000))
+                .claim("scope", "badScope".equals(outcome) ? "read,write" : "read,myscope")
+                .signWith(SignatureAlgorithm.HS256, "secret".getBytes())
+                .compact();
+        claims = DecodedJwt.decode(jwt).toJwt();
+    }
+
+    @Benchmark
+    public JwtValidationResult checkClaims() {
+        return validator.checkClaims(claims);
+    }
+
+    @Benchmark
+    public Object validateClaims() {
+        try {
+            validator.validateClaims(claims);
+            return claims;
+        } catch (JwtException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public JwtValidationResult verify() {
+        return validator.verify(jwt);
+    }
+}
@@ -18,30 +18,59 @@ package com.github.jphilippeplante.springcloudgatewayplayground;
 
 import com.github.jphilippeplante.springcloudgatewayplayground.exception.PlaygroundExceptionHandler;
 import com.github.jphilippeplante.springcloudgatewayplayground.filter.AmqpFilter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.NullRouteFilter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.RequestIdFilter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.SchemeRoutingFilter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpBatchPublisher;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpRpcClient;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpSpool;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublishLimiter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublisherConfirmRegistry;
 import com.github.jphilippeplante.springcloudgatewayplayground.filter.factory.ValidateJwtGatewayFilterFactory;
 import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.CustomFilterSigningKeyResolver;
 import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.DefaultFilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwksFilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtVerificationScheduler;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.RejectedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.VerifiedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.routing.RoutingHandler;
 import com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryRoutePredicateFactory;
 import com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.support.CanaryRoutePredicateFactorySupport;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.Durations;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.Sizes;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.TickingGatewayClock;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.annotation.Order;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.util.StringUtils;
 import org.springframework.web.server.WebExceptionHandler;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.List;
+
 @Configuration
 @Import(SecurityConfig.class)
 public class PlaygroundConfiguration {
 
     @Bean
-    public CanaryRoutePredicateFactory canaryPredicateFactory() {
-        return new CanaryRoutePredicateFactory(canaryRoutePredicateFactorySupport());
+    public CanaryRoutePredicateFactory canaryPredicateFactory(CanaryRoutePredicateFactorySupport canaryRoutePredicateFactorySupport) {
+        return new CanaryRoutePredicateFactory(canaryRoutePredicateFactorySupport);
     }
 
     @Bean
@@ -60,14 +89,70 @@ public class PlaygroundConfiguration {
         return new DefaultFilterSigningKeyResolver();
     }
 
+    @Bean(name = JwksFilterSigningKeyResolver.BEAN_NAME)
+    @ConditionalOnProperty("playground.jwt.jwks.uri")
+    public JwksFilterSigningKeyResolver jwksFilterSigningKeyResolver(@Value("${playground.jwt.jwks.uri}") String uri,
+                                                                     @Value("${playground.jwt.jwks.refresh-interval:5m}") String refreshInterval) throws MalformedURLException {
+        return new JwksFilterSigningKeyResolver(new URL(uri), Durations.parse(refreshInterval),
+                JwksFilterSigningKeyResolver.DEFAULT_MINIMUM_FETCH_INTERVAL, JwksFilterSigningKeyResolver.DEFAULT_FETCH_TIMEOUT);
+    }
+
+    @Bean
+    public TickingGatewayClock gatewayClock(@Value("${playground.clock.tick-millis:" + TickingGatewayClock.DEFAULT_TICK_MILLIS + "}") long tickMillis) {
+        return new TickingGatewayClock(tickMillis);
+    }
+
+    @Bean
+    public NullRouteFilter nullRouteFilter(ResourceLoader resourceLoader) {
+        return new NullRouteFilter(resourceLoader);
+    }
+
+    @Bean
+    public SchemeRoutingFilter schemeRoutingFilter(List<RoutingHandler> routingHandlers) {
+        return new SchemeRoutingFilter(routingHandlers);
+    }
+
+    @Bean
+    public RequestIdGenerator requestIdGenerator(GatewayClock gatewayClock,
+                                                 @Value("${playground.request-id.node:}") String node) {
+        return StringUtils.isEmpty(node) ? new RequestIdGenerator(gatewayClock)
+                : new RequestIdGenerator(gatewayClock, Integer.parseInt(node));
+    }
+
+    @Bean
+    public RequestIdFilter requestIdFilter(RequestIdGenerator requestIdGenerator) {
+        return new RequestIdFilter(requestIdGenerator);
+    }
+
+    @Bean
+    public VerifiedTokenCache verifiedTokenCache(GatewayClock gatewayClock) {
+        return new VerifiedTokenCache(VerifiedTokenCache.DEFAULT_MAXIMUM_SIZE, gatewayClock);
+    }
+
     @Bean
-    public ValidateJwtGatewayFilterFactory validateJwtGatewayFilterFactory(ConfigurableApplicationContext context, DefaultFilterSigningKeyResolver defaultFilterSigningKeyResolver) {
-        return new ValidateJwtGatewayFilterFactory(context, defaultFilterSigningKeyResolver);
+    public RejectedTokenCache rejectedTokenCache(@Value("${playground.jwt.rejected-cache.maximum-size:" + RejectedTokenCache.DEFAULT_MAXIMUM_SIZE + "}") int maximumSize,
+                                                 @Value("${playground.jwt.rejected-cache.time-to-live:30s}") String timeToLive,
+                                                 GatewayClock gatewayClock) {
+        return new RejectedTokenCache(maximumSize, Durations.parse(timeToLive), gatewayClock);
     }
 
     @Bean
-    public CanaryRoutePredicateFactorySupport canaryRoutePredicateFactorySupport() {
-        return new CanaryRoutePredicateFactorySupport();
+    public JwtVerificationScheduler jwtVerificationScheduler(@Value("${playground.jwt.verification.threads:0}") int threads,
+                                                             @Value("${playground.jwt.verification.queue-depth:" + JwtVerificationScheduler.DEFAULT_QUEUE_DEPTH + "}") int queueDepth) {
+        return new JwtVerificationScheduler(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), queueDepth);
+    }
+
+    @Bean
+    public ValidateJwtGatewayFilterFactory validateJwtGatewayFilterFactory(ConfigurableApplicationContext context, DefaultFilterSigningKeyResolver defaultFilterSigningKeyResolver,
+                                                                           VerifiedTokenCache verifiedTokenCache, JwtVerificationScheduler jwtVerificationScheduler,
+                                                                           RejectedTokenCache rejectedTokenCache, GatewayClock gatewayClock) {
+        return new ValidateJwtGatewayFilterFactory(context, defaultFilterSigningKeyResolver, verifiedTokenCache, jwtVerificationScheduler,
+                rejectedTokenCache, gatewayClock);
+    }
+
+    @Bean
+    public CanaryRoutePredicateFactorySupport canaryRoutePredicateFactorySupport(GatewayClock gatewayClock) {
+        return new CanaryRoutePredicateFactorySupport(gatewayClock);
     }
 
     @Configuration
@@ -80,8 +165,55 @@ public class PlaygroundConfiguration {
         }
 
         @Bean
-        public AmqpFilter ampqFilter(ApplicationContext applicationContext) {
-            return new AmqpFilter(applicationContext);
+        public PublisherConfirmRegistry publisherConfirmRegistry(@Value("${playground.amqp.confirm.threads:${spring.rabbitmq.cache.channel.size:" + PublisherConfirmRegistry.DEFAULT_THREADS + "}}") int threads,
+                                                                 @Value("${playground.amqp.confirm.queue-depth:" + PublisherConfirmRegistry.DEFAULT_QUEUE_DEPTH + "}") int queueDepth,
+                                                                 RequestIdGenerator requestIdGenerator) {
+            return new PublisherConfirmRegistry(PublisherConfirmRegistry.newScheduler(threads, queueDepth), requestIdGenerator);
+        }
+
+        @Bean
+        public AmqpBatchPublisher amqpBatchPublisher(@Value("${playground.amqp.batch.maximum-size:" + AmqpBatchPublisher.DEFAULT_MAXIMUM_SIZE + "}") int maximumSize,
+                                                     @Value("${playground.amqp.batch.window:5ms}") String window,
+                                                     @Value("${playground.amqp.batch.confirm-timeout:1s}") String confirmTimeout,
+                                                     @Value("${playground.amqp.batch.threads:${spring.rabbitmq.cache.channel.size:" + AmqpBatchPublisher.DEFAULT_THREADS + "}}") int threads) {
+            return new AmqpBatchPublisher(maximumSize, Durations.parse(window), Durations.parse(confirmTimeout),
+                    AmqpBatchPublisher.newScheduler(threads));
+        }
+
+        @Bean
+        public AmqpRpcClient amqpRpcClient() {
+            return new AmqpRpcClient();
+        }
+
+        @Bean
+        @ConditionalOnProperty("playground.amqp.spool.directory")
+        public AmqpSpool amqpSpool(@Value("${playground.amqp.spool.directory}") String directory,
+                                   @Value("${playground.amqp.spool.segment-size:16mb}") String segmentSize,
+                                   @Value("${playground.amqp.spool.maximum-size:1gb}") String maximumSize,
+                                   @Value("${playground.amqp.spool.fsync:interval}") String fsync,
+                                   @Value("${playground.amqp.spool.fsync-interval:1s}") String fsyncInterval,
+                                   @Value("${playground.amqp.spool.drain-rate:" + AmqpSpool.DEFAULT_DRAIN_RATE + "}") int drainRate,
+                                   @Value("${playground.amqp.spool.retry-interval:1s}") String retryInterval,
+                                   @Value("${playground.amqp.spool.write-queue-depth:" + AmqpSpool.DEFAULT_WRITE_QUEUE_DEPTH + "}") int writeQueueDepth) throws IOException {
+            return new AmqpSpool(Paths.get(directory), Sizes.parse(segmentSize),
+                    Sizes.parse(maximumSize), AmqpSpool.FsyncPolicy.of(fsync), Durations.parse(fsyncInterval),
+                    drainRate, Durations.parse(retryInterval), writeQueueDepth);
+        }
+
+        @Bean
+        public PublishLimiter publishLimiter(@Value("${playground.amqp.limiter.maximum-in-flight:" + PublishLimiter.DEFAULT_MAXIMUM_IN_FLIGHT + "}") int maximumInFlight,
+                                             @Value("${playground.amqp.limiter.maximum-wait:100ms}") String maximumWait) {
+            return new PublishLimiter(maximumInFlight, Durations.parse(maximumWait));
+        }
+
+        @Bean
+        public AmqpFilter ampqFilter(ApplicationContext applicationContext,
+                                     @Value("${playground.amqp.max-body-size:256kb}") String maxBodySize,
+                                     PublisherConfirmRegistry publisherConfirmRegistry, AmqpBatchPublisher amqpBatchPublisher,
+                                     AmqpRpcClient amqpRpcClient, ObjectProvider<AmqpSpool> amqpSpool,
+                                     PublishLimiter publishLimiter, RequestIdGenerator requestIdGenerator) {
+            return new AmqpFilter(applicationContext, Sizes.parse(maxBodySize), publisherConfirmRegistry,
+                    amqpBatchPublisher, amqpRpcClient, amqpSpool.getIfAvailable(), publishLimiter, requestIdGenerator);
         }
 
     }
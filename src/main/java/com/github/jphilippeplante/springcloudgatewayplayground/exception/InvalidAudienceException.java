@@ -20,6 +20,9 @@ import io.jsonwebtoken.ClaimJwtException;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Header;
 
+/**
+ * The audience of the jwt is not the one expected by the route, without stack trace.
+ */
 public class InvalidAudienceException extends ClaimJwtException {
 
     public InvalidAudienceException(Header header, Claims claims, String message) {
@@ -30,4 +33,8 @@ public class InvalidAudienceException extends ClaimJwtException {
         super(header, claims, message, cause);
     }
 
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
@@ -20,6 +20,10 @@ import io.jsonwebtoken.ClaimJwtException;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Header;
 
+/**
+ * The issuer of the jwt is not the one expected by the route. The exception has no stack
+ * trace, it is preallocated by the validator.
+ */
 public class InvalidIssuerException extends ClaimJwtException {
 
     public InvalidIssuerException(Header header, Claims claims, String message) {
@@ -30,4 +34,8 @@ public class InvalidIssuerException extends ClaimJwtException {
         super(header, claims, message, cause);
     }
 
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
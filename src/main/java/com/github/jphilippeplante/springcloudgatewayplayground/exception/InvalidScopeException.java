@@ -20,6 +20,9 @@ import io.jsonwebtoken.ClaimJwtException;
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Header;
 
+/**
+ * The jwt doesn't have the scopes required by the route, without stack trace.
+ */
 public class InvalidScopeException extends ClaimJwtException {
 
     public InvalidScopeException(Header header, Claims claims, String message) {
@@ -30,4 +33,8 @@ public class InvalidScopeException extends ClaimJwtException {
         super(header, claims, message, cause);
     }
 
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.exception;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.http.HttpStatus;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable error of a rejected jwt, rendered in json once when created. The errors of the
+ * catalogue are shared, only an error with a description of the token is rendered for the
+ * request, with a single shared writer.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class JwtError {
+
+    private static final ObjectWriter WRITER = new ObjectMapper().writerFor(JwtError.class);
+
+    private static final JwtError INVALID_REQUEST = new JwtError("invalid_request", HttpStatus.BAD_REQUEST);
+    private static final JwtError INVALID_TOKEN = new JwtError("invalid_token", HttpStatus.UNAUTHORIZED);
+    private static final JwtError INSUFFICIENT_SCOPE = new JwtError("insufficient_scope", HttpStatus.FORBIDDEN);
+    private static final JwtError INTERNAL_ERROR = new JwtError("internal_error", HttpStatus.INTERNAL_SERVER_ERROR);
+
+    @JsonProperty("error")
+    private final String error;
+    @JsonProperty("error_description")
+    private final String description;
+
+    private final transient HttpStatus status;
+    private final transient ByteBuffer json;
+
+    public JwtError(String error, HttpStatus status) {
+        this(error, null, status);
+    }
+
+    public JwtError(String error, String description, HttpStatus status) {
+        this.error = error;
+        this.description = description;
+        this.status = status;
+        this.json = render(this);
+    }
+
+    private JwtError(JwtError error, HttpStatus status) {
+        // same json, only the status differs
+        this.error = error.error;
+        this.description = error.description;
+        this.status = status;
+        this.json = error.json;
+    }
+
+    public static JwtError invalidRequest() {
+        return INVALID_REQUEST;
+    }
+
+    public static JwtError invalidToken() {
+        return INVALID_TOKEN;
+    }
+
+    public static JwtError insufficientScope() {
+        return INSUFFICIENT_SCOPE;
+    }
+
+    public static JwtError internalError() {
+        return INTERNAL_ERROR;
+    }
+
+    /**
+     * @param description of the error
+     * @return a copy of the error with the description
+     */
+    public JwtError description(String description) {
+        return new JwtError(error, description, status);
+    }
+
+    /**
+     * @param status of the response
+     * @return a copy of the error with the status
+     */
+    public JwtError status(HttpStatus status) {
+        return new JwtError(this, status);
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    @JsonIgnore
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return a read-only view of the rendered json, shared by the responses
+     */
+    @JsonIgnore
+    public ByteBuffer getBody() {
+        return json.duplicate();
+    }
+
+    public String toJson() {
+        return StandardCharsets.UTF_8.decode(getBody()).toString();
+    }
+
+    private static ByteBuffer render(JwtError error) {
+        byte[] bytes;
+        try {
+            bytes = WRITER.writeValueAsBytes(error);
+        } catch (JsonProcessingException e) {
+            bytes = ("{ \"error\" : \"" + error.error + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+}
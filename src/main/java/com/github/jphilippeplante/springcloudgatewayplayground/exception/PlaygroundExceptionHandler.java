@@ -26,11 +26,12 @@ import reactor.core.publisher.Mono;
 @Component
 public class PlaygroundExceptionHandler implements ErrorWebExceptionHandler {
 
+    private final PlaygroundJwtExceptionHandler jwtExceptionHandler = new PlaygroundJwtExceptionHandler();
+
     @Override
     public Mono<Void> handle(ServerWebExchange exchange, Throwable ex) {
         if (ex instanceof JwtException) {
-            PlaygroundJwtExceptionHandler handler = new PlaygroundJwtExceptionHandler();
-            return handler.handle(exchange, ex);
+            return jwtExceptionHandler.handle(exchange, ex);
         }
 
         // default 500 without body
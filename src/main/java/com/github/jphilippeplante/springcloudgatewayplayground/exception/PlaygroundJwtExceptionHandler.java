@@ -16,10 +16,6 @@
  */
 package com.github.jphilippeplante.springcloudgatewayplayground.exception;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import io.jsonwebtoken.ClaimJwtException;
 import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.IncorrectClaimException;
@@ -36,16 +32,27 @@ import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.nio.charset.StandardCharsets;
-
+/**
+ * Resolve and write the error of a rejected jwt. It is stateless, one instance is shared by
+ * the requests.
+ */
 public class PlaygroundJwtExceptionHandler {
 
+    private static final JwtError INVALID_TOKEN_INTERNAL_ERROR = JwtError.invalidToken().status(HttpStatus.INTERNAL_SERVER_ERROR);
+
     public Mono<Void> handle(ServerWebExchange exchange, Throwable ex) {
+        return write(exchange, resolve(ex));
+    }
 
-        JwtError response = JwtError.internalError();
+    /**
+     * Error of the response for a jwt exception.
+     *
+     * @param ex exception of the jwt validation
+     * @return the error
+     */
+    public JwtError resolve(Throwable ex) {
 
-        // TODO put error in the header/body and logging
-        exchange.getResponse().getHeaders().add("WWW-Authenticate", "Bearer");
+        JwtError response = JwtError.internalError();
 
         if (ex instanceof InvalidAudienceException) {
             response = JwtError.invalidRequest().description(ex.getMessage());
@@ -64,78 +71,38 @@ public class PlaygroundJwtExceptionHandler {
             response = JwtError.invalidToken().description(ex.getMessage());
         } else if (ex instanceof RequiredTypeException) {
             response = JwtError.invalidToken().description(ex.getMessage());
+        } else if (ex instanceof UnresolvedSigningKeyException) {
+            // not a server error, the token has no key among the keys known by the gateway
+            response = JwtError.invalidToken();
         } else if (ex instanceof SignatureException) {
-            response = JwtError.invalidToken().status(HttpStatus.INTERNAL_SERVER_ERROR);
+            response = INVALID_TOKEN_INTERNAL_ERROR;
         } else if (ex instanceof UnsupportedJwtException) {
-            response = JwtError.invalidToken().status(HttpStatus.INTERNAL_SERVER_ERROR);
+            response = INVALID_TOKEN_INTERNAL_ERROR;
         } else if (ex instanceof IncorrectClaimException) {
             response = JwtError.invalidRequest();
         } else if (ex instanceof InvalidClaimException) {
             response = JwtError.invalidToken();
         } else if (ex instanceof ClaimJwtException) {
-            response = JwtError.invalidToken().status(HttpStatus.INTERNAL_SERVER_ERROR);
+            response = INVALID_TOKEN_INTERNAL_ERROR;
         }
 
-        byte[] bytes = response.toJson().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponse().setStatusCode(response.status);
-        exchange.getResponse().getHeaders().add("Content-Type", "application/json");
-        DataBuffer buffer = exchange.getResponse().bufferFactory().wrap(bytes);
-        return exchange.getResponse().writeWith(Flux.just(buffer));
+        return response;
     }
 
-    @JsonInclude(JsonInclude.Include.NON_NULL)
-    static class JwtError {
-        @JsonProperty("error")
-        String error;
-        @JsonProperty("error_description")
-        String description;
-
-        transient HttpStatus status;
-
-        public JwtError(String error, HttpStatus status) {
-            this.error = error;
-            this.status = status;
-        }
-
-        public JwtError(String error, String description, HttpStatus status) {
-            this.error = error;
-            this.description = description;
-            this.status = status;
-        }
-
-        public static JwtError invalidRequest() {
-            return new JwtError("invalid_request", HttpStatus.BAD_REQUEST);
-        }
-
-        public static JwtError invalidToken() {
-            return new JwtError("invalid_token", HttpStatus.UNAUTHORIZED);
-        }
-
-        public static JwtError insufficientScope() {
-            return new JwtError("insufficient_scope", HttpStatus.FORBIDDEN);
-        }
-
-        public static JwtError internalError() {
-            return new JwtError("internal_error", HttpStatus.INTERNAL_SERVER_ERROR);
-        }
-
-        public JwtError description(String description) {
-            this.description = description;
-            return this;
-        }
-
-        public JwtError status(HttpStatus status) {
-            this.status = status;
-            return this;
-        }
+    /**
+     * Write the error in the response.
+     *
+     * @param exchange of the request
+     * @param response error of the jwt validation
+     * @return completion of the response
+     */
+    public Mono<Void> write(ServerWebExchange exchange, JwtError response) {
+        // TODO put error in the header/body and logging
+        exchange.getResponse().getHeaders().add("WWW-Authenticate", "Bearer");
 
-        public String toJson() {
-            try {
-                ObjectMapper mapper = new ObjectMapper();
-                return mapper.writeValueAsString(this);
-            } catch (JsonProcessingException e) {
-                return "{ \"error\" : \"" + error + "\"}";
-            }
-        }
+        exchange.getResponse().setStatusCode(response.getStatus());
+        exchange.getResponse().getHeaders().add("Content-Type", "application/json");
+        DataBuffer buffer = exchange.getResponse().bufferFactory().wrap(response.getBody());
+        return exchange.getResponse().writeWith(Flux.just(buffer));
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.exception;
+
+import io.jsonwebtoken.SignatureException;
+
+/**
+ * No signing key was found for the jwt (ie unknown kid, JWKS not fetched yet), without
+ * stack trace. It is answered with a 401 invalid_token. The token may be accepted once
+ * the keys are refreshed, it is not remembered as rejected.
+ */
+public class UnresolvedSigningKeyException extends SignatureException {
+
+    public UnresolvedSigningKeyException(String message) {
+        super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
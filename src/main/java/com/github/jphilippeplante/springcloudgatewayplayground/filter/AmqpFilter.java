@@ -17,149 +17,472 @@
 package com.github.jphilippeplante.springcloudgatewayplayground.filter;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpBatchPublisher;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpCompression;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpEnvelopes;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpRpcClient;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpSpool;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpTarget;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublishLimiter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublishNotConfirmedException;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublisherConfirmRegistry;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.RequestBodyAggregator;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.SpooledMessage;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.routing.RoutingHandler;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
 import org.springframework.beans.BeansException;
-import org.springframework.cloud.gateway.filter.GatewayFilterChain;
-import org.springframework.cloud.gateway.filter.GlobalFilter;
-import org.springframework.cloud.gateway.filter.NettyWriteResponseFilter;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
+import org.springframework.cloud.gateway.route.Route;
 import org.springframework.context.ApplicationContext;
-import org.springframework.core.Ordered;
-import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.context.ApplicationListener;
 import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.server.reactive.ServerHttpRequest;
-import org.springframework.messaging.Message;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.server.ServerWebExchange;
-import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
-import java.io.InputStream;
-import java.io.SequenceInputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Scanner;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.isAlreadyRouted;
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.setAlreadyRouted;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR;
 
-public class AmqpFilter implements GlobalFilter, Ordered {
+public class AmqpFilter implements RoutingHandler, ApplicationListener<RefreshRoutesEvent> {
 
-    private static final Log log = LogFactory.getLog(NettyWriteResponseFilter.class);
-
-    private static final String ROUTING_KEY = "routingKey";
-    private static final String EXCHANGE = "exchange";
+    private static final Log log = LogFactory.getLog(AmqpFilter.class);
 
     private final ApplicationContext context;
+    private final long maxBodySize;
+    private final PublisherConfirmRegistry confirms;
+    private final AmqpBatchPublisher batchPublisher;
+    private final AmqpRpcClient rpcClient;
+    private final AmqpSpool spool;
+    private final PublishLimiter limiter;
+    private final RequestIdGenerator requestIds;
+    private final Map<String, AmqpTarget> targets = new ConcurrentHashMap<>();
 
     public AmqpFilter(ApplicationContext context) {
+        this(context, RequestBodyAggregator.DEFAULT_MAX_BODY_SIZE, new PublisherConfirmRegistry(), new AmqpBatchPublisher(),
+                new AmqpRpcClient(), null, new PublishLimiter(), new RequestIdGenerator(GatewayClock.system()));
+    }
+
+    /**
+     * @param context        context with the RabbitTemplate beans
+     * @param maxBodySize    maximum size of a request body, unless the route has a maxBodySize
+     * @param confirms       publisher of the messages of the routes with confirm=true
+     * @param batchPublisher publisher of the messages of the routes with batch=true
+     * @param rpcClient      client of the routes with rpc=true
+     * @param spool          spool of the messages the broker didn't accept, null to answer with an error
+     * @param limiter        limiter of the messages in flight per template
+     * @param requestIds     generator of the message ids, and of the request ids without RequestIdFilter
+     */
+    public AmqpFilter(ApplicationContext context, long maxBodySize, PublisherConfirmRegistry confirms,
+                      AmqpBatchPublisher batchPublisher, AmqpRpcClient rpcClient, AmqpSpool spool,
+                      PublishLimiter limiter, RequestIdGenerator requestIds) {
         this.context = context;
+        this.maxBodySize = RequestBodyAggregator.checkMaxBodySize(maxBodySize);
+        this.confirms = confirms;
+        this.batchPublisher = batchPublisher;
+        this.rpcClient = rpcClient;
+        this.spool = spool;
+        this.limiter = limiter;
+        this.requestIds = requestIds;
+        if (spool != null) {
+            spool.start(this::replay);
+        }
     }
 
     @Override
-    public int getOrder() {
-        return Ordered.LOWEST_PRECEDENCE;
+    public String getScheme() {
+        return "amqp";
     }
 
+    /**
+     * The routes are reloaded, their templates and parameters may have changed.
+     */
     @Override
-    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-        URI requestUrl = exchange.getRequiredAttribute(GATEWAY_REQUEST_URL_ATTR);
+    public void onApplicationEvent(RefreshRoutesEvent event) {
+        targets.clear();
+    }
 
-        String scheme = requestUrl.getScheme();
-        if (isAlreadyRouted(exchange) || (!"amqp".equals(scheme))) {
-            return chain.filter(exchange);
-        }
-        setAlreadyRouted(exchange);
+    @Override
+    public Mono<Void> handle(ServerWebExchange exchange) {
+        // template and parameters of the route, routing key of the partition of the request
+        AmqpTarget target = getTarget(exchange.getRequiredAttribute(GATEWAY_ROUTE_ATTR)).forRequest(exchange.getRequest());
 
-        Flux<DataBuffer> fluxBody = exchange.getRequest().getBody();
+        return createMessage(exchange, target)
+                .flatMap(message -> compressMessage(exchange.getRequest(), target, message))
+                .flatMap(message -> sendMessage(message, exchange, target))
+                .onErrorResume(ResponseStatusException.class, e -> {
+                    exchange.getResponse().setStatusCode(e.getStatus());
+                    return Mono.empty();
+                });
+    }
 
-        Mono<String> requestBody = fluxBody.collect(InputStreamCollector::new,
-                (t, dataBuffer) -> t.collectInputStream(dataBuffer.asInputStream())).map(
-                InputStreamCollector::convertStreamToString);
+    /**
+     * Aggregate the body and build the message in the format of the target.
+     *
+     * @return a spring Message converted by the template for the json format, an AMQP
+     * message sent as is otherwise, a 415 error for a body encoded by the client (Content-Encoding)
+     * with the json format and a compression: its bytes would be decoded as text and the
+     * message claimed compressed
+     */
+    private Mono<Object> createMessage(ServerWebExchange exchange, AmqpTarget target) {
+        ServerHttpRequest request = exchange.getRequest();
+        switch (target.getFormat()) {
+            case RAW:
+                return RequestBodyAggregator.aggregateBytes(request, target.getMaxBodySize())
+                        .map(body -> AmqpEnvelopes.raw(body, request, target));
+            case CBOR:
+            case SMILE:
+                return RequestBodyAggregator.aggregateBytes(request, target.getMaxBodySize())
+                        .map(body -> AmqpEnvelopes.binary(body, request, target));
+            default:
+                if (target.getCompression() != AmqpCompression.NONE && isEncoded(request)) {
+                    return Mono.error(new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE,
+                            "Content-Encoding is not supported with the json format and a compression"));
+                }
+                // building message with parameters of uri as headers
+                return RequestBodyAggregator.aggregate(request, target.getMaxBodySize())
+                        .map(body -> MessageBuilder
+                                .withPayload(new AmqpRequest(body, request, target.filterHeaders(request.getHeaders())))
+                                .copyHeaders(target.getHeaders()).build());
+        }
+    }
+
+    /**
+     * Compress the message of a route with a compression, off the event loop. A body
+     * encoded by the client (Content-Encoding) is sent as is, with the raw, cbor and smile
+     * formats only.
+     */
+    private Mono<Object> compressMessage(ServerHttpRequest request, AmqpTarget target, Object message) {
+        if (target.getCompression() == AmqpCompression.NONE || isEncoded(request)) {
+            return Mono.just(message);
+        }
+        Message amqpMessage = toAmqpMessage(target, message);
+        if (amqpMessage.getBody().length < target.getCompressionThreshold()) {
+            return Mono.just(amqpMessage);
+        }
+        return Mono.<Object>fromCallable(() -> target.getCompression().compress(amqpMessage))
+                .subscribeOn(Schedulers.parallel());
+    }
 
-        return requestBody
-                .map(body -> sendMessage(body, exchange, requestUrl))
-                .then(chain.filter(exchange));
+    private boolean isEncoded(ServerHttpRequest request) {
+        String contentEncoding = request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+        return contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding);
     }
 
-    private Mono<Void> sendMessage(String bodyContent, ServerWebExchange exchange, URI requestUrl) {
-        // parameters in a map
-        MultiValueMap<String, String> parameters = UriComponentsBuilder
-                .fromUri(requestUrl).build().getQueryParams();
+    private Mono<Void> sendMessage(Object message, ServerWebExchange exchange, AmqpTarget target) {
+        if (isSpooled(target) && spool.getPendingCount() > 0) {
+            // the broker gets the messages in order from the spool until it is drained
+            return spoolMessage(target, exchange, message, HttpStatus.SERVICE_UNAVAILABLE);
+        }
 
-        // obtains the bean in the url or default one
-        RabbitTemplate rabbitTemplate = getRabbitTemplate(requestUrl);
+        // a permit per message in flight, 429 or 503 when the broker can't keep up
+        return limiter.limit(target.getTemplate(), () -> publish(message, exchange, target));
+    }
 
-        String exchangeQueue = parameters.getFirst(EXCHANGE);
-        String routingKey = parameters.getFirst(ROUTING_KEY);
+    private Mono<Void> publish(Object message, ServerWebExchange exchange, AmqpTarget target) {
+        if (target.isRpc()) {
+            // send message and answer with its reply
+            return sendRpcMessage(target, exchange, message);
+        }
 
-        // prepare message with headers from the parameters
-        Map<String, String> headers = parameters.toSingleValueMap();
-        headers.remove(ROUTING_KEY); // used in code only
-        headers.remove(EXCHANGE); // used in code only
+        if (target.isBatch()) {
+            // send message with the next batch of the exchange and routing key, accepted once the batch is confirmed
+            return sendBatchedMessage(target, exchange, message);
+        }
 
-        // building message with parameters of uri as headers
-        Message<AmqpRequest> message = MessageBuilder
-                .withPayload(new AmqpRequest(bodyContent, exchange.getRequest()))
-                .copyHeaders(headers).build();
+        if (target.isConfirm()) {
+            // send message in the queue off the event loop, accepted once confirmed
+            return sendConfirmedMessage(target, exchange, message);
+        }
 
         // send message in the queue
-        sendMessage(rabbitTemplate, exchange, exchangeQueue, routingKey, message);
-
-        return Mono.empty();
+        return sendMessage(target, exchange, message);
     }
 
-    private void sendMessage(RabbitTemplate rabbitTemplate, ServerWebExchange exchange,
-                             String exchangeQueue, String routingKey, Message<AmqpRequest> message) {
+    private Mono<Void> sendMessage(AmqpTarget target, ServerWebExchange exchange, Object message) {
         try {
-            CorrelationData correlationData = new CorrelationData(UUID.randomUUID().toString());
-            if (!StringUtils.isEmpty(exchangeQueue) && !StringUtils.isEmpty(routingKey)) {
-                // send it to a specific exchange with a specific routing key.
-                rabbitTemplate.convertAndSend(exchangeQueue, routingKey, message, correlationData);
-            } else if (StringUtils.isEmpty(exchangeQueue) && !StringUtils.isEmpty(routingKey)) {
-                // send it to a default exchange with a specific routing key.
-                rabbitTemplate.convertAndSend(routingKey, message, correlationData);
-            } else {
-                // send it to a default exchange with a default routing key.
-                rabbitTemplate.correlationConvertAndSend(message, correlationData);
-            }
+            send(target.getTemplate(), target, exchange, message, new CorrelationData(requestIds.nextId()));
 
             exchange.getResponse().setStatusCode(HttpStatus.ACCEPTED);
+            return Mono.empty();
         } catch (AmqpException e) {
-            log.error(String.format("Error while sending message to exchangeQueue=%s routingKey=%s", exchangeQueue, routingKey), e);
-            exchange.getResponse().setStatusCode(HttpStatus.INTERNAL_SERVER_ERROR);
+            logSendError(target, e);
+            return spoolMessage(target, exchange, message, HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    private Mono<Void> sendConfirmedMessage(AmqpTarget target, ServerWebExchange exchange, Object message) {
+        return acceptWhenConfirmed(target, exchange, message, confirms.publish(target.getTemplate(),
+                correlationData -> send(target.getTemplate(), target, exchange, message, correlationData), target.getConfirmTimeout()));
+    }
+
+    private Mono<Void> sendBatchedMessage(AmqpTarget target, ServerWebExchange exchange, Object message) {
+        return acceptWhenConfirmed(target, exchange, message, batchPublisher.publish(target.getTemplate(), target.getExchange(), target.getRoutingKey(),
+                operations -> send(operations, target, exchange, message, new CorrelationData(requestIds.nextId()))));
+    }
+
+    private Mono<Void> sendRpcMessage(AmqpTarget target, ServerWebExchange exchange, Object message) {
+        // the reply is matched on the correlation id, unique even if the client repeats its request id
+        return Mono.defer(() -> {
+            String messageId = requestIds.nextId();
+            Message request = withIds(messageId, messageId, getRequestId(exchange))
+                    .postProcessMessage(toAmqpMessage(target, message));
+            return rpcClient.sendAndReceive(target.getTemplate(), target.getExchange(), target.getRoutingKey(),
+                    request, target.getReplyTimeout());
+        })
+                .flatMap(reply -> writeReply(exchange, reply))
+                .onErrorResume(TimeoutException.class, e -> {
+                    log.warn(String.format("No reply from exchangeQueue=%s routingKey=%s in %s",
+                            target.getExchange(), target.getRoutingKey(), target.getReplyTimeout()));
+                    exchange.getResponse().setStatusCode(HttpStatus.GATEWAY_TIMEOUT);
+                    return Mono.empty();
+                })
+                .onErrorResume(AmqpException.class, e -> {
+                    logSendError(target, e);
+                    exchange.getResponse().setStatusCode(HttpStatus.INTERNAL_SERVER_ERROR);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * The request of a rpc is converted by the template before being sent, as convertAndSend
+     * would do it.
+     */
+    private Message toAmqpMessage(AmqpTarget target, Object message) {
+        if (message instanceof Message) {
+            return (Message) message;
+        }
+        return target.getTemplate().getMessageConverter().toMessage(message, new MessageProperties());
+    }
+
+    /**
+     * Write the reply of a rpc: its body with its content type, and the status of its
+     * {@code x-http-status} header (default 200).
+     */
+    private Mono<Void> writeReply(ServerWebExchange exchange, Message reply) {
+        ServerHttpResponse response = exchange.getResponse();
+        MessageProperties properties = reply.getMessageProperties();
+        response.setStatusCode(getReplyStatus(properties));
+        if (properties.getContentType() != null) {
+            response.getHeaders().set(HttpHeaders.CONTENT_TYPE, properties.getContentType());
+        }
+        byte[] body = reply.getBody();
+        if (body == null || body.length == 0) {
+            return Mono.empty();
+        }
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body)));
+    }
+
+    private HttpStatus getReplyStatus(MessageProperties properties) {
+        Object status = properties.getHeaders().get(AmqpEnvelopes.STATUS_HEADER);
+        if (status == null) {
+            return HttpStatus.OK;
+        }
+        try {
+            HttpStatus httpStatus = HttpStatus.resolve(Integer.parseInt(status.toString()));
+            if (httpStatus != null) {
+                return httpStatus;
+            }
+        } catch (NumberFormatException e) {
+            // invalid status below
+        }
+        log.warn(String.format("Invalid %s %s in reply", AmqpEnvelopes.STATUS_HEADER, status));
+        return HttpStatus.BAD_GATEWAY;
+    }
+
+    private Mono<Void> acceptWhenConfirmed(AmqpTarget target, ServerWebExchange exchange, Object message,
+                                           Mono<Void> published) {
+        return published
+                .doOnSuccess(v -> exchange.getResponse().setStatusCode(HttpStatus.ACCEPTED))
+                .onErrorResume(PublishNotConfirmedException.class, e -> {
+                    log.warn(e.getMessage());
+                    return spoolMessage(target, exchange, message, HttpStatus.SERVICE_UNAVAILABLE);
+                })
+                .onErrorResume(RejectedExecutionException.class, e -> {
+                    log.warn(String.format("Too many messages waiting to be sent to exchangeQueue=%s routingKey=%s",
+                            target.getExchange(), target.getRoutingKey()));
+                    return spoolMessage(target, exchange, message, HttpStatus.SERVICE_UNAVAILABLE);
+                })
+                .onErrorResume(AmqpException.class, e -> {
+                    logSendError(target, e);
+                    return spoolMessage(target, exchange, message, HttpStatus.INTERNAL_SERVER_ERROR);
+                });
+    }
+
+    /**
+     * The rpc routes wait for a reply and the confirm routes for the confirm of the broker,
+     * their messages are never spooled: they are answered with an error as without spool.
+     */
+    private boolean isSpooled(AmqpTarget target) {
+        return spool != null && !target.isRpc() && (target.isBatch() || !target.isConfirm());
+    }
+
+    /**
+     * Append a message to the spool off the event loop, accepted once spooled.
+     *
+     * @param notSpooledStatus status of the response without spool, for a route not spooled or
+     *                         if the spool is full
+     */
+    private Mono<Void> spoolMessage(AmqpTarget target, ServerWebExchange exchange, Object message,
+                                    HttpStatus notSpooledStatus) {
+        if (!isSpooled(target)) {
+            exchange.getResponse().setStatusCode(notSpooledStatus);
+            return Mono.empty();
+        }
+        RabbitTemplate template = target.getTemplate();
+        String requestId = getRequestId(exchange);
+        return spool.submit(new SpooledMessage(target.getTemplateName(),
+                target.getExchange() != null ? target.getExchange() : template.getExchange(),
+                target.getRoutingKey() != null ? target.getRoutingKey() : template.getRoutingKey(),
+                withIds(requestIds.nextId(), requestId, requestId).postProcessMessage(toAmqpMessage(target, message))))
+                .doOnNext(spooled -> {
+                    if (spooled) {
+                        exchange.getResponse().setStatusCode(HttpStatus.ACCEPTED);
+                    } else {
+                        log.warn(String.format("Spool is full, message to exchangeQueue=%s routingKey=%s not spooled",
+                                target.getExchange(), target.getRoutingKey()));
+                        exchange.getResponse().setStatusCode(notSpooledStatus);
+                    }
+                })
+                .then();
+    }
+
+    /**
+     * Publish a run of spooled messages, called by the drainer of the spool. The messages of
+     * a template, exchange and routing key are sent in order as a single batch, the batches
+     * of the different keys without waiting for each other. The run completes once every
+     * batch is done, with the error of the first batch not confirmed.
+     */
+    private Mono<Void> replay(List<SpooledMessage> messages) {
+        Map<String, RabbitTemplate> templates = new HashMap<>();
+        Map<List<Object>, List<Consumer<RabbitOperations>>> batches = new LinkedHashMap<>();
+        for (SpooledMessage spooled : messages) {
+            RabbitTemplate template = templates.computeIfAbsent(spooled.getTemplateName(), this::getRabbitTemplate);
+            batches.computeIfAbsent(Arrays.asList(template, spooled.getExchange(), spooled.getRoutingKey()), key -> new ArrayList<>())
+                    .add(operations -> operations.send(spooled.getExchange(), spooled.getRoutingKey(), spooled.getMessage()));
+        }
+        List<Mono<Throwable>> sent = new ArrayList<>(batches.size());
+        batches.forEach((key, sends) -> sent.add(batchPublisher.publishAll((RabbitTemplate) key.get(0), sends)
+                .then(Mono.<Throwable>empty())
+                .onErrorResume(Mono::just)));
+        return Flux.merge(sent)
+                .collectList()
+                .flatMap(errors -> errors.isEmpty() ? Mono.<Void>empty() : Mono.<Void>error(errors.get(0)));
+    }
+
+    /**
+     * Send a message with the id of its correlation data, and the id of the request as its
+     * correlation id.
+     */
+    private void send(RabbitOperations operations, AmqpTarget target, ServerWebExchange exchange, Object message,
+                      CorrelationData correlationData) {
+        String requestId = getRequestId(exchange);
+        MessagePostProcessor ids = withIds(correlationData.getId(), requestId, requestId);
+        String exchangeQueue = target.getExchange();
+        String routingKey = target.getRoutingKey();
+        if (exchangeQueue != null && routingKey != null) {
+            // send it to a specific exchange with a specific routing key.
+            operations.convertAndSend(exchangeQueue, routingKey, message, ids, correlationData);
+        } else if (exchangeQueue == null && routingKey != null) {
+            // send it to a default exchange with a specific routing key.
+            operations.convertAndSend(routingKey, message, ids, correlationData);
+        } else {
+            // send it to a default exchange with a default routing key.
+            operations.convertAndSend(message, ids, correlationData);
+        }
+    }
+
+    private static MessagePostProcessor withIds(String messageId, String correlationId, String requestId) {
+        return message -> {
+            MessageProperties properties = message.getMessageProperties();
+            properties.setMessageId(messageId);
+            properties.setCorrelationId(correlationId);
+            properties.setHeader(AmqpEnvelopes.REQUEST_ID_HEADER, requestId);
+            return message;
+        };
+    }
+
+    /**
+     * @return the id given by RequestIdFilter, a new id kept in the exchange without it
+     */
+    private String getRequestId(ServerWebExchange exchange) {
+        String requestId = RequestIdFilter.getRequestId(exchange);
+        if (requestId == null) {
+            requestId = requestIds.nextId();
+            exchange.getAttributes().put(RequestIdFilter.REQUEST_ID_ATTR, requestId);
+        }
+        return requestId;
+    }
+
+    private void logSendError(AmqpTarget target, AmqpException e) {
+        log.error(String.format("Error while sending message to exchangeQueue=%s routingKey=%s",
+                target.getExchange(), target.getRoutingKey()), e);
+    }
+
+    /**
+     * Get the target of a route, parsed once per route until the routes are refreshed. Only
+     * the uri of the route is parsed, the request url has the path and the query of the
+     * client.
+     *
+     * @param route of the request
+     * @return the target of the uri of the route
+     */
+    private AmqpTarget getTarget(Route route) {
+        AmqpTarget target = targets.get(route.getId());
+        if (target == null) {
+            URI uri = route.getUri();
+            target = AmqpTarget.of(uri, getRabbitTemplate(uri.getHost()), maxBodySize);
+            targets.put(route.getId(), target);
+        }
+        return target;
+    }
+
     /**
      * Get a RabbitTemplate by name or the default one.
      *
-     * @param uri in the route's configuration
+     * @param beanName host of the uri in the route's configuration
      * @return a RabbitTemplate
      */
-    private RabbitTemplate getRabbitTemplate(URI uri) {
-        RabbitTemplate bean = null;
-        String beanName = uri.getHost();
-        try {
-            if (!"default".equals(beanName)) {
-                bean = this.context.getBean(beanName, RabbitTemplate.class);
+    private RabbitTemplate getRabbitTemplate(String beanName) {
+        if (!"default".equals(beanName)) {
+            try {
+                return this.context.getBean(beanName, RabbitTemplate.class);
+            } catch (BeansException e) {
+                log.error(String.format("Error while getting bean %s, using the default RabbitTemplate: %s", beanName, e.getMessage()));
+            } catch (ClassCastException e) {
+                log.error(String.format("%s is not a RabbitTemplate, using the default RabbitTemplate", beanName));
             }
-        } catch (BeansException e) {
-            log.error(String.format("Error while getting bean %s", beanName), e);
-        } catch (ClassCastException e) {
-            log.error(String.format("%s is not a RabbitTemplate", beanName), e);
         }
-        return Optional.ofNullable(bean).orElse(this.context.getBean(RabbitTemplate.class));
+        return this.context.getBean(RabbitTemplate.class);
     }
 
     class AmqpRequest {
@@ -178,10 +501,10 @@ public class AmqpFilter implements GlobalFilter, Ordered {
         @JsonProperty
         private String body;
 
-        public AmqpRequest(String body, ServerHttpRequest request) {
+        public AmqpRequest(String body, ServerHttpRequest request, Map<String, String> headers) {
             this.remoteAddress = request.getRemoteAddress().toString();
             this.cookies = request.getCookies();
-            this.headers = request.getHeaders().toSingleValueMap();
+            this.headers = headers;
             this.method = request.getMethodValue();
             this.uri = request.getURI().toString();
             this.queryParams = request.getQueryParams();
@@ -190,24 +513,4 @@ public class AmqpFilter implements GlobalFilter, Ordered {
             }
         }
     }
-
-    class InputStreamCollector {
-        private InputStream is;
-
-        public void collectInputStream(InputStream is) {
-            // TODO maximum size for the request body?
-            if (this.is == null) {
-                this.is = is;
-            }
-            this.is = new SequenceInputStream(this.is, is);
-        }
-
-        public String convertStreamToString() {
-            if (is == null) {
-                return "";
-            }
-            Scanner s = new Scanner(is).useDelimiter("\\A");
-            return s.hasNext() ? s.next() : "";
-        }
-    }
 }
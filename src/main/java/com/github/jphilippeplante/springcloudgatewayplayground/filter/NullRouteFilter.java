@@ -16,53 +16,84 @@
 
 package com.github.jphilippeplante.springcloudgatewayplayground.filter;
 
-import org.springframework.cloud.gateway.filter.GatewayFilterChain;
-import org.springframework.cloud.gateway.filter.GlobalFilter;
-import org.springframework.core.Ordered;
-import org.springframework.http.HttpStatus;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.nullroute.NullRouteResponse;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.routing.RoutingHandler;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.ResourceLoader;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
-import java.net.URI;
-import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.isAlreadyRouted;
-import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.setAlreadyRouted;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR;
 
 /**
- * NullRouteFilter is used to return a status code in the response without any backend.
+ * NullRouteFilter is the handler of the {@code nullroute://} uris, it returns a response
+ * without any backend: the status code of the host of the uri, with optional headers and body
+ * (see {@link NullRouteResponse}). The response of a route is compiled from the uri of the
+ * route on its first request and kept until the routes are refreshed, the path and the query
+ * of the client are ignored.
  *
  * @author Jean-Philippe Plante
  */
-public class NullRouteFilter implements GlobalFilter, Ordered {
+public class NullRouteFilter implements RoutingHandler, ApplicationListener<RefreshRoutesEvent> {
 
-    @Override
-    public int getOrder() {
-        return Ordered.LOWEST_PRECEDENCE;
+    private final ResourceLoader resourceLoader;
+    private final Map<String, Mono<NullRouteResponse>> responses = new ConcurrentHashMap<>();
+
+    public NullRouteFilter() {
+        this(new DefaultResourceLoader());
     }
 
-    @Override
-    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-        URI requestUrl = exchange.getRequiredAttribute(GATEWAY_REQUEST_URL_ATTR);
+    /**
+     * @param resourceLoader loader of the bodyResource of the uris
+     */
+    public NullRouteFilter(ResourceLoader resourceLoader) {
+        this.resourceLoader = resourceLoader;
+    }
 
-        // check for nullroute scheme
-        String scheme = requestUrl.getScheme();
-        if (isAlreadyRouted(exchange) || (!"nullroute".equals(scheme))) {
-            return chain.filter(exchange);
-        }
-        setAlreadyRouted(exchange);
+    @Override
+    public String getScheme() {
+        return "nullroute";
+    }
 
-        // status code is in the host part of the uri. If not found, will use 200 (OK)
-        Optional<HttpStatus> httpStatus = Optional.empty();
-        if (requestUrl.getHost().matches("\\d+")) {
-            Integer httpStatusCode = Integer.valueOf(requestUrl.getHost());
-            httpStatus = Optional.ofNullable(HttpStatus.resolve(httpStatusCode));
-        }
+    /**
+     * The routes are reloaded, their responses may have changed.
+     */
+    @Override
+    public void onApplicationEvent(RefreshRoutesEvent event) {
+        responses.clear();
+    }
 
-        exchange.getResponse().setStatusCode(httpStatus.orElse(HttpStatus.OK));
+    @Override
+    public Mono<Void> handle(ServerWebExchange exchange) {
+        // status code is in the host part of the uri (200 if not found), headers and body in its parameters
+        return getResponse(exchange.getRequiredAttribute(GATEWAY_ROUTE_ATTR))
+                .flatMap(response -> response.writeTo(exchange.getRequest().getMethod(), exchange.getResponse()));
+    }
 
-        return chain.filter(exchange);
+    /**
+     * Get the response of a route, compiled once per route until the routes are refreshed.
+     * Only the uri of the route is compiled, the request url has the path and the query of
+     * the client. An invalid uri is compiled once as well, its requests fail until a refresh.
+     *
+     * @param route of the request
+     * @return the response of the uri of the route, or the error of its compilation
+     */
+    private Mono<NullRouteResponse> getResponse(Route route) {
+        return responses.computeIfAbsent(route.getId(), id -> compile(route));
     }
 
+    private Mono<NullRouteResponse> compile(Route route) {
+        try {
+            return Mono.just(NullRouteResponse.of(route.getUri(), resourceLoader));
+        } catch (RuntimeException e) {
+            // a new error per request, the suppressed exceptions of reactor are not shared between requests
+            return Mono.defer(() -> Mono.error(new IllegalStateException("Invalid nullroute uri of route " + route.getId(), e)));
+        }
+    }
 }
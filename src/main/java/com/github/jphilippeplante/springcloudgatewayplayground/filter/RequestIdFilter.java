@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.Ordered;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * RequestIdFilter gives an id to each request: the {@code X-Request-Id} header of the
+ * request if valid, a new id otherwise. The id is in the {@link #REQUEST_ID_ATTR} exchange
+ * attribute for the other filters, and in the {@code X-Request-Id} header of the request sent
+ * to the backend and of the response.
+ *
+ * @author Jean-Philippe Plante
+ */
+public class RequestIdFilter implements GlobalFilter, Ordered {
+
+    public static final String REQUEST_ID_HEADER = "X-Request-Id";
+    public static final String REQUEST_ID_ATTR = RequestIdFilter.class.getName() + ".requestId";
+
+    static final int MAXIMUM_LENGTH = 128;
+
+    private final RequestIdGenerator generator;
+
+    public RequestIdFilter(RequestIdGenerator generator) {
+        this.generator = generator;
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.HIGHEST_PRECEDENCE;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        String incoming = request.getHeaders().getFirst(REQUEST_ID_HEADER);
+        String requestId = isValid(incoming) ? incoming : generator.nextId();
+
+        exchange.getAttributes().put(REQUEST_ID_ATTR, requestId);
+        exchange.getResponse().getHeaders().set(REQUEST_ID_HEADER, requestId);
+        if (requestId.equals(incoming)) {
+            return chain.filter(exchange);
+        }
+        return chain.filter(exchange.mutate()
+                .request(request.mutate().headers(headers -> headers.set(REQUEST_ID_HEADER, requestId)).build())
+                .build());
+    }
+
+    /**
+     * @param exchange current exchange
+     * @return the id of the request, null if the filter didn't run
+     */
+    public static String getRequestId(ServerWebExchange exchange) {
+        return exchange.getAttribute(REQUEST_ID_ATTR);
+    }
+
+    /**
+     * An id from a client is kept if it is printable ascii without spaces, up to 128
+     * characters, so it is safe in the logs and the headers of the messages.
+     */
+    static boolean isValid(String requestId) {
+        if (requestId == null || requestId.isEmpty() || requestId.length() > MAXIMUM_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < requestId.length(); i++) {
+            char c = requestId.charAt(i);
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.routing.RoutingHandler;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.core.Ordered;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.isAlreadyRouted;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.setAlreadyRouted;
+
+/**
+ * SchemeRoutingFilter is the single terminal filter of the {@link RoutingHandler} beans: a
+ * request not routed yet goes to the handler of the scheme of its url, found in a map built
+ * once. The other schemes (ie {@code http}, {@code lb}) continue in the chain.
+ *
+ * @author Jean-Philippe Plante
+ */
+public class SchemeRoutingFilter implements GlobalFilter, Ordered {
+
+    private final Map<String, RoutingHandler> handlers;
+
+    /**
+     * @param handlers handlers of the schemes, a scheme has a single handler
+     */
+    public SchemeRoutingFilter(Collection<? extends RoutingHandler> handlers) {
+        Map<String, RoutingHandler> byScheme = new HashMap<>();
+        for (RoutingHandler handler : handlers) {
+            RoutingHandler previous = byScheme.put(handler.getScheme(), handler);
+            if (previous != null) {
+                throw new IllegalStateException(String.format("Scheme %s is handled by %s and %s",
+                        handler.getScheme(), previous.getClass().getName(), handler.getClass().getName()));
+            }
+        }
+        this.handlers = Collections.unmodifiableMap(byScheme);
+    }
+
+    @Override
+    public int getOrder() {
+        return Ordered.LOWEST_PRECEDENCE;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
+        if (isAlreadyRouted(exchange)) {
+            return chain.filter(exchange);
+        }
+        URI requestUrl = exchange.getRequiredAttribute(GATEWAY_REQUEST_URL_ATTR);
+        RoutingHandler handler = handlers.get(requestUrl.getScheme());
+        if (handler == null) {
+            return chain.filter(exchange);
+        }
+        setAlreadyRouted(exchange);
+
+        return handler.handle(exchange).then(chain.filter(exchange));
+    }
+
+    /**
+     * @return the handlers by scheme
+     */
+    public Map<String, RoutingHandler> getHandlers() {
+        return handlers;
+    }
+}
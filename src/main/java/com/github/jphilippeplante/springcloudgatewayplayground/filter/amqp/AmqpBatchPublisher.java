@@ -0,0 +1,307 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannelConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Publish the messages in batches per RabbitTemplate, exchange and routing key. A batch is
+ * sent when it has the maximum number of messages or when the window of its first message
+ * is over, on a single channel with one wait for the publisher confirms. The messages of
+ * a batch complete together once the batch is confirmed.
+ * <p>
+ * A send blocks its thread until the batch is confirmed, the batches are sent on a fixed
+ * pool with as many threads as there are cached channels. The batches of an exchange and
+ * routing key are sent one after the other, in the order they were filled.
+ */
+public class AmqpBatchPublisher implements DisposableBean {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 100;
+    public static final Duration DEFAULT_WINDOW = Duration.ofMillis(5);
+    public static final Duration DEFAULT_CONFIRM_TIMEOUT = Duration.ofSeconds(1);
+    public static final int DEFAULT_THREADS = 25;
+
+    private final int maximumSize;
+    private final long window;
+    private final long confirmTimeout;
+    private final Scheduler scheduler;
+    private final Map<BatchKey, Batch> batches = new ConcurrentHashMap<>();
+
+    public AmqpBatchPublisher() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_WINDOW, DEFAULT_CONFIRM_TIMEOUT);
+    }
+
+    public AmqpBatchPublisher(int maximumSize, Duration window, Duration confirmTimeout) {
+        this(maximumSize, window, confirmTimeout, newScheduler(DEFAULT_THREADS));
+    }
+
+    /**
+     * @param maximumSize    number of messages sending a batch
+     * @param window         time after the first message of a batch sending it
+     * @param confirmTimeout maximum time to wait for the confirms of a batch
+     * @param scheduler      scheduler sending the batches, disposed with the publisher
+     */
+    public AmqpBatchPublisher(int maximumSize, Duration window, Duration confirmTimeout, Scheduler scheduler) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        this.window = window.toMillis();
+        this.confirmTimeout = confirmTimeout.toMillis();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add a message to the batch of its template, exchange and routing key.
+     *
+     * @param template   template sending the batch
+     * @param exchange   exchange of the message, null for the default exchange of the template
+     * @param routingKey routing key of the message, null for the default routing key of the template
+     * @param send       send the message with the operations of the batch
+     * @return completes when the batch is sent and confirmed, fails with a
+     * {@link PublishNotConfirmedException} if the batch is not confirmed or with the
+     * {@link AmqpException} of the send
+     */
+    public Mono<Void> publish(RabbitTemplate template, String exchange, String routingKey,
+                              Consumer<RabbitOperations> send) {
+        MonoProcessor<Void> sent = MonoProcessor.create();
+        batches.computeIfAbsent(new BatchKey(template, exchange, routingKey), key -> new Batch(template))
+                .add(new PendingMessage(send, sent));
+        return sent;
+    }
+
+    /**
+     * Send messages as a single batch right away, in the order of the list, on a single
+     * channel with one wait for the publisher confirms.
+     *
+     * @param template template sending the batch
+     * @param sends    send the messages with the operations of the batch
+     * @return completes when the batch is sent and confirmed, fails as {@link #publish}
+     */
+    public Mono<Void> publishAll(RabbitTemplate template, List<Consumer<RabbitOperations>> sends) {
+        return Mono.<Void>fromRunnable(() -> invoke(template, isPublisherConfirms(template),
+                operations -> sends.forEach(send -> send.accept(operations)), sends.size()))
+                .subscribeOn(scheduler);
+    }
+
+    /**
+     * Bounded scheduler sending the batches.
+     *
+     * @param threads number of threads, the size of the channel cache of the connection factory
+     * @return a fixed pool of daemon threads
+     */
+    public static Scheduler newScheduler(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Schedulers.fromExecutorService(Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "amqp-batch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+
+    private void invoke(RabbitTemplate template, boolean publisherConfirms, Consumer<RabbitOperations> send, int size) {
+        template.invoke(operations -> {
+            send.accept(operations);
+            if (publisherConfirms) {
+                waitForConfirms(operations, size);
+            }
+            return null;
+        });
+    }
+
+    private void waitForConfirms(RabbitOperations operations, int size) {
+        try {
+            operations.waitForConfirmsOrDie(confirmTimeout);
+        } catch (AmqpException e) {
+            throw new PublishNotConfirmedException(
+                    String.format("Batch of %d messages not confirmed after %dms", size, confirmTimeout), e);
+        }
+    }
+
+    private static boolean isPublisherConfirms(RabbitTemplate template) {
+        ConnectionFactory connectionFactory = template.getConnectionFactory();
+        return connectionFactory instanceof PublisherCallbackChannelConnectionFactory
+                && ((PublisherCallbackChannelConnectionFactory) connectionFactory).isPublisherConfirms();
+    }
+
+    private final class Batch {
+        private final RabbitTemplate template;
+        private final boolean publisherConfirms;
+        private List<PendingMessage> messages = new ArrayList<>();
+        private Disposable scheduledSend;
+        // batches taken and not sent yet, in order
+        private final Deque<List<PendingMessage>> ready = new ArrayDeque<>();
+        private boolean sending;
+
+        private Batch(RabbitTemplate template) {
+            this.template = template;
+            this.publisherConfirms = isPublisherConfirms(template);
+        }
+
+        private void add(PendingMessage message) {
+            boolean send = false;
+            synchronized (this) {
+                messages.add(message);
+                if (messages.size() >= maximumSize) {
+                    send = ready(takeMessages());
+                } else if (messages.size() == 1) {
+                    // the window only moves the batch to the ready ones, it never blocks the timer
+                    scheduledSend = Schedulers.parallel().schedule(this::sendScheduled, window, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (send) {
+                scheduler.schedule(this::sendReady);
+            }
+        }
+
+        private void sendScheduled() {
+            boolean send;
+            synchronized (this) {
+                if (messages.isEmpty()) {
+                    return;
+                }
+                send = ready(takeMessages());
+            }
+            if (send) {
+                scheduler.schedule(this::sendReady);
+            }
+        }
+
+        /**
+         * Queue a batch behind the batches not sent yet.
+         *
+         * @return true if no batch is being sent, the caller schedules the sends
+         */
+        private boolean ready(List<PendingMessage> batch) {
+            ready.addLast(batch);
+            if (sending) {
+                return false;
+            }
+            sending = true;
+            return true;
+        }
+
+        /**
+         * Send the ready batches one after the other, a single thread sends the batches of
+         * the key at a time.
+         */
+        private void sendReady() {
+            while (true) {
+                List<PendingMessage> batch;
+                synchronized (this) {
+                    batch = ready.pollFirst();
+                    if (batch == null) {
+                        sending = false;
+                        return;
+                    }
+                }
+                send(batch);
+            }
+        }
+
+        private List<PendingMessage> takeMessages() {
+            List<PendingMessage> batch = messages;
+            messages = new ArrayList<>();
+            if (scheduledSend != null) {
+                scheduledSend.dispose();
+                scheduledSend = null;
+            }
+            return batch;
+        }
+
+        private void send(List<PendingMessage> batch) {
+            try {
+                invoke(template, publisherConfirms, operations -> batch.forEach(message -> message.send.accept(operations)),
+                        batch.size());
+            } catch (RuntimeException e) {
+                batch.forEach(message -> message.sent.onError(e));
+                return;
+            }
+            batch.forEach(message -> message.sent.onComplete());
+        }
+    }
+
+    private static final class PendingMessage {
+        private final Consumer<RabbitOperations> send;
+        private final MonoProcessor<Void> sent;
+
+        private PendingMessage(Consumer<RabbitOperations> send, MonoProcessor<Void> sent) {
+            this.send = send;
+            this.sent = sent;
+        }
+    }
+
+    private static final class BatchKey {
+        private final RabbitTemplate template;
+        private final String exchange;
+        private final String routingKey;
+
+        private BatchKey(RabbitTemplate template, String exchange, String routingKey) {
+            this.template = template;
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            BatchKey batchKey = (BatchKey) o;
+            return template == batchKey.template
+                    && Objects.equals(exchange, batchKey.exchange)
+                    && Objects.equals(routingKey, batchKey.routingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(template), exchange, routingKey);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.xxhash.XXHashFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of the body of the messages of an {@code amqp://} route. The content
+ * encoding of a compressed message is the codec followed by its previous encoding, as the
+ * compressing post processors of spring-amqp do it (ie {@code gzip:UTF-8}).
+ * <p>
+ * The deflater and the buffers are pooled per thread, and the lz4 compressor is stateless
+ * and shared: compressing a message allocates its compressed body only.
+ */
+public enum AmqpCompression {
+
+    NONE(null),
+    GZIP("gzip"),
+    /**
+     * LZ4 frame format, faster than gzip for a lower ratio.
+     */
+    LZ4("lz4");
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int CHUNK_SIZE = 8192;
+    // a pooled buffer grown by a large message is not kept
+    private static final int MAXIMUM_POOLED_SIZE = 1024 * 1024;
+
+    // lz4 frame of independent 64kb blocks without checksum, as LZ4FrameOutputStream writes them
+    private static final int LZ4_MAGIC = 0x184D2204;
+    private static final byte[] LZ4_DESCRIPTOR = {0x60, 0x40};
+    private static final byte LZ4_HEADER_CHECKSUM = (byte) (XXHashFactory.fastestInstance().hash32()
+            .hash(LZ4_DESCRIPTOR, 0, LZ4_DESCRIPTOR.length, 0) >> 8);
+    private static final int LZ4_BLOCK_SIZE = 64 * 1024;
+    private static final int LZ4_UNCOMPRESSED_BLOCK = 0x80000000;
+    private static final LZ4Compressor LZ4_COMPRESSOR = LZ4Factory.fastestInstance().fastCompressor();
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+            () -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+    private static final ThreadLocal<PooledOutputStream> OUTPUTS = ThreadLocal.withInitial(PooledOutputStream::new);
+
+    private final String contentEncoding;
+
+    AmqpCompression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @param compression name of the compression, case insensitive
+     * @return the compression or NONE if empty
+     */
+    public static AmqpCompression of(String compression) {
+        if (StringUtils.isEmpty(compression)) {
+            return NONE;
+        }
+        return valueOf(compression.trim().toUpperCase());
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @param message message to compress
+     * @return a message with the compressed body and the same properties, content encoding
+     * prefixed by the codec
+     */
+    public Message compress(Message message) {
+        if (this == NONE) {
+            return message;
+        }
+        MessageProperties properties = message.getMessageProperties();
+        byte[] body = compress(message.getBody());
+        String previousEncoding = properties.getContentEncoding();
+        properties.setContentEncoding(previousEncoding == null ? contentEncoding : contentEncoding + ":" + previousEncoding);
+        properties.setContentLength(body.length);
+        return new Message(body, properties);
+    }
+
+    byte[] compress(byte[] body) {
+        PooledOutputStream out = OUTPUTS.get();
+        out.reset();
+        try {
+            if (this == GZIP) {
+                gzip(body, out);
+            } else {
+                lz4(body, out);
+            }
+            return out.toByteArray();
+        } finally {
+            if (out.capacity() > MAXIMUM_POOLED_SIZE) {
+                OUTPUTS.remove();
+            }
+        }
+    }
+
+    /**
+     * The gzip member is written around a raw deflate stream, {@code GZIPOutputStream}
+     * would create and end a deflater per message.
+     */
+    private static void gzip(byte[] body, PooledOutputStream out) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+
+        out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        byte[] chunk = CHUNKS.get();
+        while (!deflater.finished()) {
+            out.write(chunk, 0, deflater.deflate(chunk));
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        writeIntLittleEndian(out, (int) crc.getValue());
+        writeIntLittleEndian(out, body.length);
+    }
+
+    /**
+     * The lz4 frame is written block by block in the pooled buffer, {@code LZ4FrameOutputStream}
+     * would allocate its buffers per message.
+     */
+    private static void lz4(byte[] body, PooledOutputStream out) {
+        writeIntLittleEndian(out, LZ4_MAGIC);
+        out.write(LZ4_DESCRIPTOR, 0, LZ4_DESCRIPTOR.length);
+        out.write(LZ4_HEADER_CHECKSUM);
+        for (int offset = 0; offset < body.length; offset += LZ4_BLOCK_SIZE) {
+            out.writeLz4Block(body, offset, Math.min(LZ4_BLOCK_SIZE, body.length - offset));
+        }
+        // end mark
+        writeIntLittleEndian(out, 0);
+    }
+
+    private static void writeIntLittleEndian(PooledOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+        out.write((value >> 16) & 0xff);
+        out.write((value >> 24) & 0xff);
+    }
+
+    private static final class PooledOutputStream extends ByteArrayOutputStream {
+        private PooledOutputStream() {
+            super(CHUNK_SIZE);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+
+        /**
+         * Compress a block directly in the buffer, after its size, or copy it as is if it
+         * doesn't compress.
+         */
+        private void writeLz4Block(byte[] block, int offset, int length) {
+            int maxLength = LZ4_COMPRESSOR.maxCompressedLength(length);
+            if (buf.length - count < 4 + maxLength) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + 4 + maxLength));
+            }
+            int compressedLength = LZ4_COMPRESSOR.compress(block, offset, length, buf, count + 4, maxLength);
+            if (compressedLength < length) {
+                writeIntLittleEndian(this, compressedLength);
+                count += compressedLength;
+            } else {
+                writeIntLittleEndian(this, length | LZ4_UNCOMPRESSED_BLOCK);
+                write(block, offset, length);
+            }
+        }
+    }
+}
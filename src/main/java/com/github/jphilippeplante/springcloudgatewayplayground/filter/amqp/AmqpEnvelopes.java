@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+
+import java.util.Map;
+
+/**
+ * Build the AMQP messages of the raw and binary formats. The body bytes are kept as they
+ * are, without being decoded.
+ */
+public final class AmqpEnvelopes {
+
+    public static final String METHOD_HEADER = "x-http-method";
+    public static final String URI_HEADER = "x-http-uri";
+    public static final String REMOTE_ADDRESS_HEADER = "x-http-remote-address";
+    public static final String STATUS_HEADER = "x-http-status";
+    public static final String REQUEST_ID_HEADER = "x-request-id";
+
+    public static final String CBOR_CONTENT_TYPE = "application/cbor";
+    public static final String SMILE_CONTENT_TYPE = "application/x-jackson-smile";
+
+    private static final ObjectWriter CBOR_WRITER = new ObjectMapper(new CBORFactory()).writerFor(Envelope.class);
+    private static final ObjectWriter SMILE_WRITER = new ObjectMapper(new SmileFactory()).writerFor(Envelope.class);
+
+    private AmqpEnvelopes() {
+    }
+
+    /**
+     * The body is the payload, the method, uri, remote address and the allowed headers of
+     * the request are headers of the message.
+     *
+     * @param body    bytes of the body
+     * @param request the request
+     * @param target  target of the message
+     * @return the message
+     */
+    public static Message raw(byte[] body, ServerHttpRequest request, AmqpTarget target) {
+        MessageProperties properties = properties(target);
+        MediaType contentType = request.getHeaders().getContentType();
+        properties.setContentType(contentType != null ? contentType.toString() : MessageProperties.CONTENT_TYPE_BYTES);
+        properties.setContentLength(body.length);
+        // an encoded body is sent as is, still encoded
+        properties.setContentEncoding(request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        target.filterHeaders(request.getHeaders()).forEach(properties::setHeader);
+        properties.setHeader(METHOD_HEADER, request.getMethodValue());
+        properties.setHeader(URI_HEADER, request.getURI().toString());
+        if (request.getRemoteAddress() != null) {
+            properties.setHeader(REMOTE_ADDRESS_HEADER, request.getRemoteAddress().toString());
+        }
+        return new Message(body, properties);
+    }
+
+    /**
+     * The request is written in a CBOR or Smile envelope.
+     *
+     * @param body    bytes of the body
+     * @param request the request
+     * @param target  target of the message, with the CBOR or SMILE format
+     * @return the message
+     */
+    public static Message binary(byte[] body, ServerHttpRequest request, AmqpTarget target) {
+        boolean cbor = target.getFormat() == AmqpMessageFormat.CBOR;
+        Envelope envelope = new Envelope(request, target.filterHeaders(request.getHeaders()), body);
+        byte[] bytes;
+        try {
+            bytes = (cbor ? CBOR_WRITER : SMILE_WRITER).writeValueAsBytes(envelope);
+        } catch (JsonProcessingException e) {
+            throw new AmqpException("Error while writing the envelope of the request", e);
+        }
+        MessageProperties properties = properties(target);
+        properties.setContentType(cbor ? CBOR_CONTENT_TYPE : SMILE_CONTENT_TYPE);
+        properties.setContentLength(bytes.length);
+        return new Message(bytes, properties);
+    }
+
+    private static MessageProperties properties(AmqpTarget target) {
+        MessageProperties properties = new MessageProperties();
+        target.getHeaders().forEach(properties::setHeader);
+        return properties;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    static final class Envelope {
+        @JsonProperty
+        private final String remoteAddress;
+        @JsonProperty
+        private final String method;
+        @JsonProperty
+        private final String uri;
+        @JsonProperty
+        private final Map<String, String> headers;
+        @JsonProperty
+        private final byte[] body;
+
+        private Envelope(ServerHttpRequest request, Map<String, String> headers, byte[] body) {
+            this.remoteAddress = request.getRemoteAddress() != null ? request.getRemoteAddress().toString() : null;
+            this.method = request.getMethodValue();
+            this.uri = request.getURI().toString();
+            this.headers = headers;
+            this.body = body.length > 0 ? body : null;
+        }
+    }
+}
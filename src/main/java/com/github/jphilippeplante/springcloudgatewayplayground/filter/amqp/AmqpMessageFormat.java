@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Format of the messages of an {@code amqp://} route.
+ */
+public enum AmqpMessageFormat {
+
+    /**
+     * The request in a json document converted by the template, body as a string.
+     */
+    JSON,
+    /**
+     * The body bytes as the payload, the request in the properties and headers.
+     */
+    RAW,
+    /**
+     * The request in a CBOR envelope, body as bytes.
+     */
+    CBOR,
+    /**
+     * The request in a Smile envelope, body as bytes.
+     */
+    SMILE;
+
+    /**
+     * @param format name of the format, case insensitive
+     * @return the format or JSON if empty
+     */
+    public static AmqpMessageFormat of(String format) {
+        if (StringUtils.isEmpty(format)) {
+            return JSON;
+        }
+        return valueOf(format.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.http.HttpCookie;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.util.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Partition of the requests of a route with {@code partitions=N}: the index of the
+ * {@code {partition}} placeholder of its routing key. The key of a request is a header, a
+ * query parameter or a cookie ({@code partitionBy=header:X-Customer-Id}, {@code query:customer}
+ * or {@code cookie:customer}), its partition is the murmur3 32 bits hash (seed 0) of its UTF-8
+ * bytes modulo N. The hash is the same for every gateway and consumers can compute it, the
+ * messages of a key are always in the same queue and keep their order. A request without key
+ * goes to any partition.
+ */
+public final class AmqpPartitioner {
+
+    public static final String PLACEHOLDER = "{partition}";
+
+    private enum Source {
+        HEADER, QUERY, COOKIE
+    }
+
+    private final int partitions;
+    private final Source source;
+    private final String name;
+
+    private AmqpPartitioner(int partitions, Source source, String name) {
+        this.partitions = partitions;
+        this.source = source;
+        this.name = name;
+    }
+
+    /**
+     * @param partitions  number of partitions, at least 1
+     * @param partitionBy {@code header:}, {@code query:} or {@code cookie:} followed by the name of the key
+     * @return the partitioner
+     */
+    public static AmqpPartitioner of(int partitions, String partitionBy) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("partitions must be at least 1");
+        }
+        int separator = partitionBy == null ? -1 : partitionBy.indexOf(':');
+        if (separator < 1 || separator == partitionBy.length() - 1) {
+            throw new IllegalArgumentException("partitionBy must be header:<name>, query:<name> or cookie:<name>, was "
+                    + partitionBy);
+        }
+        Source source = Source.valueOf(partitionBy.substring(0, separator).trim().toUpperCase());
+        return new AmqpPartitioner(partitions, source, partitionBy.substring(separator + 1).trim());
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param request request to route
+     * @return the partition of the key of the request, a random one without key
+     */
+    public int partition(ServerHttpRequest request) {
+        String key = getKey(request);
+        if (StringUtils.isEmpty(key)) {
+            return ThreadLocalRandom.current().nextInt(partitions);
+        }
+        return partition(key, partitions);
+    }
+
+    /**
+     * @param key        key of a request
+     * @param partitions number of partitions
+     * @return the partition of the key, between 0 and partitions - 1
+     */
+    public static int partition(String key, int partitions) {
+        return (murmur3(key.getBytes(StandardCharsets.UTF_8)) & Integer.MAX_VALUE) % partitions;
+    }
+
+    private String getKey(ServerHttpRequest request) {
+        switch (source) {
+            case HEADER:
+                return request.getHeaders().getFirst(name);
+            case QUERY:
+                return request.getQueryParams().getFirst(name);
+            default:
+                HttpCookie cookie = request.getCookies().getFirst(name);
+                return cookie == null ? null : cookie.getValue();
+        }
+    }
+
+    /**
+     * MurmurHash3 x86 32 bits with a seed of 0.
+     */
+    static int murmur3(byte[] data) {
+        int hash = 0;
+        int length = data.length;
+        int blocks = length & ~3;
+        for (int i = 0; i < blocks; i += 4) {
+            int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | data[i + 3] << 24;
+            hash ^= mixK(k);
+            hash = Integer.rotateLeft(hash, 13) * 5 + 0xe6546b64;
+        }
+        int k = 0;
+        switch (length & 3) {
+            case 3:
+                k ^= (data[blocks + 2] & 0xff) << 16;
+            case 2:
+                k ^= (data[blocks + 1] & 0xff) << 8;
+            case 1:
+                k ^= data[blocks] & 0xff;
+                hash ^= mixK(k);
+            default:
+                break;
+        }
+        hash ^= length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int mixK(int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        return k * 0x1b873593;
+    }
+}
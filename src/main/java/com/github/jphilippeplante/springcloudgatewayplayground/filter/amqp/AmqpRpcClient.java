@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.amqp.core.AsyncAmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.AsyncRabbitTemplate;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.Lifecycle;
+import org.springframework.util.concurrent.ListenableFuture;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Send the request messages of the routes with rpc=true and receive their reply. The
+ * replies of a RabbitTemplate are consumed on a single direct reply-to channel and
+ * matched to their request by correlation id, a pending request holds a future, never a
+ * thread.
+ */
+public class AmqpRpcClient implements DisposableBean {
+
+    public static final Duration DEFAULT_REPLY_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Upper bound of a pending request if its timeout is never signaled, a route timeout
+     * is expected to be much shorter.
+     */
+    static final long RECEIVE_TIMEOUT = Duration.ofMinutes(10).toMillis();
+
+    private final Function<RabbitTemplate, AsyncAmqpTemplate> factory;
+    private final Map<RabbitTemplate, AsyncAmqpTemplate> templates = new ConcurrentHashMap<>();
+
+    public AmqpRpcClient() {
+        this(AmqpRpcClient::directReplyTo);
+    }
+
+    /**
+     * @param factory creates the template sending the requests and receiving the replies
+     *                of a RabbitTemplate, called once per RabbitTemplate
+     */
+    public AmqpRpcClient(Function<RabbitTemplate, AsyncAmqpTemplate> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Send a request and wait for its reply without blocking.
+     *
+     * @param template   template of the route
+     * @param exchange   exchange of the request, null for the default exchange of the template
+     * @param routingKey routing key of the request, null for the default routing key of the template
+     * @param request    request message
+     * @param timeout    maximum time to wait for the reply
+     * @return the reply, a TimeoutException when not received in time
+     */
+    public Mono<Message> sendAndReceive(RabbitTemplate template, String exchange, String routingKey, Message request,
+                                        Duration timeout) {
+        return Mono.defer(() -> {
+            AsyncAmqpTemplate async = templates.computeIfAbsent(template, factory);
+            ListenableFuture<Message> reply = async.sendAndReceive(
+                    exchange != null ? exchange : template.getExchange(),
+                    routingKey != null ? routingKey : template.getRoutingKey(), request);
+            // cancelling the future removes the pending request, a late reply is dropped
+            return Mono.fromFuture(reply.completable())
+                    .timeout(timeout)
+                    .doOnError(TimeoutException.class, e -> reply.cancel(true))
+                    .doOnCancel(() -> reply.cancel(true));
+        });
+    }
+
+    /**
+     * @return number of RabbitTemplate with a reply channel
+     */
+    public int size() {
+        return templates.size();
+    }
+
+    @Override
+    public void destroy() {
+        templates.values().forEach(async -> {
+            if (async instanceof Lifecycle) {
+                ((Lifecycle) async).stop();
+            }
+        });
+        templates.clear();
+    }
+
+    private static AsyncAmqpTemplate directReplyTo(RabbitTemplate template) {
+        AsyncRabbitTemplate async = new AsyncRabbitTemplate(template);
+        async.setReceiveTimeout(RECEIVE_TIMEOUT);
+        async.start();
+        return async;
+    }
+}
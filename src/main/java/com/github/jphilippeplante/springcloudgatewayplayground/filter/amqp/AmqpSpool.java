@@ -0,0 +1,682 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Local write-ahead spool of the messages that could not be published. The messages are
+ * appended to memory-mapped segment files of a directory and replayed in order by a
+ * single drainer thread, at a limited rate, once the broker accepts them again.
+ * <p>
+ * A segment starts with the position of its next message to replay, followed by the
+ * records: length, crc32 and the message. A zero length marks the end of the records, so
+ * the spool is recovered by scanning its segments when it is opened again. A segment is
+ * deleted once replayed.
+ * <p>
+ * The appends of the requests run on a single writer thread with a bounded queue, never
+ * on the event loop: a new segment is mapped and the records forced to the disk there.
+ * The replays are published in runs of consecutive messages, up to
+ * {@value #MAXIMUM_REPLAY_SIZE} at a time, without waiting for the confirm of each
+ * message. A single run is in flight: the next one starts once it is committed, or once
+ * the spool is rewound to its first message, so the broker gets the messages of an
+ * exchange and routing key in the order of the spool.
+ */
+public class AmqpSpool implements DisposableBean {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAXIMUM_SIZE = 1024 * 1024 * 1024;
+    public static final Duration DEFAULT_FSYNC_INTERVAL = Duration.ofSeconds(1);
+    public static final int DEFAULT_DRAIN_RATE = 1000;
+    public static final Duration DEFAULT_RETRY_INTERVAL = Duration.ofSeconds(1);
+    public static final int DEFAULT_WRITE_QUEUE_DEPTH = 1024;
+
+    static final int MAXIMUM_REPLAY_SIZE = 256;
+
+    private static final Log log = LogFactory.getLog(AmqpSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * When the appended messages are forced to the disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * after every message, the slowest but nothing is lost if the host crashes
+         */
+        ALWAYS,
+        /**
+         * every fsync interval, the messages of the last interval may be lost if the host crashes
+         */
+        INTERVAL,
+        /**
+         * when the operating system writes the pages back
+         */
+        NEVER;
+
+        public static FsyncPolicy of(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Publish spooled messages to the broker.
+     */
+    @FunctionalInterface
+    public interface Publisher {
+        /**
+         * @param messages consecutive messages of the spool, published in their order for
+         *                 an exchange and routing key
+         * @return completes once all are published, fails with an {@link AmqpException} or a
+         * {@link PublishNotConfirmedException} to replay the messages again later
+         */
+        Mono<Void> publish(List<SpooledMessage> messages);
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int maximumSegments;
+    private final FsyncPolicy fsyncPolicy;
+    private final long drainInterval;
+    private final long retryInterval;
+
+    private final ConcurrentLinkedDeque<Segment> segments = new ConcurrentLinkedDeque<>();
+    private final ThreadPoolExecutor writer;
+    private final ScheduledExecutorService fsyncExecutor;
+    private volatile Thread drainer;
+    private volatile boolean running;
+    private long nextSequence;
+
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong drainedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    public AmqpSpool(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAXIMUM_SIZE, FsyncPolicy.INTERVAL, DEFAULT_FSYNC_INTERVAL,
+                DEFAULT_DRAIN_RATE, DEFAULT_RETRY_INTERVAL);
+    }
+
+    /**
+     * @param directory     directory of the segment files, created if missing
+     * @param segmentSize   size of a segment file, the maximum size of a message
+     * @param maximumSize   maximum size of the segment files, new messages are rejected above
+     * @param fsyncPolicy   when the messages are forced to the disk
+     * @param fsyncInterval interval of the {@link FsyncPolicy#INTERVAL} policy
+     * @param drainRate     maximum number of messages replayed per second
+     * @param retryInterval time to wait before replaying a message the broker didn't accept
+     * @throws IOException when the directory or its segments can't be opened
+     */
+    public AmqpSpool(Path directory, long segmentSize, long maximumSize, FsyncPolicy fsyncPolicy, Duration fsyncInterval,
+                     int drainRate, Duration retryInterval) throws IOException {
+        this(directory, segmentSize, maximumSize, fsyncPolicy, fsyncInterval, drainRate, retryInterval,
+                DEFAULT_WRITE_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param directory       directory of the segment files, created if missing
+     * @param segmentSize     size of a segment file, the maximum size of a message
+     * @param maximumSize     maximum size of the segment files, new messages are rejected above
+     * @param fsyncPolicy     when the messages are forced to the disk
+     * @param fsyncInterval   interval of the {@link FsyncPolicy#INTERVAL} policy
+     * @param drainRate       maximum number of messages replayed per second
+     * @param retryInterval   time to wait before replaying a message the broker didn't accept
+     * @param writeQueueDepth maximum number of messages waiting for the writer, new messages are rejected above
+     * @throws IOException when the directory or its segments can't be opened
+     */
+    public AmqpSpool(Path directory, long segmentSize, long maximumSize, FsyncPolicy fsyncPolicy, Duration fsyncInterval,
+                     int drainRate, Duration retryInterval, int writeQueueDepth) throws IOException {
+        if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize must be between 16 bytes and 2gb");
+        }
+        if (drainRate < 1) {
+            throw new IllegalArgumentException("drainRate must be at least 1");
+        }
+        if (writeQueueDepth < 1) {
+            throw new IllegalArgumentException("writeQueueDepth must be at least 1");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = (int) Math.max(1, maximumSize / segmentSize);
+        this.fsyncPolicy = fsyncPolicy;
+        this.drainInterval = TimeUnit.SECONDS.toNanos(1) / drainRate;
+        this.retryInterval = retryInterval.toNanos();
+
+        Files.createDirectories(directory);
+        recover();
+
+        // a single writer keeps the order of the appends
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(writeQueueDepth), r -> {
+            Thread thread = new Thread(r, "amqp-spool-writer");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "amqp-spool-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long interval = fsyncInterval.toMillis();
+            fsyncExecutor.scheduleWithFixedDelay(this::force, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            fsyncExecutor = null;
+        }
+    }
+
+    /**
+     * Start replaying the spooled messages.
+     *
+     * @param publisher publisher of the messages to the broker
+     */
+    public synchronized void start(Publisher publisher) {
+        if (running) {
+            throw new IllegalStateException("The spool is already started");
+        }
+        running = true;
+        Thread thread = new Thread(() -> drain(publisher), "amqp-spool-drainer");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        // the messages accepted by the requests are appended before closing
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+        running = false;
+        Thread thread = drainer;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (fsyncExecutor != null) {
+            fsyncExecutor.shutdownNow();
+        }
+        synchronized (this) {
+            force();
+            segments.forEach(Segment::close);
+            segments.clear();
+        }
+    }
+
+    /**
+     * Append a message at the end of the spool on the writer thread. The message counts
+     * as pending as soon as it is submitted, so the messages of the next requests are
+     * spooled after it.
+     *
+     * @param message message to replay
+     * @return true once appended, false if the spool or the queue of the writer is full, resumed
+     * out of the writer thread
+     */
+    public Mono<Boolean> submit(SpooledMessage message) {
+        return Mono.<Boolean>create(sink -> {
+            pendingCount.incrementAndGet();
+            try {
+                writer.execute(() -> {
+                    try {
+                        sink.success(write(message));
+                    } catch (Throwable e) {
+                        pendingCount.decrementAndGet();
+                        sink.error(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pendingCount.decrementAndGet();
+                rejectedCount.incrementAndGet();
+                sink.success(false);
+            }
+        }).publishOn(Schedulers.parallel());
+    }
+
+    /**
+     * Append a message at the end of the spool in the calling thread.
+     *
+     * @param message message to replay
+     * @return false if the spool is full or the message larger than a segment
+     */
+    public boolean append(SpooledMessage message) {
+        pendingCount.incrementAndGet();
+        return write(message);
+    }
+
+    /**
+     * Write a message counted as pending, the count is decremented if it is rejected.
+     */
+    private boolean write(SpooledMessage message) {
+        byte[] record = SpooledMessageCodec.encode(message);
+        if (record.length > segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE) {
+            return reject();
+        }
+        synchronized (this) {
+            Segment segment = segments.peekLast();
+            if (segment == null || !segment.hasRoom(record.length)) {
+                if (segments.size() >= maximumSegments) {
+                    return reject();
+                }
+                if (segment != null) {
+                    segment.force();
+                }
+                try {
+                    segment = createSegment();
+                } catch (IOException e) {
+                    log.error("Error while creating a spool segment in " + directory, e);
+                    return reject();
+                }
+                segments.addLast(segment);
+            }
+            segment.append(record);
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                segment.force();
+            }
+        }
+        appendedCount.incrementAndGet();
+        Thread thread = drainer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    private boolean reject() {
+        pendingCount.decrementAndGet();
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return number of messages not replayed yet
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    public long getDrainedCount() {
+        return drainedCount.get();
+    }
+
+    /**
+     * @return number of messages rejected because the spool was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of replays the broker didn't accept
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return size of the segment files
+     */
+    public long getSize() {
+        return segments.size() * segmentSize;
+    }
+
+    private void drain(Publisher publisher) {
+        long nextReplay = System.nanoTime();
+        // position of the first segment up to which the messages are replayed one by one
+        int isolatedUntil = 0;
+        while (running) {
+            Segment segment = segments.peekFirst();
+            if (segment == null) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+
+            if (!segment.hasNext()) {
+                // a segment is complete once the writer moved to the next one
+                if (segments.size() > 1) {
+                    deleteSegment(segment);
+                    isolatedUntil = 0;
+                } else {
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+                continue;
+            }
+
+            long now = System.nanoTime();
+            long wait = nextReplay - now;
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+
+            // the messages allowed by the drain rate since the last run
+            int size = segment.cursor < isolatedUntil ? 1
+                    : (int) Math.min(MAXIMUM_REPLAY_SIZE, 1 + (now - nextReplay) / drainInterval);
+            Replay replay = replay(publisher, segment, size);
+            nextReplay = Math.max(nextReplay + replay.count * drainInterval, now - drainInterval);
+
+            Throwable error = replay.await();
+            if (!running) {
+                // replayed again when the spool is opened
+                return;
+            }
+            if (error instanceof AmqpException || error instanceof PublishNotConfirmedException) {
+                // the whole run is sent again, the messages are delivered at least once
+                retryCount.incrementAndGet();
+                log.warn("Spooled messages not replayed, retrying: " + error.getMessage());
+                segment.rewind();
+                nextReplay = System.nanoTime() + retryInterval;
+                continue;
+            }
+            if (error != null && replay.count > 1) {
+                // find the message that can't be replayed, one by one up to the end of the run
+                segment.rewind();
+                isolatedUntil = replay.end;
+                continue;
+            }
+            if (error != null) {
+                // never replayed successfully, skipping it keeps the rest of the spool moving
+                log.error("Dropping a spooled message that can't be replayed", error);
+            }
+            segment.commit(replay.end);
+            pendingCount.addAndGet(-replay.count);
+            drainedCount.addAndGet(replay.count);
+        }
+    }
+
+    /**
+     * Publish the next messages of a segment, a message that can't be decoded is dropped.
+     */
+    private Replay replay(Publisher publisher, Segment segment, int size) {
+        List<SpooledMessage> messages = new ArrayList<>(size);
+        int count = 0;
+        while (count < size && segment.hasNext()) {
+            count++;
+            try {
+                messages.add(segment.next());
+            } catch (RuntimeException e) {
+                log.error("Dropping a spooled message that can't be decoded", e);
+            }
+        }
+
+        CompletableFuture<Void> future;
+        if (messages.isEmpty()) {
+            future = CompletableFuture.completedFuture(null);
+        } else {
+            try {
+                future = publisher.publish(messages).toFuture();
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+        }
+        Thread thread = Thread.currentThread();
+        future.whenComplete((v, e) -> LockSupport.unpark(thread));
+        return new Replay(segment.cursor, count, future);
+    }
+
+    private void force() {
+        Segment segment = segments.peekLast();
+        if (segment != null) {
+            segment.force();
+        }
+        // the replay positions of the first segment
+        segment = segments.peekFirst();
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            nextSequence = Math.max(nextSequence, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + 1);
+            Segment segment = new Segment(file, segmentSize);
+            int pending = segment.recover();
+            if (pending == 0 && files.size() > 1) {
+                segment.delete();
+            } else {
+                segments.addLast(segment);
+                pendingCount.addAndGet(pending);
+            }
+        }
+        if (pendingCount.get() > 0) {
+            log.info(String.format("Recovered %d spooled messages from %s", pendingCount.get(), directory));
+        }
+    }
+
+    private Segment createSegment() throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", nextSequence++, SEGMENT_SUFFIX));
+        Segment segment = new Segment(file, segmentSize);
+        segment.recover();
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) {
+        synchronized (this) {
+            segments.remove(segment);
+        }
+        segment.delete();
+    }
+
+    /**
+     * A run of messages published by the drainer, committed once completed.
+     */
+    private final class Replay {
+        // position after the record of the last message
+        private final int end;
+        // number of records of the run
+        private final int count;
+        private final CompletableFuture<Void> future;
+
+        private Replay(int end, int count, CompletableFuture<Void> future) {
+            this.end = end;
+            this.count = count;
+            this.future = future;
+        }
+
+        /**
+         * Wait for the run to complete, woken up by its completion.
+         *
+         * @return the error of the run, null if published or the spool is stopped
+         */
+        private Throwable await() {
+            while (running && !future.isDone()) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+            }
+            if (!future.isDone()) {
+                return null;
+            }
+            try {
+                future.get();
+                return null;
+            } catch (ExecutionException e) {
+                return e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return e;
+            }
+        }
+    }
+
+    /**
+     * A segment file, written by the appending threads and read by the drainer only.
+     */
+    private static final class Segment {
+        private final Path file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        // position after the last record, published to the drainer
+        private volatile int writePosition = SEGMENT_HEADER_SIZE;
+        // position of the next record to replay, only moved by the drainer
+        private int readPosition = SEGMENT_HEADER_SIZE;
+        // position of the next record to publish, ahead of the replay position while a run is in flight
+        private int cursor = SEGMENT_HEADER_SIZE;
+
+        private Segment(Path file, long size) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Find the replay position and the end of the records.
+         *
+         * @return number of records not replayed yet
+         */
+        private int recover() {
+            long position = buffer.getLong(0);
+            readPosition = position < SEGMENT_HEADER_SIZE || position > buffer.capacity() ? SEGMENT_HEADER_SIZE : (int) position;
+            cursor = readPosition;
+            int end = readPosition;
+            int pending = 0;
+            CRC32 crc = new CRC32();
+            while (end + RECORD_HEADER_SIZE <= buffer.capacity()) {
+                int length = buffer.getInt(end);
+                if (length <= 0 || end + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+                    break;
+                }
+                ByteBuffer record = slice(end + RECORD_HEADER_SIZE, length);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != buffer.getInt(end + 4)) {
+                    // torn write of the last record before a crash
+                    log.warn(String.format("Invalid record at %d of %s, ignoring the rest of the segment", end, file));
+                    break;
+                }
+                end += RECORD_HEADER_SIZE + length;
+                pending++;
+            }
+            writePosition = end;
+            return pending;
+        }
+
+        private boolean hasRoom(int length) {
+            return writePosition + RECORD_HEADER_SIZE + length <= buffer.capacity();
+        }
+
+        private void append(byte[] record) {
+            int position = writePosition;
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            ByteBuffer target = slice(position + RECORD_HEADER_SIZE, record.length);
+            target.put(record);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            // the length last, a record is never seen half written
+            buffer.putInt(position, record.length);
+            writePosition = position + RECORD_HEADER_SIZE + record.length;
+        }
+
+        private boolean hasNext() {
+            return cursor < writePosition;
+        }
+
+        /**
+         * Read the record at the cursor and move the cursor after it, even if the record
+         * can't be decoded.
+         */
+        private SpooledMessage next() {
+            int length = buffer.getInt(cursor);
+            byte[] record = new byte[length];
+            slice(cursor + RECORD_HEADER_SIZE, length).get(record);
+            cursor += RECORD_HEADER_SIZE + length;
+            return SpooledMessageCodec.decode(record);
+        }
+
+        /**
+         * Publish again from the first record not replayed.
+         */
+        private void rewind() {
+            cursor = readPosition;
+        }
+
+        private void commit(int position) {
+            readPosition = position;
+            buffer.putLong(0, readPosition);
+        }
+
+        private ByteBuffer slice(int position, int length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position);
+            slice.limit(position + length);
+            return slice;
+        }
+
+        private void force() {
+            buffer.force();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error while closing " + file, e);
+            }
+        }
+
+        private void delete() {
+            close();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Error while deleting " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.Durations;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.Sizes;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable destination of the messages of an {@code amqp://} uri: the RabbitTemplate, the
+ * exchange, the routing key, the headers and the options of the publish. It is parsed once
+ * per uri, publishing a message doesn't parse the uri nor look for the template. A
+ * partitioned target has a target per partition, with the index in its routing key.
+ */
+public final class AmqpTarget {
+
+    public static final String ROUTING_KEY = "routingKey";
+    public static final String EXCHANGE = "exchange";
+    public static final String MAX_BODY_SIZE = "maxBodySize";
+    public static final String CONFIRM = "confirm";
+    public static final String TIMEOUT = "timeout";
+    public static final String BATCH = "batch";
+    public static final String FORMAT = "format";
+    public static final String HEADERS = "headers";
+    public static final String RPC = "rpc";
+    public static final String REPLY_TIMEOUT = "replyTimeout";
+    public static final String COMPRESSION = "compression";
+    public static final String COMPRESSION_THRESHOLD = "compressionThreshold";
+    public static final String PARTITIONS = "partitions";
+    public static final String PARTITION_BY = "partitionBy";
+
+    public static final Duration DEFAULT_CONFIRM_TIMEOUT = Duration.ofSeconds(1);
+    public static final long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private static final Set<String> RESERVED_PARAMETERS = new HashSet<>(Arrays.asList(ROUTING_KEY, EXCHANGE, MAX_BODY_SIZE,
+            CONFIRM, TIMEOUT, BATCH, FORMAT, HEADERS, RPC, REPLY_TIMEOUT,
+            COMPRESSION, COMPRESSION_THRESHOLD, PARTITIONS, PARTITION_BY));
+
+    private final String templateName;
+    private final RabbitTemplate template;
+    private final String exchange;
+    private final String routingKey;
+    private final Map<String, Object> headers;
+    private final long maxBodySize;
+    private final boolean confirm;
+    private final Duration confirmTimeout;
+    private final boolean batch;
+    private final AmqpMessageFormat format;
+    private final List<String> headerNames;
+    private final boolean rpc;
+    private final Duration replyTimeout;
+    private final AmqpCompression compression;
+    private final long compressionThreshold;
+    private final AmqpPartitioner partitioner;
+    private final AmqpTarget[] partitionTargets;
+
+    private AmqpTarget(String templateName, RabbitTemplate template, MultiValueMap<String, String> parameters,
+                       long defaultMaxBodySize) {
+        this.templateName = templateName;
+        this.template = template;
+        this.exchange = emptyToNull(parameters.getFirst(EXCHANGE));
+        this.routingKey = emptyToNull(parameters.getFirst(ROUTING_KEY));
+
+        // the other parameters are the headers of the messages
+        Map<String, Object> headers = new LinkedHashMap<>(parameters.toSingleValueMap());
+        headers.keySet().removeAll(RESERVED_PARAMETERS);
+        this.headers = Collections.unmodifiableMap(headers);
+
+        String size = parameters.getFirst(MAX_BODY_SIZE);
+        this.maxBodySize = StringUtils.isEmpty(size) ? defaultMaxBodySize : RequestBodyAggregator.checkMaxBodySize(Sizes.parse(size));
+        this.confirm = Boolean.parseBoolean(parameters.getFirst(CONFIRM));
+        String timeout = parameters.getFirst(TIMEOUT);
+        this.confirmTimeout = StringUtils.isEmpty(timeout) ? DEFAULT_CONFIRM_TIMEOUT : Durations.parse(timeout);
+        this.batch = Boolean.parseBoolean(parameters.getFirst(BATCH));
+        this.format = AmqpMessageFormat.of(parameters.getFirst(FORMAT));
+        String headerNames = parameters.getFirst(HEADERS);
+        this.headerNames = StringUtils.isEmpty(headerNames) ? null
+                : Collections.unmodifiableList(Arrays.asList(StringUtils.tokenizeToStringArray(headerNames, ",")));
+        this.rpc = Boolean.parseBoolean(parameters.getFirst(RPC));
+        String replyTimeout = parameters.getFirst(REPLY_TIMEOUT);
+        this.replyTimeout = StringUtils.isEmpty(replyTimeout) ? AmqpRpcClient.DEFAULT_REPLY_TIMEOUT : Durations.parse(replyTimeout);
+        this.compression = AmqpCompression.of(parameters.getFirst(COMPRESSION));
+        String threshold = parameters.getFirst(COMPRESSION_THRESHOLD);
+        this.compressionThreshold = StringUtils.isEmpty(threshold) ? DEFAULT_COMPRESSION_THRESHOLD
+                : Sizes.parse(threshold);
+
+        String partitions = parameters.getFirst(PARTITIONS);
+        if (StringUtils.isEmpty(partitions)) {
+            this.partitioner = null;
+            this.partitionTargets = null;
+        } else {
+            // the braces of the placeholder are encoded in an uri (%7Bpartition%7D)
+            String routingKeyTemplate = routingKey == null ? null : StringUtils.uriDecode(routingKey, StandardCharsets.UTF_8);
+            if (routingKeyTemplate == null || !routingKeyTemplate.contains(AmqpPartitioner.PLACEHOLDER)) {
+                throw new IllegalArgumentException("The routingKey of a partitioned uri must contain "
+                        + AmqpPartitioner.PLACEHOLDER);
+            }
+            this.partitioner = AmqpPartitioner.of(Integer.parseInt(partitions.trim()), parameters.getFirst(PARTITION_BY));
+            this.partitionTargets = new AmqpTarget[partitioner.getPartitions()];
+            for (int i = 0; i < partitionTargets.length; i++) {
+                partitionTargets[i] = new AmqpTarget(this,
+                        routingKeyTemplate.replace(AmqpPartitioner.PLACEHOLDER, String.valueOf(i)));
+            }
+        }
+    }
+
+    /**
+     * Target of a partition, the routing key has the index of the partition.
+     */
+    private AmqpTarget(AmqpTarget target, String routingKey) {
+        this.templateName = target.templateName;
+        this.template = target.template;
+        this.exchange = target.exchange;
+        this.routingKey = routingKey;
+        this.headers = target.headers;
+        this.maxBodySize = target.maxBodySize;
+        this.confirm = target.confirm;
+        this.confirmTimeout = target.confirmTimeout;
+        this.replyTimeout = target.replyTimeout;
+        this.batch = target.batch;
+        this.format = target.format;
+        this.headerNames = target.headerNames;
+        this.rpc = target.rpc;
+        this.compression = target.compression;
+        this.compressionThreshold = target.compressionThreshold;
+        this.partitioner = null;
+        this.partitionTargets = null;
+    }
+
+    /**
+     * @param uri                {@code amqp://} uri of the route
+     * @param template           template named by the host of the uri
+     * @param defaultMaxBodySize maximum size of a body, unless the uri has a maxBodySize
+     * @return the target of the uri
+     */
+    public static AmqpTarget of(URI uri, RabbitTemplate template, long defaultMaxBodySize) {
+        return new AmqpTarget(uri.getHost(), template, UriComponentsBuilder.fromUri(uri).build().getQueryParams(), defaultMaxBodySize);
+    }
+
+    /**
+     * @param request request to route
+     * @return the target of the partition of the request, this target if not partitioned
+     */
+    public AmqpTarget forRequest(ServerHttpRequest request) {
+        if (partitioner == null) {
+            return this;
+        }
+        return partitionTargets[partitioner.partition(request)];
+    }
+
+    /**
+     * @return the partitioner of the requests, null if not partitioned
+     */
+    public AmqpPartitioner getPartitioner() {
+        return partitioner;
+    }
+
+    /**
+     * @return the host of the uri, name of the template bean or {@code default}
+     */
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public RabbitTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the exchange, null for the default exchange of the template
+     */
+    public String getExchange() {
+        return exchange;
+    }
+
+    /**
+     * @return the routing key, null for the default routing key of the template
+     */
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public Map<String, Object> getHeaders() {
+        return headers;
+    }
+
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    public boolean isConfirm() {
+        return confirm;
+    }
+
+    /**
+     * @return maximum time to wait for the publisher confirm, the {@code timeout} parameter
+     */
+    public Duration getConfirmTimeout() {
+        return confirmTimeout;
+    }
+
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public boolean isRpc() {
+        return rpc;
+    }
+
+    /**
+     * @return maximum time to wait for the reply of a rpc request, the {@code replyTimeout} parameter
+     */
+    public Duration getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    public AmqpCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return minimum size of a message body to compress
+     */
+    public long getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public AmqpMessageFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the request headers allowed in the messages, null if all
+     */
+    public List<String> getHeaderNames() {
+        return headerNames;
+    }
+
+    /**
+     * @param headers headers of the request
+     * @return the first value of the allowed headers of the request
+     */
+    public Map<String, String> filterHeaders(HttpHeaders headers) {
+        if (headerNames == null) {
+            return headers.toSingleValueMap();
+        }
+        Map<String, String> allowed = new LinkedHashMap<>();
+        for (String name : headerNames) {
+            String value = headers.getFirst(name);
+            if (value != null) {
+                allowed.put(name, value);
+            }
+        }
+        return allowed;
+    }
+
+    private static String emptyToNull(String value) {
+        return StringUtils.isEmpty(value) ? null : value;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import com.rabbitmq.client.BlockedListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limit the messages in flight per RabbitTemplate, from the send until the publish
+ * completes (confirmed, batch sent or reply received). A publish over the limit waits for
+ * a permit in order of arrival, up to the maximum wait, then is answered with
+ * {@code 429 Too Many Requests}. While the broker blocks the connection of the template
+ * (connection.blocked), the publishes wait for the connection to be unblocked and are
+ * answered with {@code 503 Service Unavailable} after the maximum wait.
+ */
+public class PublishLimiter {
+
+    public static final int DEFAULT_MAXIMUM_IN_FLIGHT = 5000;
+    public static final Duration DEFAULT_MAXIMUM_WAIT = Duration.ofMillis(100);
+
+    private static final Log log = LogFactory.getLog(PublishLimiter.class);
+
+    private final int maximumInFlight;
+    private final Duration maximumWait;
+    private final Map<RabbitTemplate, Permits> permits = new ConcurrentHashMap<>();
+
+    private final LongAdder throttledCount = new LongAdder();
+    private final LongAdder blockedCount = new LongAdder();
+
+    public PublishLimiter() {
+        this(DEFAULT_MAXIMUM_IN_FLIGHT, DEFAULT_MAXIMUM_WAIT);
+    }
+
+    /**
+     * @param maximumInFlight maximum number of messages in flight per template
+     * @param maximumWait     maximum time to wait for a permit, zero to answer at once
+     */
+    public PublishLimiter(int maximumInFlight, Duration maximumWait) {
+        if (maximumInFlight < 1) {
+            throw new IllegalArgumentException("maximumInFlight must be at least 1");
+        }
+        this.maximumInFlight = maximumInFlight;
+        this.maximumWait = maximumWait;
+    }
+
+    /**
+     * Publish once a permit of the template is acquired, the permit is released when the
+     * publish completes, fails or is cancelled.
+     *
+     * @param template template of the publish
+     * @param publish  the publish
+     * @return the result of the publish, a {@link ResponseStatusException} if no permit is
+     * acquired in time
+     */
+    public <T> Mono<T> limit(RabbitTemplate template, Supplier<Mono<T>> publish) {
+        Permits templatePermits = permits.computeIfAbsent(template, Permits::new);
+        return templatePermits.acquire()
+                .then(Mono.defer(publish).doFinally(signal -> templatePermits.release()));
+    }
+
+    /**
+     * @return number of messages in flight of all the templates
+     */
+    public int getInFlight() {
+        return permits.values().stream().mapToInt(p -> p.inFlight.get()).sum();
+    }
+
+    /**
+     * @return time the connections of the templates were blocked by the broker, including
+     * the current blocks
+     */
+    public Duration getBlockedTime() {
+        return Duration.ofNanos(permits.values().stream().mapToLong(Permits::getBlockedNanos).sum());
+    }
+
+    public boolean isBlocked(RabbitTemplate template) {
+        Permits templatePermits = permits.get(template);
+        return templatePermits != null && templatePermits.isBlocked();
+    }
+
+    /**
+     * @return number of publishes answered without being sent
+     */
+    public long getShedCount() {
+        return throttledCount.sum() + blockedCount.sum();
+    }
+
+    /**
+     * @return number of publishes answered with 429
+     */
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    /**
+     * @return number of publishes answered with 503 because of a blocked connection
+     */
+    public long getBlockedCount() {
+        return blockedCount.sum();
+    }
+
+    private final class Permits implements ConnectionListener, BlockedListener {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+        // nano time of the block, zero when not blocked
+        private final AtomicLong blockedSince = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();
+
+        private Permits(RabbitTemplate template) {
+            ConnectionFactory connectionFactory = template.getConnectionFactory();
+            if (connectionFactory != null) {
+                connectionFactory.addConnectionListener(this);
+            }
+        }
+
+        private Mono<Void> acquire() {
+            if (waiters.isEmpty() && tryAcquire()) {
+                return Mono.empty();
+            }
+            if (maximumWait.isZero()) {
+                return Mono.error(reject());
+            }
+            Waiter waiter = new Waiter();
+            waiters.add(waiter);
+            // a permit may have been released before the waiter was queued
+            grantWaiters();
+            return waiter.granted
+                    .timeout(maximumWait, Mono.defer(() -> waiter.cancel() ? Mono.error(reject()) : Mono.empty()))
+                    .doOnCancel(() -> {
+                        if (!waiter.cancel()) {
+                            release();
+                        }
+                    });
+        }
+
+        private boolean tryAcquire() {
+            while (!isBlocked()) {
+                int current = inFlight.get();
+                if (current >= maximumInFlight) {
+                    return false;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void release() {
+            inFlight.decrementAndGet();
+            grantWaiters();
+        }
+
+        private void grantWaiters() {
+            while (!waiters.isEmpty() && tryAcquire()) {
+                Waiter waiter = waiters.poll();
+                if (waiter == null || !waiter.grant()) {
+                    // gone or timed out, the permit goes to the next waiter
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+
+        private ResponseStatusException reject() {
+            if (isBlocked()) {
+                blockedCount.increment();
+                return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Connection blocked by the broker");
+            }
+            throttledCount.increment();
+            return new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS,
+                    String.format("More than %d messages in flight", maximumInFlight));
+        }
+
+        private boolean isBlocked() {
+            return blockedSince.get() != 0;
+        }
+
+        private long getBlockedNanos() {
+            long since = blockedSince.get();
+            return blockedNanos.get() + (since != 0 ? System.nanoTime() - since : 0);
+        }
+
+        @Override
+        public void onCreate(Connection connection) {
+            connection.addBlockedListener(this);
+        }
+
+        @Override
+        public void onClose(Connection connection) {
+            // the next connection starts unblocked
+            handleUnblocked();
+        }
+
+        @Override
+        public void handleBlocked(String reason) {
+            log.warn("Connection blocked by the broker: " + reason);
+            blockedSince.compareAndSet(0, System.nanoTime());
+        }
+
+        @Override
+        public void handleUnblocked() {
+            long since = blockedSince.getAndSet(0);
+            if (since != 0) {
+                blockedNanos.addAndGet(System.nanoTime() - since);
+                log.info("Connection unblocked by the broker");
+                grantWaiters();
+            }
+        }
+    }
+
+    private static final class Waiter {
+        private static final int WAITING = 0;
+        private static final int GRANTED = 1;
+        private static final int CANCELLED = 2;
+
+        private final MonoProcessor<Void> granted = MonoProcessor.create();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private boolean grant() {
+            if (state.compareAndSet(WAITING, GRANTED)) {
+                granted.onComplete();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the permit was granted first
+         */
+        private boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannelConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Publish messages and wait for their publisher confirm. A single confirm callback is set
+ * on each RabbitTemplate, it completes the pending publish with the same correlation id.
+ * The messages are sent on a scheduler so a slow broker doesn't block the event loop.
+ * <p>
+ * A send blocks while the channel is busy, the scheduler is a fixed pool with as many
+ * threads as there are cached channels (25 by default in a CachingConnectionFactory): more
+ * threads would only wait for a channel. Its queue is bounded, a message is rejected when
+ * it is full rather than waiting behind a slow broker.
+ */
+public class PublisherConfirmRegistry implements DisposableBean {
+
+    public static final int DEFAULT_THREADS = 25;
+    public static final int DEFAULT_QUEUE_DEPTH = 1024;
+
+    private static final Log log = LogFactory.getLog(PublisherConfirmRegistry.class);
+
+    private final Scheduler scheduler;
+    private final RequestIdGenerator correlationIds;
+    private final Map<RabbitTemplate, Boolean> templates = new ConcurrentHashMap<>();
+    private final Map<String, MonoProcessor<Void>> pending = new ConcurrentHashMap<>();
+
+    public PublisherConfirmRegistry() {
+        this(newScheduler(DEFAULT_THREADS, DEFAULT_QUEUE_DEPTH));
+    }
+
+    public PublisherConfirmRegistry(Scheduler scheduler) {
+        this(scheduler, new RequestIdGenerator(GatewayClock.system()));
+    }
+
+    /**
+     * @param scheduler      scheduler sending the messages, disposed with the registry
+     * @param correlationIds generator of the correlation ids of the confirms
+     */
+    public PublisherConfirmRegistry(Scheduler scheduler, RequestIdGenerator correlationIds) {
+        this.scheduler = scheduler;
+        this.correlationIds = correlationIds;
+    }
+
+    /**
+     * Send a message and wait for its confirm. A template that doesn't support the publisher
+     * confirms completes once the message is sent.
+     *
+     * @param template template sending the message
+     * @param send     send the message with the correlation data
+     * @param timeout  maximum time to wait for the confirm
+     * @return completes when the broker acks the message, or fails with a
+     * {@link PublishNotConfirmedException} if nacked or not confirmed before the timeout
+     */
+    public Mono<Void> publish(RabbitTemplate template, Consumer<CorrelationData> send, Duration timeout) {
+        CorrelationData correlationData = new CorrelationData(correlationIds.nextId());
+        Mono<Void> sent = Mono.<Void>fromRunnable(() -> send.accept(correlationData)).subscribeOn(scheduler);
+        if (!register(template)) {
+            return sent;
+        }
+
+        String id = correlationData.getId();
+        // registered on subscribe, a publish never subscribed leaves no pending confirm
+        return Mono.defer(() -> {
+            MonoProcessor<Void> confirm = MonoProcessor.create();
+            pending.put(id, confirm);
+            return sent.then(confirm);
+        })
+                .timeout(timeout)
+                .onErrorMap(TimeoutException.class, e -> new PublishNotConfirmedException(
+                        String.format("Message %s not confirmed after %dms", id, timeout.toMillis())))
+                .doFinally(signal -> pending.remove(id));
+    }
+
+    /**
+     * Bounded scheduler sending the messages. A message sent when the queue is full fails
+     * with a {@link java.util.concurrent.RejectedExecutionException}.
+     *
+     * @param threads    number of threads, the size of the channel cache of the connection factory
+     * @param queueDepth maximum number of messages waiting for a thread
+     * @return a fixed pool of daemon threads with a bounded queue
+     */
+    public static Scheduler newScheduler(int threads, int queueDepth) {
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>();
+        AtomicInteger count = new AtomicInteger();
+        return Schedulers.fromExecutorService(new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread thread = new Thread(r, "amqp-confirm-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy()));
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+
+    /**
+     * @return number of messages waiting for their confirm
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private boolean register(RabbitTemplate template) {
+        return templates.computeIfAbsent(template, t -> {
+            ConnectionFactory connectionFactory = t.getConnectionFactory();
+            if (!(connectionFactory instanceof PublisherCallbackChannelConnectionFactory)
+                    || !((PublisherCallbackChannelConnectionFactory) connectionFactory).isPublisherConfirms()) {
+                log.warn("Publisher confirms are not enabled on the connection factory of a RabbitTemplate, messages are not confirmed");
+                return false;
+            }
+            try {
+                t.setConfirmCallback(this::confirm);
+                return true;
+            } catch (IllegalStateException e) {
+                log.warn("RabbitTemplate has its own ConfirmCallback, messages are not confirmed");
+                return false;
+            }
+        });
+    }
+
+    private void confirm(CorrelationData correlationData, boolean ack, String cause) {
+        if (correlationData == null) {
+            return;
+        }
+        MonoProcessor<Void> confirm = pending.remove(correlationData.getId());
+        if (confirm == null) {
+            return;
+        }
+        if (ack) {
+            confirm.onComplete();
+        } else {
+            confirm.onError(new PublishNotConfirmedException(
+                    String.format("Message %s nacked: %s", correlationData.getId(), cause)));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Aggregate the body of a request up to a maximum size. The buffers are joined by their
+ * factory, a composite buffer without copy for Netty, and decoded once, or copied once in
+ * an array for a binary body. A body larger than
+ * the maximum fails with a 413 as soon as the Content-Length or the received buffers go
+ * over it. The buffers are released when the body is decoded, rejected or cancelled.
+ */
+public final class RequestBodyAggregator {
+
+    public static final long DEFAULT_MAX_BODY_SIZE = 256 * 1024;
+
+    /**
+     * Largest maximum size of a body, the largest array most JVMs can allocate.
+     */
+    public static final long MAXIMUM_BODY_SIZE = Integer.MAX_VALUE - 8;
+
+    private RequestBodyAggregator() {
+    }
+
+    /**
+     * @param request     request with the body to aggregate
+     * @param maxBodySize maximum size of the body in bytes
+     * @return the body decoded with the charset of the request (UTF-8 by default), empty
+     * string if no body
+     */
+    public static Mono<String> aggregate(ServerHttpRequest request, long maxBodySize) {
+        Charset charset = getCharset(request.getHeaders().getContentType());
+        return aggregate(request, maxBodySize, buffers -> buffers.decode(charset));
+    }
+
+    /**
+     * @param request     request with the body to aggregate
+     * @param maxBodySize maximum size of the body in bytes
+     * @return the bytes of the body, copied once, empty if no body
+     */
+    public static Mono<byte[]> aggregateBytes(ServerHttpRequest request, long maxBodySize) {
+        return aggregate(request, maxBodySize, Buffers::toByteArray);
+    }
+
+    private static <T> Mono<T> aggregate(ServerHttpRequest request, long maxBodySize, Function<Buffers, T> body) {
+        long contentLength = request.getHeaders().getContentLength();
+        if (contentLength > maxBodySize) {
+            return Mono.error(payloadTooLarge(maxBodySize));
+        }
+        return Mono.using(() -> new Buffers(maxBodySize),
+                buffers -> request.getBody()
+                        .doOnNext(buffers::add)
+                        .then(Mono.fromCallable(() -> body.apply(buffers))),
+                Buffers::release);
+    }
+
+    /**
+     * @param maxBodySize maximum size of a body in bytes
+     * @return the maximum size
+     * @throws IllegalArgumentException if the maximum is larger than {@link #MAXIMUM_BODY_SIZE}, the
+     *                                  largest body an array can hold
+     */
+    public static long checkMaxBodySize(long maxBodySize) {
+        if (maxBodySize > MAXIMUM_BODY_SIZE) {
+            throw new IllegalArgumentException(String.format("Maximum body size must not be larger than %d bytes: %d",
+                    MAXIMUM_BODY_SIZE, maxBodySize));
+        }
+        return maxBodySize;
+    }
+
+    private static Charset getCharset(MediaType contentType) {
+        if (contentType != null && contentType.getCharset() != null) {
+            return contentType.getCharset();
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static ResponseStatusException payloadTooLarge(long maxBodySize) {
+        return new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                String.format("Request body larger than %d bytes", maxBodySize));
+    }
+
+    /**
+     * Buffers received for a body, owned until released.
+     */
+    private static final class Buffers {
+        private final long maxBodySize;
+        private final List<DataBuffer> buffers = new ArrayList<>();
+        private long size;
+
+        private Buffers(long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+        }
+
+        private synchronized void add(DataBuffer buffer) {
+            size += buffer.readableByteCount();
+            if (size > maxBodySize) {
+                DataBufferUtils.release(buffer);
+                throw payloadTooLarge(maxBodySize);
+            }
+            buffers.add(buffer);
+        }
+
+        private synchronized String decode(Charset charset) {
+            if (buffers.isEmpty()) {
+                return "";
+            }
+            DataBuffer body = buffers.size() == 1 ? buffers.get(0) : buffers.get(0).factory().join(buffers);
+            // the joined buffer owns the received buffers
+            buffers.clear();
+            buffers.add(body);
+            return charset.decode(body.asByteBuffer()).toString();
+        }
+
+        private synchronized byte[] toByteArray() {
+            byte[] bytes = new byte[Math.toIntExact(size)];
+            int offset = 0;
+            for (DataBuffer buffer : buffers) {
+                int length = buffer.readableByteCount();
+                buffer.read(bytes, offset, length);
+                offset += length;
+            }
+            return bytes;
+        }
+
+        private synchronized void release() {
+            buffers.forEach(DataBufferUtils::release);
+            buffers.clear();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.amqp.core.Message;
+
+/**
+ * A message of the {@link AmqpSpool} with its destination. The exchange and routing key
+ * are resolved when the message is spooled, the template by its bean name when replayed.
+ */
+public final class SpooledMessage {
+
+    private final String templateName;
+    private final String exchange;
+    private final String routingKey;
+    private final Message message;
+
+    /**
+     * @param templateName name of the RabbitTemplate bean, {@code default} for the default one
+     * @param exchange     exchange of the message
+     * @param routingKey   routing key of the message
+     * @param message      message to publish
+     */
+    public SpooledMessage(String templateName, String exchange, String routingKey, Message message) {
+        this.templateName = templateName;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.message = message;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+}
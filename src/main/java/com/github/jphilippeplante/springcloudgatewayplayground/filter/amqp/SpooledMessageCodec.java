@@ -0,0 +1,323 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records of the {@link AmqpSpool}: the destination of a message, the properties sent
+ * with it, its typed headers and its body.
+ */
+final class SpooledMessageCodec {
+
+    private static final byte RECORD_VERSION = 1;
+
+    // message properties of a record, written only when set
+    private static final int CONTENT_TYPE = 1;
+    private static final int CONTENT_ENCODING = 1 << 1;
+    private static final int MESSAGE_ID = 1 << 2;
+    private static final int CORRELATION_ID = 1 << 3;
+    private static final int REPLY_TO = 1 << 4;
+    private static final int EXPIRATION = 1 << 5;
+    private static final int TYPE = 1 << 6;
+    private static final int USER_ID = 1 << 7;
+    private static final int APP_ID = 1 << 8;
+    private static final int CLUSTER_ID = 1 << 9;
+    private static final int TIMESTAMP = 1 << 10;
+    private static final int PRIORITY = 1 << 11;
+    private static final int DELIVERY_MODE = 1 << 12;
+
+    // types of the header values
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte INTEGER_VALUE = 2;
+    private static final byte LONG_VALUE = 3;
+    private static final byte SHORT_VALUE = 4;
+    private static final byte BYTE_VALUE = 5;
+    private static final byte BOOLEAN_VALUE = 6;
+    private static final byte DOUBLE_VALUE = 7;
+    private static final byte FLOAT_VALUE = 8;
+    private static final byte DATE_VALUE = 9;
+    private static final byte BYTES_VALUE = 10;
+    private static final byte DECIMAL_VALUE = 11;
+    private static final byte LIST_VALUE = 12;
+    private static final byte MAP_VALUE = 13;
+
+    private SpooledMessageCodec() {
+    }
+
+    /**
+     * A record has the destination, the properties sent with a message (the properties not
+     * set are skipped), its typed headers and its body.
+     */
+    static byte[] encode(SpooledMessage spooled) {
+        MessageProperties properties = spooled.getMessage().getMessageProperties();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + spooled.getMessage().getBody().length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_VERSION);
+            writeString(out, spooled.getTemplateName());
+            writeString(out, spooled.getExchange());
+            writeString(out, spooled.getRoutingKey());
+
+            int flags = flag(properties.getContentType(), CONTENT_TYPE)
+                    | flag(properties.getContentEncoding(), CONTENT_ENCODING)
+                    | flag(properties.getMessageId(), MESSAGE_ID)
+                    | flag(properties.getCorrelationId(), CORRELATION_ID)
+                    | flag(properties.getReplyTo(), REPLY_TO)
+                    | flag(properties.getExpiration(), EXPIRATION)
+                    | flag(properties.getType(), TYPE)
+                    | flag(properties.getUserId(), USER_ID)
+                    | flag(properties.getAppId(), APP_ID)
+                    | flag(properties.getClusterId(), CLUSTER_ID)
+                    | flag(properties.getTimestamp(), TIMESTAMP)
+                    | flag(properties.getPriority(), PRIORITY)
+                    | flag(properties.getDeliveryMode(), DELIVERY_MODE);
+            out.writeShort(flags);
+            writeIfSet(out, flags, CONTENT_TYPE, properties.getContentType());
+            writeIfSet(out, flags, CONTENT_ENCODING, properties.getContentEncoding());
+            writeIfSet(out, flags, MESSAGE_ID, properties.getMessageId());
+            writeIfSet(out, flags, CORRELATION_ID, properties.getCorrelationId());
+            writeIfSet(out, flags, REPLY_TO, properties.getReplyTo());
+            writeIfSet(out, flags, EXPIRATION, properties.getExpiration());
+            writeIfSet(out, flags, TYPE, properties.getType());
+            writeIfSet(out, flags, USER_ID, properties.getUserId());
+            writeIfSet(out, flags, APP_ID, properties.getAppId());
+            writeIfSet(out, flags, CLUSTER_ID, properties.getClusterId());
+            if ((flags & TIMESTAMP) != 0) {
+                out.writeLong(properties.getTimestamp().getTime());
+            }
+            if ((flags & PRIORITY) != 0) {
+                out.writeInt(properties.getPriority());
+            }
+            if ((flags & DELIVERY_MODE) != 0) {
+                out.writeByte(properties.getDeliveryMode().ordinal());
+            }
+
+            Map<String, Object> headers = properties.getHeaders();
+            out.writeInt(headers.size());
+            for (Map.Entry<String, Object> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                writeValue(out, header.getValue());
+            }
+            byte[] body = spooled.getMessage().getBody();
+            out.writeInt(body.length);
+            out.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static SpooledMessage decode(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte version = in.readByte();
+            if (version != RECORD_VERSION) {
+                throw new IllegalStateException("Unknown spool record version " + version);
+            }
+            String templateName = readString(in);
+            String exchange = readString(in);
+            String routingKey = readString(in);
+
+            MessageProperties properties = new MessageProperties();
+            int flags = in.readUnsignedShort();
+            properties.setContentType(readIfSet(in, flags, CONTENT_TYPE));
+            properties.setContentEncoding(readIfSet(in, flags, CONTENT_ENCODING));
+            properties.setMessageId(readIfSet(in, flags, MESSAGE_ID));
+            properties.setCorrelationId(readIfSet(in, flags, CORRELATION_ID));
+            properties.setReplyTo(readIfSet(in, flags, REPLY_TO));
+            properties.setExpiration(readIfSet(in, flags, EXPIRATION));
+            properties.setType(readIfSet(in, flags, TYPE));
+            properties.setUserId(readIfSet(in, flags, USER_ID));
+            properties.setAppId(readIfSet(in, flags, APP_ID));
+            properties.setClusterId(readIfSet(in, flags, CLUSTER_ID));
+            properties.setTimestamp((flags & TIMESTAMP) != 0 ? new Date(in.readLong()) : null);
+            properties.setPriority((flags & PRIORITY) != 0 ? in.readInt() : null);
+            properties.setDeliveryMode((flags & DELIVERY_MODE) != 0 ? MessageDeliveryMode.values()[in.readByte()] : null);
+
+            int headers = in.readInt();
+            for (int i = 0; i < headers; i++) {
+                properties.setHeader(readString(in), readValue(in));
+            }
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new SpooledMessage(templateName, exchange, routingKey, new Message(body, properties));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int flag(Object value, int flag) {
+        return value != null ? flag : 0;
+    }
+
+    private static void writeIfSet(DataOutputStream out, int flags, int flag, String value) throws IOException {
+        if ((flags & flag) != 0) {
+            writeString(out, value);
+        }
+    }
+
+    private static String readIfSet(DataInputStream in, int flags, int flag) throws IOException {
+        return (flags & flag) != 0 ? readString(in) : null;
+    }
+
+    /**
+     * A string of any length (writeUTF is limited to 64kb), -1 for null.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A header value with its type, the types of an AMQP field table. The other values are
+     * written as strings.
+     */
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte(SHORT_VALUE);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(BYTE_VALUE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_VALUE);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Date) {
+            out.writeByte(DATE_VALUE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES_VALUE);
+            out.writeInt(((byte[]) value).length);
+            out.write((byte[]) value);
+        } else if (value instanceof BigDecimal) {
+            out.writeByte(DECIMAL_VALUE);
+            writeString(out, value.toString());
+        } else if (value instanceof List) {
+            out.writeByte(LIST_VALUE);
+            List<?> list = (List<?>) value;
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            out.writeByte(MAP_VALUE);
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        } else {
+            out.writeByte(STRING_VALUE);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(in);
+            case INTEGER_VALUE:
+                return in.readInt();
+            case LONG_VALUE:
+                return in.readLong();
+            case SHORT_VALUE:
+                return in.readShort();
+            case BYTE_VALUE:
+                return in.readByte();
+            case BOOLEAN_VALUE:
+                return in.readBoolean();
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case FLOAT_VALUE:
+                return in.readFloat();
+            case DATE_VALUE:
+                return new Date(in.readLong());
+            case BYTES_VALUE:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case DECIMAL_VALUE:
+                return new BigDecimal(readString(in));
+            case LIST_VALUE:
+                int size = in.readInt();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            case MAP_VALUE:
+                int entries = in.readInt();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    map.put(readString(in), readValue(in));
+                }
+                return map;
+            default:
+                throw new IllegalStateException("Unknown spooled header type " + type);
+        }
+    }
+}
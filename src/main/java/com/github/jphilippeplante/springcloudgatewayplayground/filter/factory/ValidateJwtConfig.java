@@ -12,6 +12,8 @@ public class ValidateJwtConfig {
     private String scopeValidation;
     private String all;
     private String any;
+    private String validationMode;
+    private String execution;
 
     public String getIss() {
         return iss;
@@ -68,4 +70,20 @@ public class ValidateJwtConfig {
     public void setAny(String any) {
         this.any = any;
     }
+
+    public String getValidationMode() {
+        return validationMode;
+    }
+
+    public void setValidationMode(String validationMode) {
+        this.validationMode = validationMode;
+    }
+
+    public String getExecution() {
+        return execution;
+    }
+
+    public void setExecution(String execution) {
+        this.execution = execution;
+    }
 }
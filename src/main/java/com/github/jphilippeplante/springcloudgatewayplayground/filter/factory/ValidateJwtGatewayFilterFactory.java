@@ -17,190 +17,256 @@
 
 package com.github.jphilippeplante.springcloudgatewayplayground.filter.factory;
 
-import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidAudienceException;
-import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidIssuerException;
-import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidScopeException;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.JwtError;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.PlaygroundJwtExceptionHandler;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.UnresolvedSigningKeyException;
 import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.FilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtValidationResult;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtValidator;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtVerificationScheduler;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.RejectedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.TokenDigest;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.ValidatedJwt;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.VerifiedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
 import io.jsonwebtoken.Claims;
-import io.jsonwebtoken.ExpiredJwtException;
 import io.jsonwebtoken.Header;
-import io.jsonwebtoken.Jws;
 import io.jsonwebtoken.Jwt;
-import io.jsonwebtoken.Jwts;
-import io.jsonwebtoken.PrematureJwtException;
-import io.jsonwebtoken.SigningKeyResolver;
-import io.jsonwebtoken.impl.DefaultJwt;
-import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import io.jsonwebtoken.JwtException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.BeansException;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.util.StringUtils;
 import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
 
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.util.Collections;
-import java.util.Date;
 import java.util.List;
-import java.util.Optional;
-import java.util.StringTokenizer;
-import java.util.stream.Collectors;
 
 public class ValidateJwtGatewayFilterFactory extends AbstractGatewayFilterFactory<ValidateJwtConfig> {
 
+    /**
+     * Exchange attribute with the {@link ValidatedJwt} of the request.
+     */
+    public static final String VALIDATED_JWT_ATTR = ValidateJwtGatewayFilterFactory.class.getName() + ".validatedJwt";
+
+    /**
+     * The jwt is validated in the event loop (default).
+     */
+    public static final String EXECUTION_INLINE = "inline";
+
+    /**
+     * The asymmetric signatures are verified by the {@link JwtVerificationScheduler}.
+     */
+    public static final String EXECUTION_OFFLOAD = "offload";
+
+    private static final Log log = LogFactory.getLog(ValidateJwtGatewayFilterFactory.class);
+
     private static final String BEARER_TYPE = "Bearer";
     private static final String HEADER_AUTHORIZATION = "Authorization";
 
     private final FilterSigningKeyResolver defaultFilterSigningKeyResolver;
     private final ConfigurableApplicationContext context;
+    private final VerifiedTokenCache verifiedTokenCache;
+    private final JwtVerificationScheduler verificationScheduler;
+    private final RejectedTokenCache rejectedTokenCache;
+    private final GatewayClock clock;
+    private final PlaygroundJwtExceptionHandler jwtExceptionHandler = new PlaygroundJwtExceptionHandler();
 
     public ValidateJwtGatewayFilterFactory(ConfigurableApplicationContext context, FilterSigningKeyResolver filterSigningKeyResolver) {
+        this(context, filterSigningKeyResolver, new VerifiedTokenCache());
+    }
+
+    public ValidateJwtGatewayFilterFactory(ConfigurableApplicationContext context, FilterSigningKeyResolver filterSigningKeyResolver,
+                                           VerifiedTokenCache verifiedTokenCache) {
+        this(context, filterSigningKeyResolver, verifiedTokenCache, new JwtVerificationScheduler());
+    }
+
+    public ValidateJwtGatewayFilterFactory(ConfigurableApplicationContext context, FilterSigningKeyResolver filterSigningKeyResolver,
+                                           VerifiedTokenCache verifiedTokenCache, JwtVerificationScheduler verificationScheduler) {
+        this(context, filterSigningKeyResolver, verifiedTokenCache, verificationScheduler, new RejectedTokenCache());
+    }
+
+    public ValidateJwtGatewayFilterFactory(ConfigurableApplicationContext context, FilterSigningKeyResolver filterSigningKeyResolver,
+                                           VerifiedTokenCache verifiedTokenCache, JwtVerificationScheduler verificationScheduler,
+                                           RejectedTokenCache rejectedTokenCache) {
+        this(context, filterSigningKeyResolver, verifiedTokenCache, verificationScheduler, rejectedTokenCache,
+                GatewayClock.system());
+    }
+
+    public ValidateJwtGatewayFilterFactory(ConfigurableApplicationContext context, FilterSigningKeyResolver filterSigningKeyResolver,
+                                           VerifiedTokenCache verifiedTokenCache, JwtVerificationScheduler verificationScheduler,
+                                           RejectedTokenCache rejectedTokenCache, GatewayClock clock) {
         this.context = context;
         this.defaultFilterSigningKeyResolver = filterSigningKeyResolver;
+        this.verifiedTokenCache = verifiedTokenCache;
+        this.verificationScheduler = verificationScheduler;
+        this.rejectedTokenCache = rejectedTokenCache;
+        this.clock = clock;
     }
 
     @Override
     public GatewayFilter apply(ValidateJwtConfig config) {
+        JwtValidator validator = compile(config);
+        boolean offload = EXECUTION_OFFLOAD.equalsIgnoreCase(config.getExecution());
         return (exchange, chain) -> {
+            String jwt = extractJwt(exchange.getRequest().getHeaders().getFirst(HEADER_AUTHORIZATION));
+            if (jwt == null) {
+                return chain.filter(exchange);
+            }
 
-            extractJwt(exchange).ifPresent(jwt -> {
-                Jwt<Header, Claims> claims = retreiveClaims(getFilterSigningResolver(config), jwt);
-                // validate jwt expiration, not before, audience and scopes (any or all)
-                isExpired(claims);
-                isNotBefore(claims);
-                validateIssuer(config, claims);
-                validateAudience(config, claims);
-                validateScopes(config, claims);
-            });
+            // already parsed by a previous filter of the chain, only the claims of this configuration are validated
+            ValidatedJwt validatedJwt = exchange.getAttribute(VALIDATED_JWT_ATTR);
+            if (validatedJwt != null && validatedJwt.isReusableFor(jwt, validator.getFilterSigningKeyResolver())) {
+                JwtValidationResult rejection = validator.checkClaims(validatedJwt.getClaims());
+                return rejection == null ? chain.filter(exchange) : jwtExceptionHandler.write(exchange, rejection.getError());
+            }
 
-            return chain.filter(exchange);
-        };
-    }
+            // a token already validated by this configuration skips the parsing and the validations
+            String cacheKey = TokenDigest.key(validator.getKey(), jwt);
+            Jwt<Header, Claims> claims = verifiedTokenCache.get(cacheKey);
+            if (claims != null) {
+                setValidatedJwt(exchange, validator, jwt, claims);
+                return chain.filter(exchange);
+            }
 
-    private FilterSigningKeyResolver getFilterSigningResolver(ValidateJwtConfig config) {
-        FilterSigningKeyResolver filterSigningKeyResolver = defaultFilterSigningKeyResolver;
-        if (!StringUtils.isEmpty(config.getSigningKeyResolver())) {
-            try {
-                filterSigningKeyResolver = context.getBean(config.getSigningKeyResolver(), FilterSigningKeyResolver.class);
-            } catch (NoSuchBeanDefinitionException e) {
-                e.printStackTrace();
-                //TODO LOG
+            // a token rejected recently is answered with the same error without parsing
+            JwtError error = rejectedTokenCache.get(cacheKey);
+            if (error != null) {
+                return jwtExceptionHandler.write(exchange, error);
             }
-        }
-        return filterSigningKeyResolver;
-    }
 
-    private void isNotBefore(Jwt<Header, Claims> claims) {
-        Date notBefore = claims.getBody().getNotBefore();
-        if (notBefore != null) {
-            LocalDateTime ldt = LocalDateTime.ofInstant(notBefore.toInstant(), ZoneId.systemDefault());
-            if (LocalDateTime.now().isBefore(ldt)) {
-                throw new PrematureJwtException(claims.getHeader(), claims.getBody(), "premature_jwt");
+            if (offload) {
+                return validator.verify(jwt, verificationScheduler)
+                        .doOnError(JwtException.class, e -> rejected(cacheKey, e))
+                        .flatMap(result -> complete(exchange, chain, validator, jwt, cacheKey, result))
+                        .onErrorResume(JwtVerificationScheduler.SaturatedException.class, e -> serviceUnavailable(exchange));
             }
-        }
-    }
 
-    private void isExpired(Jwt<Header, Claims> claims) {
-        Date expirationTime = claims.getBody().getExpiration();
-        LocalDateTime ldt = LocalDateTime.ofInstant(expirationTime.toInstant(), ZoneId.systemDefault());
+            JwtValidationResult result;
+            try {
+                result = validator.verify(jwt);
+            } catch (JwtException e) {
+                rejected(cacheKey, e);
+                throw e;
+            }
+            return complete(exchange, chain, validator, jwt, cacheKey, result);
+        };
+    }
 
-        if (LocalDateTime.now().isAfter(ldt)) {
-            throw new ExpiredJwtException(claims.getHeader(), claims.getBody(), "expired_jwt");
-        }
+    /**
+     * Prepare the validation of a configuration, done once per route.
+     *
+     * @param config of the filter
+     * @return a validator for the configuration
+     */
+    public JwtValidator compile(ValidateJwtConfig config) {
+        return new JwtValidator(getRouteKey(config), getFilterSigningResolver(config), config.getIss(),
+                config.getAud(), config.getScope(), config.getScopeValidation(), config.getValidationMode(), clock);
     }
 
-    private void validateIssuer(ValidateJwtConfig config, Jwt<Header, Claims> claims) {
-        // if issuer is specified in the configuration, validate it
-        String issuer = config.getIss();
-        String jwtIssuer = claims.getBody().getIssuer();
-        if (StringUtils.isEmpty(issuer) || !issuer.equalsIgnoreCase(jwtIssuer)) {
-            throw new InvalidIssuerException(claims.getHeader(), claims.getBody(), "Invalid issuer, expected " + issuer);
+    /**
+     * Continue the chain with an accepted token, or answer with the error of a rejected one.
+     */
+    private Mono<Void> complete(ServerWebExchange exchange, GatewayFilterChain chain, JwtValidator validator,
+                                String jwt, String cacheKey, JwtValidationResult result) {
+        if (result.isValid()) {
+            verifiedTokenCache.put(cacheKey, result.getClaims());
+            setValidatedJwt(exchange, validator, jwt, result.getClaims());
+            return chain.filter(exchange);
+        }
+        // a premature token becomes valid with time, it is not remembered
+        if (result.getRejection() != JwtValidationResult.Rejection.PREMATURE) {
+            rejectedTokenCache.put(cacheKey, result.getError());
         }
+        return jwtExceptionHandler.write(exchange, result.getError());
     }
 
-    private void validateAudience(ValidateJwtConfig config, Jwt<Header, Claims> claims) {
-        // if audience is specified in the configuration, validate it
-        String audience = config.getAud();
-        String jwtAudience = claims.getBody().getAudience();
-        if (StringUtils.isEmpty(audience) || !audience.equalsIgnoreCase(jwtAudience)) {
-            throw new InvalidAudienceException(claims.getHeader(), claims.getBody(), "Invalid audience, expected " + audience);
+    /**
+     * A malformed token or an invalid signature is remembered with its error. A token
+     * without signing key (ie unknown kid) may be accepted once the keys are refreshed,
+     * it is not remembered.
+     */
+    private void rejected(String cacheKey, JwtException e) {
+        if (!(e instanceof UnresolvedSigningKeyException)) {
+            rejectedTokenCache.put(cacheKey, jwtExceptionHandler.resolve(e));
         }
     }
 
-    private void validateScopes(ValidateJwtConfig config, Jwt<Header, Claims> claims) {
-        // configuration for the filter
-        List<String> scopes = Collections.emptyList();
-        if (!StringUtils.isEmpty(config.getScope())) {
-            scopes = getListFromSeparatedCommaValue(config.getScope());
-        }
-        String scopeValidationType = "any";
-        if (!StringUtils.isEmpty(config.getScopeValidation())) {
-            scopeValidationType = config.getScopeValidation();
-        }
+    private void setValidatedJwt(ServerWebExchange exchange, JwtValidator validator, String jwt,
+                                 Jwt<Header, Claims> claims) {
+        exchange.getAttributes().put(VALIDATED_JWT_ATTR,
+                new ValidatedJwt(jwt, validator.getFilterSigningKeyResolver(), claims));
+    }
 
-        // get scopes from jwt
-        String jwtScopesStr = (String) claims.getBody().get("scope");
-        List<String> jwtScopes = getListFromSeparatedCommaValue(jwtScopesStr);
+    /**
+     * The verification pool is saturated, the client should retry later.
+     */
+    private Mono<Void> serviceUnavailable(ServerWebExchange exchange) {
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, "1");
+        return response.setComplete();
+    }
 
-        // validate scopes
-        List<String> finalScopes = scopes;
-        if ("all".equalsIgnoreCase(scopeValidationType)) {
-            if (!jwtScopes.stream().allMatch(finalScopes::contains)) {
-                throw new InvalidScopeException(claims.getHeader(), claims.getBody(), "Insufficient scope, expected all of: " + finalScopes.toString());
-            }
-        } else {
-            if (jwtScopes.stream().noneMatch(finalScopes::contains)) {
-                throw new InvalidScopeException(claims.getHeader(), claims.getBody(), "Insufficient scope, expected any of: " + finalScopes.toString());
-            }
-        }
+    /**
+     * Two configurations with the same values validate a token the same way, they can share
+     * the cached validations.
+     */
+    private String getRouteKey(ValidateJwtConfig config) {
+        return String.join("|", String.valueOf(config.getIss()), String.valueOf(config.getAud()),
+                String.valueOf(config.getScope()), String.valueOf(config.getScopeValidation()),
+                String.valueOf(config.getSigningKeyResolver()), String.valueOf(config.getValidationMode()));
     }
 
-    private Jwt<Header, Claims> retreiveClaims(FilterSigningKeyResolver filterSigningKeyResolver, String jwt) {
-        Jwt<Header, Claims> claims = null;
-        // validate signature if signed and signinkeyresolver is available
-        if (Jwts.parser().isSigned(jwt)) {
-            if (filterSigningKeyResolver.resolve() != null) {
-                claims = retreiveClaims(filterSigningKeyResolver.resolve(), jwt);
-            } else {
-                // retreive claims without checkin the signature
-                int i = jwt.lastIndexOf('.');
-                String withoutSignature = jwt.substring(0, i + 1);
-
-                claims = Jwts.parser().parseClaimsJwt(withoutSignature);
+    private FilterSigningKeyResolver getFilterSigningResolver(ValidateJwtConfig config) {
+        FilterSigningKeyResolver filterSigningKeyResolver = defaultFilterSigningKeyResolver;
+        if (!StringUtils.isEmpty(config.getSigningKeyResolver())) {
+            try {
+                filterSigningKeyResolver = context.getBean(config.getSigningKeyResolver(), FilterSigningKeyResolver.class);
+            } catch (BeansException e) {
+                log.warn(String.format("FilterSigningKeyResolver %s not found, using the default one", config.getSigningKeyResolver()));
             }
-        } else {
-            claims = Jwts.parser().parseClaimsJwt(jwt);
         }
-        return claims;
-    }
-
-    private Jwt<Header, Claims> retreiveClaims(SigningKeyResolver signingKeyResolver, String jwt) {
-        Jws<Claims> claims = Jwts.parser()
-                .setSigningKeyResolver(signingKeyResolver)
-                .parseClaimsJws(jwt);
-        return new DefaultJwt<>(claims.getHeader(), claims.getBody());
+        return filterSigningKeyResolver;
     }
 
-    private Optional<String> extractJwt(ServerWebExchange exchange) {
-        String jwt = null;
-        String authorizationHeader = exchange.getRequest().getHeaders().getFirst(HEADER_AUTHORIZATION);
-        if (!StringUtils.isEmpty(authorizationHeader)
-                && authorizationHeader.toLowerCase().startsWith(BEARER_TYPE.toLowerCase())) {
-            jwt = authorizationHeader.substring(BEARER_TYPE.length()).trim();
-            int commaIndex = jwt.indexOf(',');
-            if (commaIndex > 0) {
-                jwt = jwt.substring(0, commaIndex);
-            }
+    /**
+     * Extract the token of a Bearer authorization header. The header is scanned in place,
+     * only the token is copied.
+     *
+     * @param authorizationHeader value of the Authorization header
+     * @return the token or null if not a Bearer authorization
+     */
+    static String extractJwt(String authorizationHeader) {
+        if (authorizationHeader == null
+                || !authorizationHeader.regionMatches(true, 0, BEARER_TYPE, 0, BEARER_TYPE.length())) {
+            return null;
+        }
+        int length = authorizationHeader.length();
+        int start = BEARER_TYPE.length();
+        while (start < length && Character.isWhitespace(authorizationHeader.charAt(start))) {
+            start++;
         }
-        return Optional.ofNullable(jwt);
+        int end = length;
+        // other authorization after a comma is ignored
+        int commaIndex = authorizationHeader.indexOf(',', start + 1);
+        if (commaIndex > 0) {
+            end = commaIndex;
+        }
+        while (end > start && Character.isWhitespace(authorizationHeader.charAt(end - 1))) {
+            end--;
+        }
+        return authorizationHeader.substring(start, end);
     }
 
     public List<String> getListFromSeparatedCommaValue(String str) {
-        if (StringUtils.isEmpty(str)) {
-            return Collections.emptyList();
-        }
-        return Collections.list(new StringTokenizer(str.trim(), ","))
-                .stream()
-                .map(token -> (String) token).collect(Collectors.toList());
+        return JwtValidator.getListFromSeparatedCommaValue(str);
     }
 }
@@ -22,14 +22,16 @@ import io.jsonwebtoken.SigningKeyResolver;
 import io.jsonwebtoken.SigningKeyResolverAdapter;
 
 public class CustomFilterSigningKeyResolver implements FilterSigningKeyResolver {
+
+    private final SigningKeyResolver resolver = new SigningKeyResolverAdapter() {
+        @Override
+        public byte[] resolveSigningKeyBytes(JwsHeader header, Claims claims) {
+            return "secret".getBytes();
+        }
+    };
+
     @Override
     public SigningKeyResolver resolve() {
-        SigningKeyResolver resolver = new SigningKeyResolverAdapter() {
-            @Override
-            public byte[] resolveSigningKeyBytes(JwsHeader header, Claims claims) {
-                return "secret".getBytes();
-            }
-        };
         return resolver;
     }
 }
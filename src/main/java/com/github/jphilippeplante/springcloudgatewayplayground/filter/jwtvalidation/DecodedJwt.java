@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.CompressionCodec;
+import io.jsonwebtoken.CompressionCodecResolver;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.impl.DefaultClaims;
+import io.jsonwebtoken.impl.DefaultHeader;
+import io.jsonwebtoken.impl.DefaultJwsHeader;
+import io.jsonwebtoken.impl.DefaultJwt;
+import io.jsonwebtoken.impl.compression.DefaultCompressionCodecResolver;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Map;
+
+/**
+ * A jwt with its header and payload decoded, but its signature not verified yet.
+ */
+final class DecodedJwt {
+
+    private static final ObjectReader READER = new ObjectMapper().readerFor(Map.class);
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final CompressionCodecResolver COMPRESSION_CODEC_RESOLVER = new DefaultCompressionCodecResolver();
+
+    private final String jwt;
+    private final int signatureIndex;
+    private final Header header;
+    private final Claims claims;
+
+    private DecodedJwt(String jwt, int signatureIndex, Header header, Claims claims) {
+        this.jwt = jwt;
+        this.signatureIndex = signatureIndex;
+        this.header = header;
+        this.claims = claims;
+    }
+
+    /**
+     * Decode the header and the payload of a compact jwt.
+     *
+     * @param jwt compact jwt
+     * @return the decoded jwt
+     */
+    static DecodedJwt decode(String jwt) {
+        int headerEnd = jwt.indexOf('.');
+        int payloadEnd = headerEnd < 0 ? -1 : jwt.indexOf('.', headerEnd + 1);
+        if (headerEnd <= 0 || payloadEnd < 0 || jwt.indexOf('.', payloadEnd + 1) >= 0) {
+            throw new MalformedJwtException("JWT strings must contain exactly 2 period characters");
+        }
+        boolean signed = payloadEnd + 1 < jwt.length();
+        Map<String, Object> headerMap = readJson(jwt, 0, headerEnd, null);
+        Header<?> header = signed ? new DefaultJwsHeader(headerMap) : new DefaultHeader<>(headerMap);
+        // a compressed payload (zip header) is inflated like the jjwt parser does
+        CompressionCodec codec = COMPRESSION_CODEC_RESOLVER.resolveCompressionCodec(header);
+        Claims claims = new DefaultClaims(readJson(jwt, headerEnd + 1, payloadEnd, codec));
+        return new DecodedJwt(jwt, payloadEnd + 1, header, claims);
+    }
+
+    /**
+     * Decode only the header of a compact jwt to get its algorithm.
+     *
+     * @param jwt compact jwt
+     * @return the alg of the header
+     */
+    static String algorithm(String jwt) {
+        int headerEnd = jwt.indexOf('.');
+        if (headerEnd <= 0) {
+            throw new MalformedJwtException("JWT strings must contain exactly 2 period characters");
+        }
+        Object algorithm = readJson(jwt, 0, headerEnd, null).get("alg");
+        return algorithm instanceof String ? (String) algorithm : null;
+    }
+
+    boolean isSigned() {
+        return signatureIndex < jwt.length();
+    }
+
+    Header getHeader() {
+        return header;
+    }
+
+    Claims getClaims() {
+        return claims;
+    }
+
+    String getSignedContent() {
+        return jwt.substring(0, signatureIndex - 1);
+    }
+
+    String getSignature() {
+        return jwt.substring(signatureIndex);
+    }
+
+    Jwt<Header, Claims> toJwt() {
+        return new DefaultJwt<>(header, claims);
+    }
+
+    private static Map<String, Object> readJson(String jwt, int start, int end, CompressionCodec codec) {
+        try {
+            byte[] json = DECODER.decode(jwt.substring(start, end));
+            if (codec != null) {
+                json = codec.decompress(json);
+            }
+            return READER.readValue(json);
+        } catch (IllegalArgumentException | IOException e) {
+            throw new MalformedJwtException("Unable to read JSON value of the jwt", e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of values with an expiration time, shared by the token caches. An expired
+ * entry is never returned, it is removed when read or when room is made for new entries.
+ *
+ * @param <V> type of the values
+ */
+final class ExpiringCache<V> {
+
+    private final int maximumSize;
+    private final GatewayClock clock;
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    ExpiringCache(int maximumSize, GatewayClock clock) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        this.clock = clock;
+    }
+
+    /**
+     * @param key key of the value
+     * @return the value or null if not found or expired
+     */
+    V get(String key) {
+        Entry<V> entry = entries.isEmpty() ? null : entries.get(key);
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        if (entry.isExpired(clock.currentTimeMillis())) {
+            if (entries.remove(key, entry)) {
+                evictionCount.increment();
+            }
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.value;
+    }
+
+    /**
+     * Keep a value until its expiration, nothing is kept by a cache of size 0 or for a
+     * value already expired.
+     *
+     * @param key       key of the value
+     * @param value     value to keep
+     * @param expiresAt time of the expiration in milliseconds of the gateway clock
+     */
+    void put(String key, V value, long expiresAt) {
+        if (maximumSize == 0) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        if (now >= expiresAt) {
+            return;
+        }
+        if (entries.size() >= maximumSize) {
+            evict(now);
+        }
+        entries.put(key, new Entry<>(value, expiresAt));
+    }
+
+    long currentTimeMillis() {
+        return clock.currentTimeMillis();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * Make room for new entries, expired entries go first. A tenth of the cache is freed at
+     * once, a full cache is scanned every maximumSize / 10 inserts instead of every insert.
+     */
+    private void evict(long now) {
+        entries.entrySet().removeIf(e -> {
+            if (e.getValue().isExpired(now)) {
+                evictionCount.increment();
+                return true;
+            }
+            return false;
+        });
+        int target = maximumSize - Math.max(1, maximumSize / 10);
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() > target && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+            evictionCount.increment();
+        }
+    }
+
+    private static final class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
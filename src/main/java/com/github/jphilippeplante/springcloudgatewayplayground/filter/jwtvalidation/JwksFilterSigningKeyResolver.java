@@ -0,0 +1,280 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.UnresolvedSigningKeyException;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.SigningKeyResolver;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * FilterSigningKeyResolver of the public keys of a JWKS document (ie
+ * {@code https://issuer/.well-known/jwks.json} or {@code file:/path/jwks.json}).
+ * <p>
+ * The RSA and EC keys are built once and indexed by {@code kid}. The document is
+ * refreshed in the background. A token with an unknown {@code kid} is rejected and
+ * triggers a background fetch of the document, these fetches are coalesced and
+ * rate-limited so a key rotation never causes a stampede on the issuer nor blocks the
+ * caller. Tokens signed with the new key are accepted once the fetch is done.
+ */
+public class JwksFilterSigningKeyResolver implements FilterSigningKeyResolver, InitializingBean, DisposableBean {
+
+    public static final String BEAN_NAME = "jwksFilterSigningKeyResolver";
+
+    public static final Duration DEFAULT_REFRESH_INTERVAL = Duration.ofMinutes(5);
+    public static final Duration DEFAULT_MINIMUM_FETCH_INTERVAL = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_FETCH_TIMEOUT = Duration.ofSeconds(2);
+
+    private static final Log log = LogFactory.getLog(JwksFilterSigningKeyResolver.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final URL jwksUrl;
+    private final Duration refreshInterval;
+    private final Duration minimumFetchInterval;
+    private final Duration fetchTimeout;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "jwks-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicReference<CompletableFuture<Map<String, PublicKey>>> inFlight = new AtomicReference<>();
+    private final AtomicLong lastFetch = new AtomicLong();
+    private final AtomicLong fetchCount = new AtomicLong();
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+
+    private final SigningKeyResolver signingKeyResolver = new SigningKeyResolverAdapter() {
+        @Override
+        public Key resolveSigningKey(JwsHeader header, Claims claims) {
+            return getKey(header.getKeyId());
+        }
+    };
+
+    public JwksFilterSigningKeyResolver(URL jwksUrl) {
+        this(jwksUrl, DEFAULT_REFRESH_INTERVAL, DEFAULT_MINIMUM_FETCH_INTERVAL, DEFAULT_FETCH_TIMEOUT);
+    }
+
+    public JwksFilterSigningKeyResolver(URL jwksUrl, Duration refreshInterval, Duration minimumFetchInterval,
+                                        Duration fetchTimeout) {
+        this.jwksUrl = jwksUrl;
+        this.refreshInterval = refreshInterval;
+        this.minimumFetchInterval = minimumFetchInterval;
+        this.fetchTimeout = fetchTimeout;
+        // the first fetch is never rate-limited
+        this.lastFetch.set(System.nanoTime() - minimumFetchInterval.toNanos());
+    }
+
+    @Override
+    public SigningKeyResolver resolve() {
+        return signingKeyResolver;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        // the first fetch is done before the gateway takes requests, bounded by the fetch timeout
+        refresh().join();
+        long interval = refreshInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::refresh, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Fetch the JWKS document, joining the fetch in progress if any.
+     *
+     * @return the keys indexed by kid once fetched
+     */
+    public CompletableFuture<Map<String, PublicKey>> refresh() {
+        CompletableFuture<Map<String, PublicKey>> future = new CompletableFuture<>();
+        if (!inFlight.compareAndSet(null, future)) {
+            CompletableFuture<Map<String, PublicKey>> current = inFlight.get();
+            if (current != null) {
+                return current;
+            }
+            return refresh();
+        }
+        lastFetch.set(System.nanoTime());
+        executor.execute(() -> {
+            try {
+                keys = fetch();
+            } catch (Exception e) {
+                log.error(String.format("Error while fetching JWKS %s, keeping %d previous keys", jwksUrl, keys.size()), e);
+            } finally {
+                // cleared before completing, a caller woken up by the fetch never joins it again
+                inFlight.set(null);
+                future.complete(keys);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Get the public key of a kid. An unknown kid is rejected right away with an
+     * {@link UnresolvedSigningKeyException} and triggers a fetch of the JWKS document in
+     * the background, the caller (ie a netty event loop) never waits for the issuer.
+     *
+     * @param kid of the jws header
+     * @return the public key
+     */
+    public PublicKey getKey(String kid) {
+        PublicKey key = find(keys, kid);
+        if (key == null) {
+            refreshForUnknownKid();
+            throw new UnresolvedSigningKeyException("No signing key for kid " + kid);
+        }
+        return key;
+    }
+
+    public Map<String, PublicKey> getKeys() {
+        return keys;
+    }
+
+    public long getFetchCount() {
+        return fetchCount.get();
+    }
+
+    private PublicKey find(Map<String, PublicKey> keys, String kid) {
+        if (kid == null) {
+            // without kid, a document with a single key is not ambiguous
+            return keys.size() == 1 ? keys.values().iterator().next() : null;
+        }
+        return keys.get(kid);
+    }
+
+    /**
+     * A fetch in progress is left alone, a new one is allowed only once per minimum
+     * fetch interval.
+     */
+    private void refreshForUnknownKid() {
+        if (inFlight.get() != null) {
+            return;
+        }
+        long last = lastFetch.get();
+        long now = System.nanoTime();
+        if (now - last < minimumFetchInterval.toNanos() || !lastFetch.compareAndSet(last, now)) {
+            return;
+        }
+        log.debug(String.format("Unknown kid, fetching JWKS %s", jwksUrl));
+        refresh();
+    }
+
+    private Map<String, PublicKey> fetch() throws IOException {
+        fetchCount.incrementAndGet();
+        URLConnection connection = jwksUrl.openConnection();
+        if (connection instanceof HttpURLConnection) {
+            connection.setConnectTimeout((int) fetchTimeout.toMillis());
+            connection.setReadTimeout((int) fetchTimeout.toMillis());
+            connection.setRequestProperty("Accept", "application/json");
+        }
+        JsonNode document;
+        try (InputStream is = connection.getInputStream()) {
+            document = MAPPER.readTree(is);
+        }
+
+        Map<String, PublicKey> keys = new HashMap<>();
+        for (JsonNode jwk : document.path("keys")) {
+            String use = jwk.path("use").asText("sig");
+            if (!"sig".equals(use)) {
+                continue;
+            }
+            String kid = jwk.path("kid").asText(null);
+            try {
+                PublicKey key = toPublicKey(jwk);
+                if (key != null) {
+                    keys.put(kid, key);
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException e) {
+                log.warn(String.format("Invalid key %s in JWKS %s", kid, jwksUrl), e);
+            }
+        }
+        return Collections.unmodifiableMap(keys);
+    }
+
+    private PublicKey toPublicKey(JsonNode jwk) throws GeneralSecurityException {
+        String kty = jwk.path("kty").asText();
+        if ("RSA".equals(kty)) {
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(toBigInteger(jwk, "n"), toBigInteger(jwk, "e"));
+            return KeyFactory.getInstance("RSA").generatePublic(spec);
+        } else if ("EC".equals(kty)) {
+            AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(toCurveName(jwk.path("crv").asText())));
+            ECParameterSpec curve = parameters.getParameterSpec(ECParameterSpec.class);
+            ECPoint point = new ECPoint(toBigInteger(jwk, "x"), toBigInteger(jwk, "y"));
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(point, curve));
+        }
+        // symmetric or unknown keys are not published in a JWKS
+        return null;
+    }
+
+    private String toCurveName(String crv) {
+        switch (crv) {
+            case "P-256":
+                return "secp256r1";
+            case "P-384":
+                return "secp384r1";
+            case "P-521":
+                return "secp521r1";
+            default:
+                throw new IllegalArgumentException("Unsupported curve " + crv);
+        }
+    }
+
+    private BigInteger toBigInteger(JsonNode jwk, String field) {
+        return new BigInteger(1, DECODER.decode(jwk.path(field).asText()));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.JwtError;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.PlaygroundJwtExceptionHandler;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+import io.jsonwebtoken.JwtException;
+
+/**
+ * Result of the validation of a jwt: the claims of an accepted token, or the rejection of
+ * its claims. The rejections of a validator are preallocated with their error response and
+ * a stackless exception, a rejected token allocates nothing.
+ */
+public final class JwtValidationResult {
+
+    private static final PlaygroundJwtExceptionHandler EXCEPTION_HANDLER = new PlaygroundJwtExceptionHandler();
+
+    /**
+     * Why the claims of a token are rejected.
+     */
+    public enum Rejection {
+        EXPIRED, PREMATURE, INVALID_ISSUER, INVALID_AUDIENCE, INSUFFICIENT_SCOPE
+    }
+
+    private final Jwt<Header, Claims> claims;
+    private final Rejection rejection;
+    private final JwtError error;
+    private final JwtException exception;
+
+    private JwtValidationResult(Jwt<Header, Claims> claims, Rejection rejection, JwtException exception) {
+        this.claims = claims;
+        this.rejection = rejection;
+        this.exception = exception;
+        this.error = exception != null ? EXCEPTION_HANDLER.resolve(exception) : null;
+    }
+
+    static JwtValidationResult valid(Jwt<Header, Claims> claims) {
+        return new JwtValidationResult(claims, null, null);
+    }
+
+    static JwtValidationResult rejected(Rejection rejection, JwtException exception) {
+        return new JwtValidationResult(null, rejection, exception);
+    }
+
+    public boolean isValid() {
+        return rejection == null;
+    }
+
+    /**
+     * @return the claims of an accepted token, null if rejected
+     */
+    public Jwt<Header, Claims> getClaims() {
+        return claims;
+    }
+
+    /**
+     * @return why the token is rejected, null if accepted
+     */
+    public Rejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * @return the error of the response of a rejected token
+     */
+    public JwtError getError() {
+        return error;
+    }
+
+    /**
+     * @return the preallocated stackless exception of a rejected token
+     */
+    public JwtException getException() {
+        return exception;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidAudienceException;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidIssuerException;
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.InvalidScopeException;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtValidationResult.Rejection;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.Jwt;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.PrematureJwtException;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.SigningKeyResolver;
+import io.jsonwebtoken.UnsupportedJwtException;
+import io.jsonwebtoken.impl.crypto.DefaultJwtSignatureValidator;
+import io.jsonwebtoken.impl.crypto.JwtSignatureValidator;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.SecretKey;
+import java.security.Key;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.stream.Collectors;
+
+/**
+ * Validator of the jwt for one configuration of the ValidateJwt filter. Everything that
+ * only depends on the configuration (signing key resolver, issuer, audience and scopes) is
+ * prepared once when the route is built.
+ * <p>
+ * The token is decoded by {@link DecodedJwt} and its signature verified with the jjwt
+ * signature validator, not with the jjwt parser: the parser rejects an expired or
+ * premature token with an exception against the system time, the expiration and not
+ * before are checked by {@link #checkClaims(Jwt)} against the {@link GatewayClock}
+ * instead, without exception.
+ */
+public class JwtValidator {
+
+    public static final String SCOPE_VALIDATION_ALL = "all";
+    public static final String SCOPE_VALIDATION_ANY = "any";
+
+    /**
+     * The signature is verified before the claims (default).
+     */
+    public static final String VALIDATION_MODE_SIGNATURE_FIRST = "signature-first";
+
+    /**
+     * The claims are validated before the signature, a token with invalid claims costs no
+     * cryptographic operation.
+     */
+    public static final String VALIDATION_MODE_CLAIMS_FIRST = "claims-first";
+
+    private final String key;
+    private final FilterSigningKeyResolver filterSigningKeyResolver;
+    private final SigningKeyResolver signingKeyResolver;
+    private final String issuer;
+    private final String audience;
+    private final ScopeSet scopes;
+    private final boolean allScopes;
+    private final boolean claimsFirst;
+    private final GatewayClock clock;
+
+    private final JwtValidationResult expired;
+    private final JwtValidationResult premature;
+    private final JwtValidationResult invalidIssuer;
+    private final JwtValidationResult invalidAudience;
+    private final JwtValidationResult insufficientScope;
+
+    public JwtValidator(String key, FilterSigningKeyResolver filterSigningKeyResolver, String issuer,
+                        String audience, String scope, String scopeValidation) {
+        this(key, filterSigningKeyResolver, issuer, audience, scope, scopeValidation, VALIDATION_MODE_SIGNATURE_FIRST);
+    }
+
+    public JwtValidator(String key, FilterSigningKeyResolver filterSigningKeyResolver, String issuer,
+                        String audience, String scope, String scopeValidation, String validationMode) {
+        this(key, filterSigningKeyResolver, issuer, audience, scope, scopeValidation, validationMode, GatewayClock.system());
+    }
+
+    public JwtValidator(String key, FilterSigningKeyResolver filterSigningKeyResolver, String issuer,
+                        String audience, String scope, String scopeValidation, String validationMode, GatewayClock clock) {
+        this.key = key;
+        this.filterSigningKeyResolver = filterSigningKeyResolver;
+        this.signingKeyResolver = filterSigningKeyResolver.resolve();
+        this.issuer = issuer;
+        this.audience = audience;
+        this.scopes = ScopeSet.compile(ScopeDictionary.global(), getListFromSeparatedCommaValue(scope));
+        this.allScopes = SCOPE_VALIDATION_ALL.equalsIgnoreCase(scopeValidation);
+        this.claimsFirst = VALIDATION_MODE_CLAIMS_FIRST.equalsIgnoreCase(validationMode);
+        this.clock = clock;
+
+        this.expired = JwtValidationResult.rejected(Rejection.EXPIRED,
+                new StacklessExpiredJwtException("expired_jwt"));
+        this.premature = JwtValidationResult.rejected(Rejection.PREMATURE,
+                new StacklessPrematureJwtException("premature_jwt"));
+        this.invalidIssuer = JwtValidationResult.rejected(Rejection.INVALID_ISSUER,
+                new InvalidIssuerException(null, null, "Invalid issuer, expected " + issuer));
+        this.invalidAudience = JwtValidationResult.rejected(Rejection.INVALID_AUDIENCE,
+                new InvalidAudienceException(null, null, "Invalid audience, expected " + audience));
+        this.insufficientScope = JwtValidationResult.rejected(Rejection.INSUFFICIENT_SCOPE,
+                new InvalidScopeException(null, null, "Insufficient scope, expected " + (allScopes ? "all" : "any")
+                        + " of: " + scopes.toString()));
+    }
+
+    /**
+     * Key of the configuration, two validators with the same key validate a token the same
+     * way.
+     *
+     * @return the key of the configuration
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public FilterSigningKeyResolver getFilterSigningKeyResolver() {
+        return filterSigningKeyResolver;
+    }
+
+    /**
+     * Parse the jwt, verify its signature and validate its claims.
+     *
+     * @param jwt compact jwt
+     * @return the claims of the jwt
+     * @throws JwtException if the token is rejected
+     */
+    public Jwt<Header, Claims> validate(String jwt) {
+        JwtValidationResult result = verify(jwt);
+        if (!result.isValid()) {
+            throw result.getException();
+        }
+        return result.getClaims();
+    }
+
+    /**
+     * Parse the jwt, verify its signature and check its claims. A malformed token or an
+     * invalid signature still throws a {@link JwtException}, a rejected claim doesn't.
+     *
+     * @param jwt compact jwt
+     * @return the claims of the jwt or the rejection of its claims
+     */
+    public JwtValidationResult verify(String jwt) {
+        DecodedJwt decodedJwt = DecodedJwt.decode(jwt);
+        Jwt<Header, Claims> claims = decodedJwt.toJwt();
+        if (claimsFirst) {
+            // a token with invalid claims costs no cryptographic operation
+            JwtValidationResult rejection = checkClaims(claims);
+            if (rejection != null) {
+                return rejection;
+            }
+            verifySignatureIfSigned(decodedJwt);
+            return JwtValidationResult.valid(claims);
+        }
+        verifySignatureIfSigned(decodedJwt);
+        JwtValidationResult rejection = checkClaims(claims);
+        return rejection != null ? rejection : JwtValidationResult.valid(claims);
+    }
+
+    /**
+     * Validate jwt expiration, not before, issuer, audience and scopes (any or all).
+     *
+     * @param claims of a parsed jwt
+     * @throws JwtException if the claims are rejected
+     */
+    public void validateClaims(Jwt<Header, Claims> claims) {
+        JwtValidationResult rejection = checkClaims(claims);
+        if (rejection != null) {
+            throw rejection.getException();
+        }
+    }
+
+    /**
+     * Check jwt expiration, not before, issuer, audience and scopes (any or all).
+     *
+     * @param claims of a parsed jwt
+     * @return the preallocated rejection, or null if the claims are valid
+     */
+    public JwtValidationResult checkClaims(Jwt<Header, Claims> claims) {
+        Claims body = claims.getBody();
+        long now = clock.currentTimeMillis();
+        if (isExpired(body, now)) {
+            return expired;
+        }
+        if (isPremature(body, now)) {
+            return premature;
+        }
+        // if issuer and audience are not specified in the configuration, every token is rejected
+        if (StringUtils.isEmpty(issuer) || !issuer.equalsIgnoreCase(body.getIssuer())) {
+            return invalidIssuer;
+        }
+        if (StringUtils.isEmpty(audience) || !audience.equalsIgnoreCase(body.getAudience())) {
+            return invalidAudience;
+        }
+        // the scopes of the jwt are matched against the bitset of the configuration
+        String jwtScopes = (String) body.get("scope");
+        if (allScopes ? !scopes.matchesAll(jwtScopes) : !scopes.matchesAny(jwtScopes)) {
+            return insufficientScope;
+        }
+        return null;
+    }
+
+    /**
+     * Validate the jwt, running the verification of an asymmetric signature (RSA or EC) in
+     * the scheduler. In claims-first mode, only the signature verification runs in the
+     * scheduler. A malformed token or an invalid signature is signaled as an error of the
+     * mono, never thrown by this method.
+     *
+     * @param jwt       compact jwt
+     * @param scheduler running the signature verifications
+     * @return the claims of the jwt or the rejection of its claims
+     */
+    public Mono<JwtValidationResult> verify(String jwt, JwtVerificationScheduler scheduler) {
+        return Mono.defer(() -> offload(jwt, scheduler));
+    }
+
+    private Mono<JwtValidationResult> offload(String jwt, JwtVerificationScheduler scheduler) {
+        if (signingKeyResolver == null) {
+            return Mono.just(verify(jwt));
+        }
+        if (claimsFirst) {
+            DecodedJwt decodedJwt = DecodedJwt.decode(jwt);
+            Jwt<Header, Claims> claims = decodedJwt.toJwt();
+            JwtValidationResult rejection = checkClaims(claims);
+            if (rejection != null) {
+                return Mono.just(rejection);
+            }
+            if (!decodedJwt.isSigned()) {
+                return Mono.just(JwtValidationResult.valid(claims));
+            }
+            if (!isAsymmetric(((JwsHeader) decodedJwt.getHeader()).getAlgorithm())) {
+                verifySignature(decodedJwt);
+                return Mono.just(JwtValidationResult.valid(claims));
+            }
+            return scheduler.submit(() -> {
+                verifySignature(decodedJwt);
+                return JwtValidationResult.valid(claims);
+            });
+        }
+        if (!isAsymmetric(DecodedJwt.algorithm(jwt))) {
+            return Mono.just(verify(jwt));
+        }
+        return scheduler.submit(() -> verify(jwt));
+    }
+
+    private boolean isAsymmetric(String algorithm) {
+        if (algorithm == null) {
+            return false;
+        }
+        SignatureAlgorithm signatureAlgorithm = SignatureAlgorithm.forName(algorithm);
+        return signatureAlgorithm.isRsa() || signatureAlgorithm.isEllipticCurve();
+    }
+
+    private void verifySignatureIfSigned(DecodedJwt decodedJwt) {
+        // validate signature if signed and signinkeyresolver is available
+        if (decodedJwt.isSigned() && signingKeyResolver != null) {
+            verifySignature(decodedJwt);
+        }
+    }
+
+    private void verifySignature(DecodedJwt decodedJwt) {
+        JwsHeader header = (JwsHeader) decodedJwt.getHeader();
+        SignatureAlgorithm algorithm = SignatureAlgorithm.forName(header.getAlgorithm());
+        if (algorithm == SignatureAlgorithm.NONE) {
+            throw new MalformedJwtException("JWT has a signature but its algorithm is none");
+        }
+
+        Key key = signingKeyResolver.resolveSigningKey(header, decodedJwt.getClaims());
+        if (algorithm.isHmac() != (key instanceof SecretKey)) {
+            throw new SignatureException("Signing key is not valid for the " + algorithm.getValue() + " algorithm");
+        }
+
+        JwtSignatureValidator validator;
+        try {
+            validator = new DefaultJwtSignatureValidator(algorithm, key);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedJwtException("Unable to verify a " + algorithm.getValue() + " signature", e);
+        }
+        if (!validator.isValid(decodedJwt.getSignedContent(), decodedJwt.getSignature())) {
+            throw new SignatureException("JWT signature does not match locally computed signature");
+        }
+    }
+
+    private boolean isPremature(Claims claims, long now) {
+        Date notBefore = claims.getNotBefore();
+        return notBefore != null && now < notBefore.getTime();
+    }
+
+    private boolean isExpired(Claims claims, long now) {
+        // a token without expiration is never accepted
+        Date expirationTime = claims.getExpiration();
+        return expirationTime == null || now > expirationTime.getTime();
+    }
+
+    /**
+     * Expired token rejected by {@link #checkClaims(Jwt)}, without stack trace.
+     */
+    private static final class StacklessExpiredJwtException extends ExpiredJwtException {
+
+        private StacklessExpiredJwtException(String message) {
+            super(null, null, message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Premature token rejected by {@link #checkClaims(Jwt)}, without stack trace.
+     */
+    private static final class StacklessPrematureJwtException extends PrematureJwtException {
+
+        private StacklessPrematureJwtException(String message) {
+            super(null, null, message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    public static List<String> getListFromSeparatedCommaValue(String str) {
+        if (StringUtils.isEmpty(str)) {
+            return Collections.emptyList();
+        }
+        return Collections.list(new StringTokenizer(str.trim(), ","))
+                .stream()
+                .map(token -> (String) token).collect(Collectors.toList());
+    }
+}
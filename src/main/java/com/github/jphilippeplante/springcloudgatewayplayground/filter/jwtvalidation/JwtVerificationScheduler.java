@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import org.springframework.beans.factory.DisposableBean;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool running the jwt signature verifications out of the event loop. It has one
+ * thread per core and a bounded queue, a verification submitted when the queue is full is
+ * rejected with a {@link SaturatedException}.
+ * <p>
+ * The result of a verification is published on a non-blocking scheduler (default
+ * {@link Schedulers#parallel()}), so the rest of the filter chain never runs on the
+ * verification threads. The netty event loop of the connection is not a reactor
+ * scheduler, reactor-netty hands the writes of the response back to it.
+ */
+public class JwtVerificationScheduler implements DisposableBean {
+
+    public static final int DEFAULT_QUEUE_DEPTH = 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final Scheduler resumeScheduler;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public JwtVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_DEPTH);
+    }
+
+    public JwtVerificationScheduler(int threads, int queueDepth) {
+        this(threads, queueDepth, Schedulers.parallel());
+    }
+
+    public JwtVerificationScheduler(int threads, int queueDepth, Scheduler resumeScheduler) {
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) : new SynchronousQueue<>();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue, r -> {
+            Thread thread = new Thread(r, "jwt-verification-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.resumeScheduler = resumeScheduler;
+    }
+
+    /**
+     * Run a verification in the pool.
+     *
+     * @param verification to run
+     * @param <T>          result of the verification
+     * @return the result published on the resume scheduler, or a {@link SaturatedException}
+     * if the pool is saturated
+     */
+    public <T> Mono<T> submit(Callable<T> verification) {
+        return Mono.<T>create(sink -> {
+            try {
+                Future<?> future = executor.submit(() -> {
+                    try {
+                        sink.success(verification.call());
+                    } catch (Throwable e) {
+                        sink.error(e);
+                    }
+                });
+                sink.onCancel(() -> future.cancel(false));
+            } catch (RejectedExecutionException e) {
+                rejectedCount.increment();
+                sink.error(new SaturatedException());
+            }
+        }).publishOn(resumeScheduler);
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The verification was not run, the pool is saturated.
+     */
+    public static class SaturatedException extends RuntimeException {
+
+        public SaturatedException() {
+            super("jwt verification pool saturated", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.JwtError;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+
+import java.time.Duration;
+
+/**
+ * Bounded cache of the jwt recently rejected by a route, with the error of the rejection.
+ * A replayed token is answered with the cached error without parsing it again. An entry
+ * lives for a short time to live, so a resolved key rotation or configuration is seen
+ * quickly.
+ */
+public class RejectedTokenCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+    public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofSeconds(30);
+
+    private final long timeToLive;
+    private final ExpiringCache<JwtError> cache;
+
+    public RejectedTokenCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TIME_TO_LIVE);
+    }
+
+    public RejectedTokenCache(int maximumSize, Duration timeToLive) {
+        this(maximumSize, timeToLive, GatewayClock.system());
+    }
+
+    public RejectedTokenCache(int maximumSize, Duration timeToLive, GatewayClock clock) {
+        this.timeToLive = timeToLive.toMillis();
+        this.cache = new ExpiringCache<>(maximumSize, clock);
+    }
+
+    /**
+     * Get the error of a token rejected recently.
+     *
+     * @param key key of the token, see {@link TokenDigest#key(String, String)}
+     * @return the error or null if not found or expired
+     */
+    public JwtError get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Keep the error of a rejected token for the time to live.
+     *
+     * @param key   key of the token, see {@link TokenDigest#key(String, String)}
+     * @param error error of the rejection
+     */
+    public void put(String key, JwtError error) {
+        if (timeToLive > 0) {
+            cache.put(key, error, cache.currentTimeMillis() + timeToLive);
+        }
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return number of requests answered from the cache
+     */
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+}
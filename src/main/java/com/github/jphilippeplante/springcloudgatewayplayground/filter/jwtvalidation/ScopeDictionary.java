@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+/**
+ * Dictionary of the scopes required by the routes, each scope has a bit index in the
+ * {@link ScopeSet}. Only the scopes of the routes are interned when the routes are built,
+ * the scopes of a token are looked up in place without copy: a scope unknown by every route
+ * can't satisfy any of them and has no index.
+ * <p>
+ * The table is copied on write, the lookups read it without lock.
+ */
+public class ScopeDictionary {
+
+    private static final ScopeDictionary GLOBAL = new ScopeDictionary();
+
+    private volatile Table table = new Table(16);
+
+    /**
+     * @return the dictionary shared by the routes of the gateway
+     */
+    public static ScopeDictionary global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Index of a scope, a new index is assigned if the scope is not known.
+     *
+     * @param scope to intern
+     * @return the bit index of the scope
+     */
+    public synchronized int intern(String scope) {
+        int index = indexOf(scope, 0, scope.length());
+        if (index >= 0) {
+            return index;
+        }
+        Table current = table;
+        Table next = current.size * 2 >= current.keys.length ? current.resize() : current.copy();
+        index = next.size;
+        next.add(scope, index);
+        table = next;
+        return index;
+    }
+
+    /**
+     * Index of the scope between {@code start} and {@code end} of a string, without copy.
+     *
+     * @return the bit index of the scope or -1 if not known
+     */
+    public int indexOf(String value, int start, int end) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+        int slot = hash(value, start, end) & mask;
+        int length = end - start;
+        String key;
+        while ((key = current.keys[slot]) != null) {
+            if (key.length() == length && key.regionMatches(0, value, start, length)) {
+                return current.indexes[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    private static int hash(String value, int start, int end) {
+        // same as String.hashCode for the region, spread for the power of two table
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + value.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+
+        private final String[] keys;
+        private final int[] indexes;
+        private int size;
+
+        private Table(int capacity) {
+            this.keys = new String[capacity];
+            this.indexes = new int[capacity];
+        }
+
+        private Table copy() {
+            Table copy = new Table(keys.length);
+            System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+            System.arraycopy(indexes, 0, copy.indexes, 0, indexes.length);
+            copy.size = size;
+            return copy;
+        }
+
+        private Table resize() {
+            Table resized = new Table(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    resized.add(keys[i], indexes[i]);
+                }
+            }
+            return resized;
+        }
+
+        private void add(String key, int index) {
+            int mask = keys.length - 1;
+            int slot = hash(key, 0, key.length()) & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            indexes[slot] = index;
+            size++;
+        }
+    }
+}
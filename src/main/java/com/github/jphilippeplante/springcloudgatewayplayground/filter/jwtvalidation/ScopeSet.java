@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Scopes required by a route, compiled once into a bitset of the {@link ScopeDictionary}
+ * indexes. The comma separated scopes of a token are compiled in place into a bitset of
+ * the same words, without splitting the claim, and matched word by word.
+ */
+public final class ScopeSet {
+
+    private final ScopeDictionary dictionary;
+    private final List<String> scopes;
+    private final long[] words;
+
+    private ScopeSet(ScopeDictionary dictionary, List<String> scopes, long[] words) {
+        this.dictionary = dictionary;
+        this.scopes = scopes;
+        this.words = words;
+    }
+
+    /**
+     * Intern the scopes of a route in the dictionary and build their bitset.
+     *
+     * @param dictionary of the scopes
+     * @param scopes     required by the route
+     * @return the compiled scopes
+     */
+    public static ScopeSet compile(ScopeDictionary dictionary, Collection<String> scopes) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(scopes));
+        int[] indexes = new int[distinct.size()];
+        int max = -1;
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = dictionary.intern(distinct.get(i));
+            max = Math.max(max, indexes[i]);
+        }
+        long[] words = new long[(max >> 6) + 1];
+        for (int index : indexes) {
+            words[index >> 6] |= 1L << index;
+        }
+        return new ScopeSet(dictionary, Collections.unmodifiableList(distinct), words);
+    }
+
+    public boolean isEmpty() {
+        return scopes.isEmpty();
+    }
+
+    /**
+     * @param tokenScopes comma separated scopes of the token
+     * @return true if the token has at least one of the scopes
+     */
+    public boolean matchesAny(String tokenScopes) {
+        long[] token = tokenScopes == null ? null : compileToken(tokenScopes, false);
+        if (token == null) {
+            return false;
+        }
+        for (int i = 0; i < words.length; i++) {
+            if ((token[i] & words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param tokenScopes comma separated scopes of the token
+     * @return true if every scope of the token is one of the scopes, a token without
+     * scope always matches
+     */
+    public boolean matchesAll(String tokenScopes) {
+        if (tokenScopes == null) {
+            return true;
+        }
+        long[] token = compileToken(tokenScopes, true);
+        if (token == null) {
+            return false;
+        }
+        for (int i = 0; i < words.length; i++) {
+            if ((token[i] & words[i]) != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return scopes.toString();
+    }
+
+    /**
+     * Bitset of the scopes of a token, on the words of the route. A scope without a bit in
+     * the words of the route can't be one of its scopes.
+     *
+     * @param strict true to return null for such a scope, false to ignore it
+     * @return the words of the token scopes, null if strict and a scope is not one of the route
+     */
+    private long[] compileToken(String tokenScopes, boolean strict) {
+        long[] token = new long[words.length];
+        int end = trimmedEnd(tokenScopes);
+        int start = trimmedStart(tokenScopes, end);
+        while (start < end) {
+            int comma = nextComma(tokenScopes, start, end);
+            if (comma > start) {
+                int index = dictionary.indexOf(tokenScopes, start, comma);
+                if (index >= 0 && (index >> 6) < words.length) {
+                    token[index >> 6] |= 1L << index;
+                } else if (strict) {
+                    return null;
+                }
+            }
+            start = comma + 1;
+        }
+        return token;
+    }
+
+    private static int nextComma(String value, int start, int end) {
+        int comma = value.indexOf(',', start);
+        return comma < 0 || comma > end ? end : comma;
+    }
+
+    private static int trimmedEnd(String value) {
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static int trimmedStart(String value, int end) {
+        int start = 0;
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+
+/**
+ * A jwt parsed by a ValidateJwt filter, kept in the exchange attributes so the next
+ * ValidateJwt filters of the chain don't parse it again.
+ */
+public class ValidatedJwt {
+
+    private final String token;
+    private final FilterSigningKeyResolver filterSigningKeyResolver;
+    private final Jwt<Header, Claims> claims;
+
+    public ValidatedJwt(String token, FilterSigningKeyResolver filterSigningKeyResolver, Jwt<Header, Claims> claims) {
+        this.token = token;
+        this.filterSigningKeyResolver = filterSigningKeyResolver;
+        this.claims = claims;
+    }
+
+    /**
+     * The claims can be reused only for the same token and if its signature was verified
+     * with the same signing key resolver.
+     *
+     * @param token              compact jwt of the request
+     * @param filterSigningKeyResolver of the filter
+     * @return true if the claims can be reused
+     */
+    public boolean isReusableFor(String token, FilterSigningKeyResolver filterSigningKeyResolver) {
+        return this.filterSigningKeyResolver == filterSigningKeyResolver && this.token.equals(token);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Jwt<Header, Claims> getClaims() {
+        return claims;
+    }
+}
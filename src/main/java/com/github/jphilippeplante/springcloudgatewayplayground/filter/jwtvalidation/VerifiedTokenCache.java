@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+
+import java.util.Date;
+
+/**
+ * Bounded cache of the claims of jwt already validated by a route. An entry is evicted
+ * at the expiration time of its token, so a cached token is never accepted after its
+ * {@code exp}. Tokens without expiration are not cached.
+ */
+public class VerifiedTokenCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+
+    private final ExpiringCache<Jwt<Header, Claims>> cache;
+
+    public VerifiedTokenCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public VerifiedTokenCache(int maximumSize) {
+        this(maximumSize, GatewayClock.system());
+    }
+
+    public VerifiedTokenCache(int maximumSize, GatewayClock clock) {
+        this.cache = new ExpiringCache<>(maximumSize, clock);
+    }
+
+    /**
+     * Get the claims of a token validated previously.
+     *
+     * @param key key of the token, see {@link TokenDigest#key(String, String)}
+     * @return the claims or null if not found or expired
+     */
+    public Jwt<Header, Claims> get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Keep the claims of a validated token until its expiration.
+     *
+     * @param key    key of the token, see {@link TokenDigest#key(String, String)}
+     * @param claims claims of the validated token
+     */
+    public void put(String key, Jwt<Header, Claims> claims) {
+        Date expiration = claims.getBody().getExpiration();
+        if (expiration != null) {
+            cache.put(key, claims, expiration.getTime());
+        }
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+}
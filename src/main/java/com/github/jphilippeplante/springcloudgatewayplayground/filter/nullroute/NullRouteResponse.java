@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.nullroute;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Immutable response of a {@code nullroute://} uri, compiled once per uri: the status of
+ * the host, the headers of the {@code header} parameters ({@code header=Cache-Control:no-store})
+ * and the body of the {@code body} (inline) or {@code bodyResource} (ie
+ * {@code classpath:nullroute/deny.json}) parameter. The body is a read-only direct buffer
+ * shared by the responses, a request only wraps it.
+ */
+public final class NullRouteResponse {
+
+    public static final String HEADER = "header";
+    public static final String BODY = "body";
+    public static final String BODY_RESOURCE = "bodyResource";
+
+    private final HttpStatus status;
+    private final HttpHeaders headers;
+    private final ByteBuffer body;
+
+    private NullRouteResponse(HttpStatus status, HttpHeaders headers, ByteBuffer body) {
+        this.status = status;
+        this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+        this.body = body;
+    }
+
+    /**
+     * @param uri            {@code nullroute://} uri of the route
+     * @param resourceLoader loader of the body resources
+     * @return the response of the uri
+     */
+    public static NullRouteResponse of(URI uri, ResourceLoader resourceLoader) {
+        MultiValueMap<String, String> parameters = UriComponentsBuilder.fromUri(uri).build().getQueryParams();
+
+        HttpHeaders headers = new HttpHeaders();
+        List<String> headerParameters = parameters.get(HEADER);
+        if (headerParameters != null) {
+            for (String header : headerParameters) {
+                String decoded = decode(header);
+                int separator = decoded.indexOf(':');
+                if (separator < 1) {
+                    throw new IllegalArgumentException("header must be <name>:<value>, was " + decoded);
+                }
+                headers.add(decoded.substring(0, separator).trim(), decoded.substring(separator + 1).trim());
+            }
+        }
+
+        byte[] bytes = null;
+        String body = parameters.getFirst(BODY);
+        String bodyResource = parameters.getFirst(BODY_RESOURCE);
+        if (!StringUtils.isEmpty(bodyResource)) {
+            bytes = load(resourceLoader.getResource(decode(bodyResource)));
+        } else if (body != null) {
+            bytes = decode(body).getBytes(StandardCharsets.UTF_8);
+            if (headers.getContentType() == null) {
+                headers.setContentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8));
+            }
+        }
+
+        ByteBuffer buffer = null;
+        if (bytes != null) {
+            headers.setContentLength(bytes.length);
+            buffer = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+            buffer.flip();
+            buffer = buffer.asReadOnlyBuffer();
+        }
+        return new NullRouteResponse(parseStatus(uri.getHost()), headers, buffer);
+    }
+
+    public HttpStatus getStatus() {
+        return status;
+    }
+
+    public HttpHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return size of the body, -1 without body
+     */
+    public int getContentLength() {
+        return body == null ? -1 : body.remaining();
+    }
+
+    /**
+     * Write the status, the headers and the body in a response, without body for a HEAD request.
+     */
+    public Mono<Void> writeTo(HttpMethod method, ServerHttpResponse response) {
+        response.setStatusCode(status);
+        HttpHeaders responseHeaders = response.getHeaders();
+        headers.forEach((name, values) -> {
+            for (String value : values) {
+                responseHeaders.add(name, value);
+            }
+        });
+        if (body == null || method == HttpMethod.HEAD) {
+            return Mono.empty();
+        }
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(body.duplicate())));
+    }
+
+    /**
+     * The status is the host of the uri, 200 if it isn't a known http status.
+     */
+    private static HttpStatus parseStatus(String host) {
+        if (host == null || host.isEmpty() || host.length() > 3) {
+            return HttpStatus.OK;
+        }
+        int code = 0;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c < '0' || c > '9') {
+                return HttpStatus.OK;
+            }
+            code = code * 10 + (c - '0');
+        }
+        HttpStatus status = HttpStatus.resolve(code);
+        return status == null ? HttpStatus.OK : status;
+    }
+
+    private static String decode(String value) {
+        return StringUtils.uriDecode(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] load(Resource resource) {
+        try (InputStream in = resource.getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the body of a nullroute: " + resource, e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.routing;
+
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/**
+ * Terminal handler of the requests of a scheme (ie {@code amqp://}, {@code nullroute://}),
+ * called by the {@code SchemeRoutingFilter} instead of a global filter per scheme.
+ */
+public interface RoutingHandler {
+
+    /**
+     * @return scheme of the request urls of the handler, unique among the handlers
+     */
+    String getScheme();
+
+    /**
+     * Route a request, the exchange is already marked as routed. The filter chain continues
+     * once the returned mono completes.
+     *
+     * @param exchange current exchange, its {@code GATEWAY_REQUEST_URL_ATTR} has the scheme of the handler
+     * @return completes when the response is set
+     */
+    Mono<Void> handle(ServerWebExchange exchange);
+}
@@ -17,13 +17,13 @@
 package com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.support;
 
 import com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryConfig;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
 import org.springframework.util.ConcurrentReferenceHashMap;
 import org.springframework.util.StringUtils;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryRoutePredicateFactory.BY_ENROLLMENT;
 import static com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryRoutePredicateFactory.BY_TIME;
@@ -39,7 +39,16 @@ public class CanaryRoutePredicateFactorySupport {
     private static final String INVALID_CONFIG = "Invalid Canary configuration of %s";
 
     private Map<String, CanaryBetaConfiguration> configurations = new ConcurrentReferenceHashMap<>();
-    private Map<String, LocalDateTime> lastUpdatedIncrements = new ConcurrentReferenceHashMap<>();
+    private Map<String, Long> lastUpdatedIncrements = new ConcurrentReferenceHashMap<>();
+    private final GatewayClock clock;
+
+    public CanaryRoutePredicateFactorySupport() {
+        this(GatewayClock.system());
+    }
+
+    public CanaryRoutePredicateFactorySupport(GatewayClock clock) {
+        this.clock = clock;
+    }
 
     /**
      * Increase ratio for the the configuration provided.
@@ -59,7 +68,7 @@ public class CanaryRoutePredicateFactorySupport {
                 long numberOfIncrement = getNumberOfIncrements(configuration, betaId);
 
                 configuration.increaseRatioByIncrement(numberOfIncrement);
-                lastUpdatedIncrements.put(betaId, LocalDateTime.now());
+                lastUpdatedIncrements.put(betaId, clock.currentTimeMillis());
             }
         }
     }
@@ -126,7 +135,7 @@ public class CanaryRoutePredicateFactorySupport {
         }
 
         configurations.put(betaId, configuration);
-        lastUpdatedIncrements.put(betaId, LocalDateTime.now());
+        lastUpdatedIncrements.put(betaId, clock.currentTimeMillis());
 
         return configuration;
     }
@@ -150,18 +159,18 @@ public class CanaryRoutePredicateFactorySupport {
      */
     private long getNumberOfIncrements(CanaryBetaConfiguration configuration,
                                        String betaId) {
-        LocalDateTime now = LocalDateTime.now();
-        LocalDateTime lastUpdatedIncrements = this.lastUpdatedIncrements.get(betaId);
+        long now = clock.currentTimeMillis();
+        Long lastUpdatedIncrements = this.lastUpdatedIncrements.get(betaId);
 
         if (lastUpdatedIncrements == null) {
             lastUpdatedIncrements = now;
         }
 
-        long fromLastUpdate = lastUpdatedIncrements.until(now, ChronoUnit.SECONDS);
+        long fromLastUpdate = TimeUnit.MILLISECONDS.toSeconds(now - lastUpdatedIncrements);
         fromLastUpdate = fromLastUpdate < 1 ? 1 : fromLastUpdate; // to avoid 0
 
         long nbOfIncrements = fromLastUpdate
-                / configuration.getEvery().get(ChronoUnit.SECONDS);
+                / configuration.getEvery().getSeconds();
         nbOfIncrements = nbOfIncrements < 1 ? 1 : nbOfIncrements; // to avoid 0
 
         double maxOfIncrements = (1 - configuration.getRatio())
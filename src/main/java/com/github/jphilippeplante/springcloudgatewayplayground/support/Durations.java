@@ -0,0 +1,47 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+import java.time.Duration;
+
+/**
+ * Parse the durations of the configuration.
+ */
+public final class Durations {
+
+    private Durations() {
+    }
+
+    /**
+     * Parse a duration in milliseconds (ms), seconds (s), minutes (m), hours (h) or days (d)
+     * (ie {@code 200ms}, {@code 15m}).
+     *
+     * @param duration the duration to parse
+     * @return the duration
+     */
+    public static Duration parse(String duration) {
+        String value = duration.trim().toUpperCase();
+        if (value.endsWith("MS")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2).trim()));
+        }
+        if (value.endsWith("D")) {
+            return Duration.parse("P" + value);
+        }
+        return Duration.parse("PT" + value);
+    }
+}
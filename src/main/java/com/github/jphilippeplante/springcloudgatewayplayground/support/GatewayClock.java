@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+/**
+ * Clock read by the filters and the predicates of the gateway, in epoch milliseconds.
+ */
+public interface GatewayClock {
+
+    /**
+     * @return the current time in milliseconds since the epoch
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return the clock reading the system time on each call
+     */
+    static GatewayClock system() {
+        return System::currentTimeMillis;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generator of the request ids of the gateway, without lock nor shared random. An id is 32
+ * hex characters: the time of the gateway clock (12), the node (8), the slot of the thread
+ * (4) and a counter of the thread (8). The ids of a thread are increasing, the ids of
+ * different threads or nodes differ by their slot or node. The counter of a thread starts at a
+ * random value so a slot reused after 65536 threads doesn't repeat the ids of its previous
+ * thread. The only allocation is the string.
+ */
+public class RequestIdGenerator {
+
+    public static final int LENGTH = 32;
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private final GatewayClock clock;
+    private final int node;
+    private final AtomicInteger slots = new AtomicInteger();
+    private final ThreadLocal<ThreadState> states = ThreadLocal.withInitial(() -> new ThreadState(slots.getAndIncrement()));
+
+    /**
+     * @param clock clock of the gateway
+     */
+    public RequestIdGenerator(GatewayClock clock) {
+        this(clock, new SecureRandom().nextInt());
+    }
+
+    /**
+     * @param clock clock of the gateway
+     * @param node  id of the gateway, unique among the nodes
+     */
+    public RequestIdGenerator(GatewayClock clock, int node) {
+        this.clock = clock;
+        this.node = node;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * @return a new id
+     */
+    public String nextId() {
+        ThreadState state = states.get();
+        // never backward, the counter orders the ids of the same millisecond
+        long now = clock.currentTimeMillis();
+        if (now > state.lastMillis) {
+            state.lastMillis = now;
+        }
+        char[] chars = state.chars;
+        putHex(chars, 0, state.lastMillis, 12);
+        putHex(chars, 12, node, 8);
+        putHex(chars, 20, state.slot, 4);
+        putHex(chars, 24, state.counter++, 8);
+        return new String(chars);
+    }
+
+    private static void putHex(char[] chars, int offset, long value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    private static final class ThreadState {
+
+        private final char[] chars = new char[LENGTH];
+        private final int slot;
+        private long lastMillis;
+        private int counter;
+
+        private ThreadState(int slot) {
+            this.slot = slot & 0xffff;
+            this.counter = ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+/**
+ * Parse the sizes of the configuration.
+ */
+public final class Sizes {
+
+    private Sizes() {
+    }
+
+    /**
+     * Parse a size in bytes, kilobytes (kb), megabytes (mb) or gigabytes (gb) (ie {@code 512kb}).
+     *
+     * @param size the size to parse
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the size is not a positive number or zero
+     */
+    public static long parse(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("kb")) {
+            unit = 1024;
+        } else if (value.endsWith("mb")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("gb")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 2);
+        } else if (value.endsWith("b")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long bytes = Long.parseLong(value.trim());
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Size must not be negative: " + size);
+        }
+        return Math.multiplyExact(bytes, unit);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+import org.springframework.beans.factory.DisposableBean;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coarse-grained {@link GatewayClock}, a ticker updates the time every tick and the
+ * requests only read a volatile long.
+ */
+public class TickingGatewayClock implements GatewayClock, DisposableBean {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    private final ScheduledExecutorService ticker;
+    private volatile long now = System.currentTimeMillis();
+
+    public TickingGatewayClock() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    public TickingGatewayClock(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gateway-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void destroy() {
+        ticker.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.exception;
+
+import io.jsonwebtoken.SignatureException;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class JwtErrorTest {
+
+    @Test
+    public void testCatalogueIsShared() {
+        assertSame(JwtError.invalidToken(), JwtError.invalidToken());
+        assertEquals("{\"error\":\"invalid_token\"}", JwtError.invalidToken().toJson());
+        assertEquals(HttpStatus.UNAUTHORIZED, JwtError.invalidToken().getStatus());
+    }
+
+    @Test
+    public void testDescriptionAndStatusAreCopies() {
+        JwtError error = JwtError.insufficientScope().description("Insufficient scope, expected any of: [\"a\"]");
+
+        assertEquals("{\"error\":\"insufficient_scope\",\"error_description\":\"Insufficient scope, expected any of: [\\\"a\\\"]\"}",
+                error.toJson());
+        assertEquals("{\"error\":\"insufficient_scope\"}", JwtError.insufficientScope().toJson());
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, JwtError.invalidToken().status(HttpStatus.INTERNAL_SERVER_ERROR).getStatus());
+        assertEquals(HttpStatus.UNAUTHORIZED, JwtError.invalidToken().getStatus());
+    }
+
+    @Test
+    public void testBodyIsReadOnly() {
+        ByteBuffer body = JwtError.invalidRequest().getBody();
+        body.position(body.limit());
+
+        assertTrue(body.isReadOnly());
+        assertEquals("{\"error\":\"invalid_request\"}", JwtError.invalidRequest().toJson());
+    }
+
+    @Test
+    public void testUnresolvedSigningKeyIsUnauthorized() {
+        JwtError error = new PlaygroundJwtExceptionHandler().resolve(new UnresolvedSigningKeyException("No signing key for kid a"));
+
+        assertEquals(HttpStatus.UNAUTHORIZED, error.getStatus());
+        assertEquals("{\"error\":\"invalid_token\"}", error.toJson());
+    }
+
+    @Test
+    public void testWrite() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest
+                .method(HttpMethod.GET, URI.create("http://localhost/jwtvalidation")).build());
+
+        new PlaygroundJwtExceptionHandler().handle(exchange, new SignatureException("invalid")).block();
+
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, exchange.getResponse().getStatusCode());
+        assertEquals("Bearer", exchange.getResponse().getHeaders().getFirst("WWW-Authenticate"));
+        assertEquals("{\"error\":\"invalid_token\"}", exchange.getResponse().getBodyAsString().block());
+    }
+}
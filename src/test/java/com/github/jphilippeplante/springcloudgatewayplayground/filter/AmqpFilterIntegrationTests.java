@@ -0,0 +1,88 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.PlaygroundConfiguration;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpEnvelopes;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.BaseWebClientTests;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.EmbeddedAmqpBroker;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+/**
+ * The amqp routes of the {@code embedded-amqp} profile against an in-memory broker.
+ *
+ * @author Jean-Philippe Plante
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = RANDOM_PORT)
+@DirtiesContext
+@ActiveProfiles(EmbeddedAmqpBroker.PROFILE)
+public class AmqpFilterIntegrationTests extends BaseWebClientTests {
+
+    private static final String QUEUE = "gateway.embedded";
+
+    @ClassRule
+    public static EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Test
+    public void rawMessageIsPublished() {
+        assertPublished("/amqp/raw", "raw body");
+    }
+
+    @Test
+    public void confirmedMessageIsPublished() {
+        assertPublished("/amqp/confirm", "confirmed body");
+    }
+
+    @Test
+    public void batchedMessageIsPublished() {
+        assertPublished("/amqp/batch", "batched body");
+    }
+
+    private void assertPublished(String path, String body) {
+        testClient.post().uri(path)
+                .contentType(MediaType.TEXT_PLAIN)
+                .syncBody(body)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.ACCEPTED);
+
+        Message message = rabbitTemplate.receive(QUEUE, DURATION.toMillis());
+        assertThat(message).isNotNull();
+        assertThat(new String(message.getBody(), StandardCharsets.UTF_8)).isEqualTo(body);
+        assertThat(message.getMessageProperties().getContentType()).startsWith(MediaType.TEXT_PLAIN_VALUE);
+        assertThat(message.getMessageProperties().getHeaders().get(AmqpEnvelopes.METHOD_HEADER)).isEqualTo("POST");
+    }
+
+    @EnableAutoConfiguration
+    @SpringBootConfiguration
+    @Import({DefaultTestConfig.class, PlaygroundConfiguration.class})
+    public static class TestConfig {
+
+        @Bean
+        public Queue embeddedQueue() {
+            return new Queue(QUEUE, false);
+        }
+    }
+}
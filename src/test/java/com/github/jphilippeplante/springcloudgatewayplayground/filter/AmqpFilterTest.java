@@ -1,40 +1,96 @@
 package com.github.jphilippeplante.springcloudgatewayplayground.filter;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpBatchPublisher;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpEnvelopes;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpPartitioner;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpRpcClient;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.AmqpSpool;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublishLimiter;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.PublisherConfirmRegistry;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.RequestBodyAggregator;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp.SpooledMessage;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.core.AsyncAmqpTemplate;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
 import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.route.Route;
 import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.messaging.Message;
 import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
 import org.springframework.mock.web.server.MockServerWebExchange;
 import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.StringUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import org.springframework.web.util.UriComponentsBuilder;
 import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.ByteArrayInputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
 import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR;
@@ -49,6 +105,8 @@ public class AmqpFilterTest {
     private ApplicationContext applicationContext;
     @Mock
     private RabbitTemplate mockRabbitTemplate;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Test
     public void testFilterInvalidRoute() {
@@ -76,13 +134,13 @@ public class AmqpFilterTest {
         ServerWebExchange webExchange = testFilter(value);
         assertTrue(ServerWebExchangeUtils.isAlreadyRouted(webExchange));
         assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
-        verify(mockRabbitTemplate).correlationConvertAndSend(any(Message.class), any(CorrelationData.class));
+        verify(mockRabbitTemplate).convertAndSend(any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
     }
 
     @Test
     public void testFilterRabbitTemplateError() {
         when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
-        doThrow(new AmqpConnectException("AmqpConnectException", null)).when(mockRabbitTemplate).correlationConvertAndSend(any(Message.class), any(CorrelationData.class));
+        doThrow(new AmqpConnectException("AmqpConnectException", null)).when(mockRabbitTemplate).convertAndSend(any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
 
         Route value = Route.builder()
                 .id("1")
@@ -110,7 +168,7 @@ public class AmqpFilterTest {
         ServerWebExchange webExchange = testFilter(value);
         assertTrue(ServerWebExchangeUtils.isAlreadyRouted(webExchange));
         assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
-        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(CorrelationData.class));
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
     }
 
     @Test
@@ -127,7 +185,7 @@ public class AmqpFilterTest {
         ServerWebExchange webExchange = testFilter(value);
         assertTrue(ServerWebExchangeUtils.isAlreadyRouted(webExchange));
         assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
-        verify(mockRabbitTemplate).convertAndSend(eq("myexchange"), eq("myrouting"), any(Message.class), any(CorrelationData.class));
+        verify(mockRabbitTemplate).convertAndSend(eq("myexchange"), eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
     }
 
     @Test
@@ -191,11 +249,629 @@ public class AmqpFilterTest {
         assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
     }
 
+    @Test
+    public void testFilterBodyTooLarge() {
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&maxBodySize=4"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(value, "mybody");
+        assertTrue(ServerWebExchangeUtils.isAlreadyRouted(webExchange));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, webExchange.getResponse().getStatusCode());
+        verifyZeroInteractions(mockRabbitTemplate);
+    }
+
+    @Test
+    public void testFilterMaxBodySizeOnlyFromTheRoute() {
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&maxBodySize=4"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post?maxBodySize=100mb"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .body("mybody");
+        ServerWebExchange webExchange = testFilter(new AmqpFilter(applicationContext), value, request);
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, webExchange.getResponse().getStatusCode());
+        verifyZeroInteractions(mockRabbitTemplate);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFilterReservedParametersAreNotHeaders() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&maxBodySize=1kb&myheader=myvalue"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(value, "mybody");
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+
+        ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals("myvalue", message.getValue().getHeaders().get("myheader"));
+        assertFalse(message.getValue().getHeaders().containsKey("routingKey"));
+        assertFalse(message.getValue().getHeaders().containsKey("maxBodySize"));
+        assertEquals("mybody", ReflectionTestUtils.getField(message.getValue().getPayload(), "body"));
+    }
+
+    @Test
+    public void testFilterConfirmedMessage() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        confirmMessages(true);
+
+        ServerWebExchange webExchange = testFilter(confirmRoute("200ms"));
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testFilterNackedMessage() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        confirmMessages(false);
+
+        ServerWebExchange webExchange = testFilter(confirmRoute("200ms"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, webExchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testFilterUnconfirmedMessage() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        CachingConnectionFactory connectionFactory = mock(CachingConnectionFactory.class);
+        when(connectionFactory.isPublisherConfirms()).thenReturn(true);
+        when(mockRabbitTemplate.getConnectionFactory()).thenReturn(connectionFactory);
+
+        ServerWebExchange webExchange = testFilter(confirmRoute("50ms"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterConfirmWhenSaturated() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        confirmMessages(true);
+        PublisherConfirmRegistry confirms = new PublisherConfirmRegistry(Schedulers.fromExecutor(task -> {
+            throw new RejectedExecutionException();
+        }));
+        AmqpFilter filter = new AmqpFilter(applicationContext, RequestBodyAggregator.DEFAULT_MAX_BODY_SIZE, confirms,
+                new AmqpBatchPublisher(), new AmqpRpcClient(), null, new PublishLimiter(), new RequestIdGenerator(GatewayClock.system()));
+
+        ServerWebExchange webExchange = testFilter(filter, confirmRoute("200ms"), null);
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate, never()).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals(0, confirms.getPendingCount());
+    }
+
+    @Test
+    public void testFilterConfirmWithoutPublisherConfirms() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        when(mockRabbitTemplate.getConnectionFactory()).thenReturn(mock(CachingConnectionFactory.class));
+
+        ServerWebExchange webExchange = testFilter(confirmRoute("50ms"));
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate, never()).setConfirmCallback(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFilterBatchedMessage() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        when(mockRabbitTemplate.invoke(any())).thenAnswer(invocation ->
+                invocation.<RabbitOperations.OperationsCallback<Object>>getArgument(0).doInRabbit(mockRabbitTemplate));
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?exchange=myexchange&routingKey=myrouting&batch=true"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(value);
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate).convertAndSend(eq("myexchange"), eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterTargetIsCachedUntilRoutesRefresh() {
+        when(applicationContext.getBean(eq("myRabbitTemplate"), eq(RabbitTemplate.class))).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://myRabbitTemplate?exchange=myexchange&routingKey=myrouting"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpFilter filter = new AmqpFilter(applicationContext);
+        testFilter(filter, value, "first");
+        testFilter(filter, value, "second");
+        verify(applicationContext, times(1)).getBean(eq("myRabbitTemplate"), eq(RabbitTemplate.class));
+        verify(mockRabbitTemplate, times(2)).convertAndSend(eq("myexchange"), eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+
+        filter.onApplicationEvent(new RefreshRoutesEvent(this));
+        testFilter(filter, value, "third");
+        verify(applicationContext, times(2)).getBean(eq("myRabbitTemplate"), eq(RabbitTemplate.class));
+    }
+
+    @Test
+    public void testFilterUnknownRabbitTemplateBeanIsResolvedOnce() {
+        when(applicationContext.getBean(eq("myRabbitTemplate"), eq(RabbitTemplate.class))).thenThrow(new NoSuchBeanDefinitionException("myRabbitTemplate"));
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://myRabbitTemplate?routingKey=myrouting"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpFilter filter = new AmqpFilter(applicationContext);
+        assertEquals(HttpStatus.ACCEPTED, testFilter(filter, value, (String) null).getResponse().getStatusCode());
+        assertEquals(HttpStatus.ACCEPTED, testFilter(filter, value, (String) null).getResponse().getStatusCode());
+        verify(applicationContext, times(1)).getBean(eq("myRabbitTemplate"), eq(RabbitTemplate.class));
+    }
+
+    @Test
+    public void testFilterRawFormat() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw&headers=X-Allowed&myheader=myvalue"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        byte[] body = {(byte) 0xff, 0, (byte) 0xc3, 0x28};
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header("X-Allowed", "allowed")
+                .header("X-Other", "other")
+                .body(Flux.just(new DefaultDataBufferFactory().wrap(body)));
+        ServerWebExchange webExchange = testFilter(new AmqpFilter(applicationContext), value, request);
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+
+        ArgumentCaptor<org.springframework.amqp.core.Message> message = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        MessageProperties properties = message.getValue().getMessageProperties();
+        assertArrayEquals(body, message.getValue().getBody());
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM_VALUE, properties.getContentType());
+        assertEquals("allowed", properties.getHeaders().get("X-Allowed"));
+        assertEquals("myvalue", properties.getHeaders().get("myheader"));
+        assertEquals("POST", properties.getHeaders().get(AmqpEnvelopes.METHOD_HEADER));
+        assertFalse(properties.getHeaders().containsKey("X-Other"));
+        assertFalse(properties.getHeaders().containsKey("format"));
+    }
+
+    @Test
+    public void testFilterCborFormat() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=cbor&headers=x-allowed"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .header("X-Allowed", "allowed")
+                .header("X-Other", "other")
+                .body("mybody");
+        testFilter(new AmqpFilter(applicationContext), value, request);
+
+        ArgumentCaptor<org.springframework.amqp.core.Message> message = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals(AmqpEnvelopes.CBOR_CONTENT_TYPE, message.getValue().getMessageProperties().getContentType());
+        JsonNode envelope = new ObjectMapper(new CBORFactory()).readTree(message.getValue().getBody());
+        assertEquals("POST", envelope.get("method").asText());
+        assertEquals("allowed", envelope.get("headers").get("x-allowed").asText());
+        assertEquals(1, envelope.get("headers").size());
+        assertArrayEquals("mybody".getBytes(StandardCharsets.UTF_8), envelope.get("body").binaryValue());
+    }
+
+    @Test
+    public void testFilterJsonFormatWithHeaders() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&headers=X-Allowed"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .header("X-Allowed", "allowed")
+                .header("X-Other", "other")
+                .body("mybody");
+        testFilter(new AmqpFilter(applicationContext), value, request);
+
+        ArgumentCaptor<Message> message = ArgumentCaptor.forClass(Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals(Collections.singletonMap("X-Allowed", "allowed"),
+                ReflectionTestUtils.getField(message.getValue().getPayload(), "headers"));
+    }
+
+    @Test
+    public void testFilterRpcReply() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        AsyncAmqpTemplate asyncTemplate = mock(AsyncAmqpTemplate.class);
+        SettableListenableFuture<org.springframework.amqp.core.Message> reply = new SettableListenableFuture<>();
+        reply.set(MessageBuilder.withBody("myreply".getBytes(StandardCharsets.UTF_8))
+                .setContentType(MediaType.TEXT_PLAIN_VALUE)
+                .setHeader(AmqpEnvelopes.STATUS_HEADER, 201)
+                .build());
+        when(asyncTemplate.sendAndReceive(eq("myexchange"), eq("myrouting"), any(org.springframework.amqp.core.Message.class)))
+                .thenReturn(reply);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?exchange=myexchange&routingKey=myrouting&format=raw&rpc=true"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(rpcFilter(asyncTemplate), value, "mybody");
+        ServerHttpResponse response = webExchange.getResponse();
+        assertEquals(HttpStatus.CREATED, response.getStatusCode());
+        assertEquals(MediaType.TEXT_PLAIN, response.getHeaders().getContentType());
+        assertEquals("myreply", ((MockServerHttpResponse) response).getBodyAsString().block());
+    }
+
+    @Test
+    public void testFilterRpcReplyTimeout() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        AsyncAmqpTemplate asyncTemplate = mock(AsyncAmqpTemplate.class);
+        SettableListenableFuture<org.springframework.amqp.core.Message> reply = new SettableListenableFuture<>();
+        when(asyncTemplate.sendAndReceive(any(), eq("myrouting"), any(org.springframework.amqp.core.Message.class)))
+                .thenReturn(reply);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw&rpc=true&replyTimeout=50ms"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(rpcFilter(asyncTemplate), value, "mybody");
+        assertEquals(HttpStatus.GATEWAY_TIMEOUT, webExchange.getResponse().getStatusCode());
+        assertTrue(reply.isCancelled());
+    }
+
+    @Test
+    public void testFilterSpoolsMessageWhenBrokerIsDown() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        doThrow(new AmqpConnectException("AmqpConnectException", null)).when(mockRabbitTemplate)
+                .convertAndSend(eq("myrouting"), any(Object.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpSpool spool = new AmqpSpool(folder.getRoot().toPath());
+        try {
+            AmqpFilter filter = amqpFilter(new AmqpBatchPublisher(), new AmqpRpcClient(), spool, new PublishLimiter());
+            ServerWebExchange webExchange = testFilter(filter, value, "mybody");
+            assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+            assertEquals(1, spool.getAppendedCount());
+        } finally {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    public void testConfirmedMessageIsNotSpooled() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        confirmMessages(false);
+
+        AmqpSpool spool = new AmqpSpool(folder.getRoot().toPath());
+        try {
+            // a pending message, never replayed
+            spool.append(new SpooledMessage("default", "", "myrouting", MessageBuilder.withBody(new byte[1]).build()));
+            AmqpBatchPublisher batchPublisher = mock(AmqpBatchPublisher.class);
+            when(batchPublisher.publishAll(eq(mockRabbitTemplate), any())).thenReturn(Mono.never());
+            AmqpFilter filter = amqpFilter(batchPublisher, new AmqpRpcClient(), spool, new PublishLimiter());
+
+            ServerWebExchange webExchange = testFilter(filter, confirmRoute("200ms"), null);
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, webExchange.getResponse().getStatusCode());
+            verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+            assertEquals(1, spool.getAppendedCount());
+        } finally {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    public void testSpooledMessageIsReplayedWithItsIds() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        doThrow(new AmqpConnectException("AmqpConnectException", null)).when(mockRabbitTemplate)
+                .convertAndSend(eq("myrouting"), any(Object.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+        AmqpBatchPublisher batchPublisher = mock(AmqpBatchPublisher.class);
+        when(batchPublisher.publishAll(eq(mockRabbitTemplate), any())).thenAnswer(invocation -> {
+            List<Consumer<RabbitOperations>> sends = invocation.getArgument(1);
+            sends.forEach(send -> send.accept(mockRabbitTemplate));
+            return Mono.empty();
+        });
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpSpool spool = new AmqpSpool(folder.getRoot().toPath());
+        try {
+            AmqpFilter filter = amqpFilter(batchPublisher, new AmqpRpcClient(), spool, new PublishLimiter());
+            ServerWebExchange webExchange = testFilter(filter, value, "mybody");
+            assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+
+            ArgumentCaptor<org.springframework.amqp.core.Message> replayed = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+            verify(mockRabbitTemplate, timeout(5000)).send(any(), eq("myrouting"), replayed.capture());
+            MessageProperties properties = replayed.getValue().getMessageProperties();
+            String requestId = RequestIdFilter.getRequestId(webExchange);
+            assertNotNull(properties.getMessageId());
+            assertFalse(requestId.equals(properties.getMessageId()));
+            assertEquals(requestId, properties.getCorrelationId());
+            assertEquals(requestId, properties.getHeaders().get(AmqpEnvelopes.REQUEST_ID_HEADER));
+        } finally {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    public void testSpooledMessagesReachTheBrokerInOrderAfterARewind() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        CachingConnectionFactory connectionFactory = mock(CachingConnectionFactory.class);
+        when(connectionFactory.isPublisherConfirms()).thenReturn(true);
+        when(mockRabbitTemplate.getConnectionFactory()).thenReturn(connectionFactory);
+        when(mockRabbitTemplate.invoke(any())).thenAnswer(invocation ->
+                invocation.<RabbitOperations.OperationsCallback<Object>>getArgument(0).doInRabbit(mockRabbitTemplate));
+        // what the broker receives, per routing key
+        Map<String, List<String>> received = new ConcurrentHashMap<>();
+        doAnswer(invocation -> {
+            org.springframework.amqp.core.Message message = invocation.getArgument(2);
+            received.computeIfAbsent(invocation.getArgument(1), key -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(new String(message.getBody(), StandardCharsets.UTF_8));
+            return null;
+        }).when(mockRabbitTemplate).send(any(), any(), any(org.springframework.amqp.core.Message.class));
+        // slow confirms, the next runs have the messages of both routing keys
+        AtomicInteger confirms = new AtomicInteger();
+        doAnswer(invocation -> {
+            Thread.sleep(30);
+            if (confirms.incrementAndGet() == 3) {
+                throw new AmqpTimeoutException("timeout");
+            }
+            return null;
+        }).when(mockRabbitTemplate).waitForConfirmsOrDie(anyLong());
+
+        // a message every 10ms
+        AmqpSpool spool = new AmqpSpool(folder.getRoot().toPath(), AmqpSpool.DEFAULT_SEGMENT_SIZE, AmqpSpool.DEFAULT_MAXIMUM_SIZE,
+                AmqpSpool.FsyncPolicy.NEVER, AmqpSpool.DEFAULT_FSYNC_INTERVAL, 100, Duration.ofMillis(10));
+        AmqpBatchPublisher batchPublisher = new AmqpBatchPublisher();
+        try {
+            for (int i = 0; i < 20; i++) {
+                spool.append(new SpooledMessage("default", "myexchange", i % 2 == 0 ? "even" : "odd",
+                        MessageBuilder.withBody(("message" + i).getBytes(StandardCharsets.UTF_8)).build()));
+            }
+            amqpFilter(batchPublisher, new AmqpRpcClient(), spool, new PublishLimiter());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (spool.getPendingCount() > 0) {
+                assertTrue("spool not drained in time", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+
+            assertEquals(1, spool.getRetryCount());
+            for (String routingKey : Arrays.asList("even", "odd")) {
+                List<String> expected = new ArrayList<>();
+                for (int i = "even".equals(routingKey) ? 0 : 1; i < 20; i += 2) {
+                    expected.add("message" + i);
+                }
+                // at least once, never a message before the ones spooled before it
+                assertEquals(expected, received.get(routingKey).stream().distinct().collect(Collectors.toList()));
+                assertEquals(expected.get(expected.size() - 1), received.get(routingKey).get(received.get(routingKey).size() - 1));
+            }
+        } finally {
+            spool.destroy();
+            batchPublisher.destroy();
+        }
+    }
+
+    @Test
+    public void testFilterShedsMessageOverTheInFlightLimit() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+        PublishLimiter limiter = new PublishLimiter(1, Duration.ZERO);
+        limiter.limit(mockRabbitTemplate, Mono::never).subscribe();
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpFilter filter = amqpFilter(new AmqpBatchPublisher(), new AmqpRpcClient(), null, limiter);
+        ServerWebExchange webExchange = testFilter(filter, value, "mybody");
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate, never()).convertAndSend(eq("myrouting"), any(Object.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterCompressesLargeMessage() throws Exception {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw&compression=gzip&compressionThreshold=16"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        String body = "mybody mybody mybody mybody mybody";
+        ServerWebExchange webExchange = testFilter(new AmqpFilter(applicationContext), value, body);
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+
+        ArgumentCaptor<org.springframework.amqp.core.Message> message = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals("gzip", message.getValue().getMessageProperties().getContentEncoding());
+        assertEquals(body, StreamUtils.copyToString(new GZIPInputStream(new ByteArrayInputStream(message.getValue().getBody())),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testFilterPassesEncodedBodyThrough() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw&compression=lz4&compressionThreshold=1"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        byte[] body = {0x1f, (byte) 0x8b, 8, 0};
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .body(Flux.just(new DefaultDataBufferFactory().wrap(body)));
+        testFilter(new AmqpFilter(applicationContext), value, request);
+
+        ArgumentCaptor<org.springframework.amqp.core.Message> message = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals("gzip", message.getValue().getMessageProperties().getContentEncoding());
+        assertArrayEquals(body, message.getValue().getBody());
+    }
+
+    @Test
+    public void testFilterRejectsEncodedBodyWithJsonFormat() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&compression=gzip&compressionThreshold=1"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        byte[] body = {0x1f, (byte) 0x8b, 8, 0, (byte) 0xff, (byte) 0xfe};
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .body(Flux.just(new DefaultDataBufferFactory().wrap(body)));
+        ServerWebExchange webExchange = testFilter(new AmqpFilter(applicationContext), value, request);
+
+        assertEquals(HttpStatus.UNSUPPORTED_MEDIA_TYPE, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate, never()).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterAcceptsEncodedBodyWithJsonFormatWithoutCompression() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/post"))
+                .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                .header(HttpHeaders.CONTENT_ENCODING, "br")
+                .body("mybody");
+        ServerWebExchange webExchange = testFilter(new AmqpFilter(applicationContext), value, request);
+
+        assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterPartitionedRoutingKey() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?exchange=orders&routingKey=orders.%7Bpartition%7D&partitions=16&partitionBy=header:X-Customer-Id"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpFilter filter = new AmqpFilter(applicationContext);
+        for (int i = 0; i < 2; i++) {
+            MockServerHttpRequest request = MockServerHttpRequest.get("http://localhost/get")
+                    .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                    .header("X-Customer-Id", "customer-42")
+                    .build();
+            testFilter(filter, value, request);
+        }
+
+        String routingKey = "orders." + AmqpPartitioner.partition("customer-42", 16);
+        verify(mockRabbitTemplate, times(2)).convertAndSend(eq("orders"), eq(routingKey), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterIgnoresTheRequestQuery() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        AmqpFilter filter = new AmqpFilter(applicationContext);
+        for (String url : new String[]{"http://localhost/a?routingKey=evil&exchange=evil&confirm=true", "http://localhost/b"}) {
+            MockServerHttpRequest request = MockServerHttpRequest.get(url)
+                    .remoteAddress(InetSocketAddress.createUnresolved("127.0.0.1", 1234))
+                    .build();
+            ServerWebExchange webExchange = testFilter(filter, value, request);
+            assertEquals(HttpStatus.ACCEPTED, webExchange.getResponse().getStatusCode());
+        }
+
+        // parsed once for the route
+        verify(applicationContext).getBean(RabbitTemplate.class);
+        verify(mockRabbitTemplate, times(2)).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    public void testFilterSendsRequestId() {
+        when(applicationContext.getBean(RabbitTemplate.class)).thenReturn(mockRabbitTemplate);
+
+        Route value = Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&format=raw"))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(value, "body");
+
+        ArgumentCaptor<org.springframework.amqp.core.Message> message = ArgumentCaptor.forClass(org.springframework.amqp.core.Message.class);
+        ArgumentCaptor<MessagePostProcessor> postProcessor = ArgumentCaptor.forClass(MessagePostProcessor.class);
+        ArgumentCaptor<CorrelationData> correlationData = ArgumentCaptor.forClass(CorrelationData.class);
+        verify(mockRabbitTemplate).convertAndSend(eq("myrouting"), message.capture(), postProcessor.capture(), correlationData.capture());
+        MessageProperties properties = postProcessor.getValue().postProcessMessage(message.getValue()).getMessageProperties();
+
+        String requestId = RequestIdFilter.getRequestId(webExchange);
+        assertEquals(requestId, properties.getCorrelationId());
+        assertEquals(requestId, properties.getHeaders().get(AmqpEnvelopes.REQUEST_ID_HEADER));
+        assertEquals(correlationData.getValue().getId(), properties.getMessageId());
+    }
+
+    private AmqpFilter rpcFilter(AsyncAmqpTemplate asyncTemplate) {
+        return amqpFilter(new AmqpBatchPublisher(), new AmqpRpcClient(template -> asyncTemplate), null, new PublishLimiter());
+    }
+
+    private AmqpFilter amqpFilter(AmqpBatchPublisher batchPublisher, AmqpRpcClient rpcClient, AmqpSpool spool,
+                                  PublishLimiter limiter) {
+        return new AmqpFilter(applicationContext, RequestBodyAggregator.DEFAULT_MAX_BODY_SIZE, new PublisherConfirmRegistry(),
+                batchPublisher, rpcClient, spool, limiter, new RequestIdGenerator(GatewayClock.system()));
+    }
+
+    private Route confirmRoute(String timeout) {
+        return Route.builder()
+                .id("1")
+                .uri(URI.create("amqp://default?routingKey=myrouting&confirm=true&timeout=" + timeout))
+                .order(0).predicate(swe -> true)
+                .filters(Collections.emptyList()).build();
+    }
+
+    private void confirmMessages(boolean ack) {
+        CachingConnectionFactory connectionFactory = mock(CachingConnectionFactory.class);
+        when(connectionFactory.isPublisherConfirms()).thenReturn(true);
+        when(mockRabbitTemplate.getConnectionFactory()).thenReturn(connectionFactory);
+
+        ArgumentCaptor<RabbitTemplate.ConfirmCallback> callback = ArgumentCaptor.forClass(RabbitTemplate.ConfirmCallback.class);
+        doNothing().when(mockRabbitTemplate).setConfirmCallback(callback.capture());
+        doAnswer(invocation -> {
+            callback.getValue().confirm(invocation.getArgument(3), ack, ack ? null : "nack");
+            return null;
+        }).when(mockRabbitTemplate).convertAndSend(eq("myrouting"), any(Message.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
     private ServerWebExchange testFilter(Route route) {
         return testFilter(route, null);
     }
 
     private ServerWebExchange testFilter(Route route, String body) {
+        return testFilter(new AmqpFilter(applicationContext), route, body);
+    }
+
+    private ServerWebExchange testFilter(AmqpFilter filter, Route route, String body) {
         URI url = URI.create("http://localhost/get");
 
         MockServerHttpRequest.BodyBuilder builder = MockServerHttpRequest
@@ -204,9 +880,16 @@ public class AmqpFilterTest {
 
         MockServerHttpRequest request = StringUtils.isEmpty(body) ? builder.build() : builder.body(body);
 
+        return testFilter(filter, route, request);
+    }
+
+    private ServerWebExchange testFilter(AmqpFilter filter, Route route, MockServerHttpRequest request) {
         ServerWebExchange exchange = MockServerWebExchange.from(request);
         exchange.getAttributes().put(GATEWAY_ROUTE_ATTR, route);
-        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, route.getUri());
+        // merged as RouteToRequestUrlFilter does it, with the path and the query of the request
+        URI routeUri = route.getUri();
+        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, UriComponentsBuilder.fromUri(request.getURI())
+                .scheme(routeUri.getScheme()).host(routeUri.getHost()).port(routeUri.getPort()).build(true).toUri());
 
         GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
 
@@ -214,8 +897,7 @@ public class AmqpFilterTest {
                 .forClass(ServerWebExchange.class);
         when(filterChain.filter(captor.capture())).thenReturn(Mono.empty());
 
-        AmqpFilter filter = new AmqpFilter(applicationContext);
-        filter.filter(exchange, filterChain).block();
+        new SchemeRoutingFilter(Collections.singletonList(filter)).filter(exchange, filterChain).block();
 
         return captor.getValue();
     }
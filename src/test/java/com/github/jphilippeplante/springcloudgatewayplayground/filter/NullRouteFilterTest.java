@@ -1,26 +1,40 @@
 package com.github.jphilippeplante.springcloudgatewayplayground.filter;
 
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.nullroute.NullRouteResponse;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.cloud.gateway.event.RefreshRoutesEvent;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.route.Route;
 import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
 import org.springframework.mock.web.server.MockServerWebExchange;
 import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
@@ -58,13 +72,124 @@ public class NullRouteFilterTest {
         assertEquals(HttpStatus.OK, webExchange.getResponse().getStatusCode());
     }
 
+    @Test
+    public void testFilterForNullRouteWithHeadersAndBody() {
+        Route value = Route.builder().id("1")
+                .uri(URI.create("nullroute://403?header=Cache-Control:no-store&header=X-Deny:true&body=access%20denied"))
+                .order(0).predicate(swe -> true).filters(Collections.emptyList()).build();
+        ServerWebExchange webExchange = testFilter(value);
+        MockServerHttpResponse response = (MockServerHttpResponse) webExchange.getResponse();
+        assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+        assertEquals("no-store", response.getHeaders().getCacheControl());
+        assertEquals("true", response.getHeaders().getFirst("X-Deny"));
+        assertEquals(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8), response.getHeaders().getContentType());
+        assertEquals(13, response.getHeaders().getContentLength());
+        assertEquals("access denied", response.getBodyAsString().block());
+    }
+
+    @Test
+    public void testFilterForNullRouteWithBodyResource() {
+        Route value = Route.builder().id("1")
+                .uri(URI.create("nullroute://403?header=Content-Type:application/json&bodyResource=classpath:nullroute/deny.json"))
+                .order(0).predicate(swe -> true).filters(Collections.emptyList()).build();
+        NullRouteFilter filter = new NullRouteFilter();
+        for (int i = 0; i < 2; i++) {
+            MockServerHttpResponse response = (MockServerHttpResponse) testFilter(filter, value, HttpMethod.GET).getResponse();
+            assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+            assertEquals("{\"error\":\"denied\"}\n", response.getBodyAsString().block());
+        }
+    }
+
+    @Test
+    public void testFilterForNullRouteHeadRequestHasNoBody() {
+        Route value = Route.builder().id("1").uri(URI.create("nullroute://200?body=ok"))
+                .order(0).predicate(swe -> true).filters(Collections.emptyList()).build();
+        MockServerHttpResponse response = (MockServerHttpResponse) testFilter(new NullRouteFilter(), value, HttpMethod.HEAD).getResponse();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(2, response.getHeaders().getContentLength());
+        // completed by the web handler, without body written
+        response.setComplete().block();
+        assertEquals("", response.getBodyAsString().defaultIfEmpty("").block());
+    }
+
+    @Test
+    public void testFilterIgnoresTheRequestQuery() {
+        Route value = Route.builder().id("1").uri(URI.create("nullroute://403?body=denied"))
+                .order(0).predicate(swe -> true).filters(Collections.emptyList()).build();
+        NullRouteFilter filter = new NullRouteFilter();
+        for (String query : new String[]{"header=Set-Cookie:evil%3D1", "body=evil", "bodyResource=classpath:application.yml"}) {
+            MockServerHttpResponse response = (MockServerHttpResponse) testFilter(filter, value, HttpMethod.GET,
+                    "/get?" + query).getResponse();
+            assertEquals(HttpStatus.FORBIDDEN, response.getStatusCode());
+            assertNull(response.getHeaders().getFirst(HttpHeaders.SET_COOKIE));
+            assertEquals("denied", response.getBodyAsString().block());
+        }
+    }
+
+    @Test
+    public void testInvalidNullRouteIsCompiledOnce() {
+        Route value = Route.builder().id("1")
+                .uri(URI.create("nullroute://403?bodyResource=classpath:nullroute/missing.json"))
+                .order(0).predicate(swe -> true).filters(Collections.emptyList()).build();
+        AtomicInteger loads = new AtomicInteger();
+        NullRouteFilter filter = new NullRouteFilter(new DefaultResourceLoader() {
+            @Override
+            public Resource getResource(String location) {
+                loads.incrementAndGet();
+                return super.getResource(location);
+            }
+        });
+        for (int i = 0; i < 2; i++) {
+            ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("http://localhost/get").build());
+            exchange.getAttributes().put(GATEWAY_ROUTE_ATTR, value);
+            try {
+                filter.handle(exchange).block();
+                fail("a missing bodyResource is an invalid route");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getCause() instanceof UncheckedIOException);
+            }
+        }
+        assertEquals(1, loads.get());
+
+        // compiled again once the routes are refreshed
+        filter.onApplicationEvent(new RefreshRoutesEvent(this));
+        ServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("http://localhost/get").build());
+        exchange.getAttributes().put(GATEWAY_ROUTE_ATTR, value);
+        StepVerifier.create(filter.handle(exchange)).expectError(IllegalStateException.class).verify();
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testNullRouteResponseIsReadOnly() {
+        NullRouteResponse response = NullRouteResponse.of(URI.create("nullroute://999?header=X-Foo:bar"), new DefaultResourceLoader());
+        assertEquals(HttpStatus.OK, response.getStatus());
+        assertEquals(-1, response.getContentLength());
+        try {
+            response.getHeaders().add("X-Foo", "baz");
+            fail("headers of a response are shared");
+        } catch (UnsupportedOperationException e) {
+            assertEquals(Collections.singletonList("bar"), response.getHeaders().get("X-Foo"));
+        }
+    }
+
     private ServerWebExchange testFilter(Route value) {
-        URI url = URI.create("http://localhost/get");
-        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.GET, url)
+        return testFilter(new NullRouteFilter(), value, HttpMethod.GET);
+    }
+
+    private ServerWebExchange testFilter(NullRouteFilter filter, Route value, HttpMethod method) {
+        return testFilter(filter, value, method, "/get");
+    }
+
+    private ServerWebExchange testFilter(NullRouteFilter filter, Route value, HttpMethod method, String pathAndQuery) {
+        URI url = URI.create("http://localhost" + pathAndQuery);
+        MockServerHttpRequest request = MockServerHttpRequest.method(method, url)
                 .build();
         ServerWebExchange exchange = MockServerWebExchange.from(request);
         exchange.getAttributes().put(GATEWAY_ROUTE_ATTR, value);
-        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, value.getUri());
+        // merged as RouteToRequestUrlFilter does: the scheme and host of the route, the path and query of the request
+        URI routeUri = value.getUri();
+        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, UriComponentsBuilder.fromUri(request.getURI())
+                .scheme(routeUri.getScheme()).host(routeUri.getHost()).port(routeUri.getPort()).build(true).toUri());
 
         GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
 
@@ -72,8 +197,7 @@ public class NullRouteFilterTest {
                 .forClass(ServerWebExchange.class);
         when(filterChain.filter(captor.capture())).thenReturn(Mono.empty());
 
-        NullRouteFilter filter = new NullRouteFilter();
-        filter.filter(exchange, filterChain);
+        new SchemeRoutingFilter(Collections.singletonList(filter)).filter(exchange, filterChain).block();
 
         return captor.getValue();
     }
@@ -0,0 +1,75 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.RequestIdGenerator;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.VirtualGatewayClock;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class RequestIdFilterTest {
+
+    private final RequestIdFilter filter = new RequestIdFilter(new RequestIdGenerator(new VirtualGatewayClock(1_000), 1));
+
+    @Test
+    public void testNewRequestId() {
+        ServerWebExchange exchange = testFilter(MockServerHttpRequest.get("http://localhost/get").build());
+
+        String requestId = RequestIdFilter.getRequestId(exchange);
+        assertEquals(RequestIdGenerator.LENGTH, requestId.length());
+        assertEquals(requestId, exchange.getRequest().getHeaders().getFirst(RequestIdFilter.REQUEST_ID_HEADER));
+        assertEquals(requestId, exchange.getResponse().getHeaders().getFirst(RequestIdFilter.REQUEST_ID_HEADER));
+    }
+
+    @Test
+    public void testIncomingRequestIdIsKept() {
+        ServerWebExchange exchange = testFilter(MockServerHttpRequest.get("http://localhost/get")
+                .header(RequestIdFilter.REQUEST_ID_HEADER, "client-1234").build());
+
+        assertEquals("client-1234", RequestIdFilter.getRequestId(exchange));
+        assertEquals("client-1234", exchange.getRequest().getHeaders().getFirst(RequestIdFilter.REQUEST_ID_HEADER));
+        assertEquals("client-1234", exchange.getResponse().getHeaders().getFirst(RequestIdFilter.REQUEST_ID_HEADER));
+    }
+
+    @Test
+    public void testInvalidRequestIdIsReplaced() {
+        ServerWebExchange exchange = testFilter(MockServerHttpRequest.get("http://localhost/get")
+                .header(RequestIdFilter.REQUEST_ID_HEADER, "not valid").build());
+
+        assertNotEquals("not valid", RequestIdFilter.getRequestId(exchange));
+        assertEquals(RequestIdFilter.getRequestId(exchange),
+                exchange.getRequest().getHeaders().getFirst(RequestIdFilter.REQUEST_ID_HEADER));
+    }
+
+    @Test
+    public void testIsValid() {
+        assertTrue(RequestIdFilter.isValid("f47ac10b-58cc-4372-a567-0e02b2c3d479"));
+        assertFalse(RequestIdFilter.isValid(""));
+        assertFalse(RequestIdFilter.isValid("a\nb"));
+        assertFalse(RequestIdFilter.isValid("é"));
+        assertFalse(RequestIdFilter.isValid(new String(new char[RequestIdFilter.MAXIMUM_LENGTH + 1]).replace('\0', 'a')));
+    }
+
+    private ServerWebExchange testFilter(MockServerHttpRequest request) {
+        GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
+        ArgumentCaptor<ServerWebExchange> captor = ArgumentCaptor.forClass(ServerWebExchange.class);
+        when(filterChain.filter(captor.capture())).thenReturn(Mono.empty());
+
+        filter.filter(MockServerWebExchange.from(request), filterChain).block();
+
+        return captor.getValue();
+    }
+}
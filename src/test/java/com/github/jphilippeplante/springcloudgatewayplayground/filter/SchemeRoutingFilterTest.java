@@ -0,0 +1,103 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.routing.RoutingHandler;
+import org.junit.Test;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class SchemeRoutingFilterTest {
+
+    private final StatusHandler teapot = new StatusHandler("teapot", HttpStatus.I_AM_A_TEAPOT);
+    private final StatusHandler gone = new StatusHandler("gone", HttpStatus.GONE);
+    private final SchemeRoutingFilter filter = new SchemeRoutingFilter(Arrays.asList(teapot, gone));
+
+    @Test
+    public void testRequestGoesToTheHandlerOfItsScheme() {
+        ServerWebExchange exchange = testFilter("gone://host");
+        assertTrue(ServerWebExchangeUtils.isAlreadyRouted(exchange));
+        assertEquals(HttpStatus.GONE, exchange.getResponse().getStatusCode());
+        assertEquals(0, teapot.calls.get());
+        assertEquals(1, gone.calls.get());
+    }
+
+    @Test
+    public void testOtherSchemeContinuesInTheChain() {
+        ServerWebExchange exchange = testFilter("http://localhost");
+        assertFalse(ServerWebExchangeUtils.isAlreadyRouted(exchange));
+        assertNull(exchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testRoutedRequestIsNotHandled() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("http://localhost/").build());
+        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, URI.create("teapot://host"));
+        ServerWebExchangeUtils.setAlreadyRouted(exchange);
+        testFilter(exchange);
+        assertEquals(0, teapot.calls.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSchemeHasASingleHandler() {
+        new SchemeRoutingFilter(Arrays.asList(teapot, new StatusHandler("teapot", HttpStatus.OK)));
+    }
+
+    private ServerWebExchange testFilter(String requestUrl) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("http://localhost/").build());
+        exchange.getAttributes().put(GATEWAY_REQUEST_URL_ATTR, URI.create(requestUrl));
+        return testFilter(exchange);
+    }
+
+    private ServerWebExchange testFilter(ServerWebExchange exchange) {
+        GatewayFilterChain chain = mock(GatewayFilterChain.class);
+        when(chain.filter(any(ServerWebExchange.class))).thenReturn(Mono.empty());
+        filter.filter(exchange, chain).block();
+        verify(chain).filter(exchange);
+        return exchange;
+    }
+
+    private static class StatusHandler implements RoutingHandler {
+
+        private final String scheme;
+        private final HttpStatus status;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        StatusHandler(String scheme, HttpStatus status) {
+            this.scheme = scheme;
+            this.status = status;
+        }
+
+        @Override
+        public String getScheme() {
+            return scheme;
+        }
+
+        @Override
+        public Mono<Void> handle(ServerWebExchange exchange) {
+            calls.incrementAndGet();
+            exchange.getResponse().setStatusCode(status);
+            return Mono.empty();
+        }
+    }
+}
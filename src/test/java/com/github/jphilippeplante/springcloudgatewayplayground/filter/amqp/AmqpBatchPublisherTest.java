@@ -0,0 +1,137 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.amqp.AmqpTimeoutException;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AmqpBatchPublisherTest {
+
+    @Mock
+    private RabbitTemplate template;
+    @Mock
+    private CachingConnectionFactory connectionFactory;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        when(template.getConnectionFactory()).thenReturn(connectionFactory);
+        when(template.invoke(any())).thenAnswer(invocation ->
+                invocation.<RabbitOperations.OperationsCallback<Object>>getArgument(0).doInRabbit(template));
+    }
+
+    @Test
+    public void testBatchSentWhenFull() {
+        when(connectionFactory.isPublisherConfirms()).thenReturn(true);
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(3, Duration.ofMinutes(1), Duration.ofSeconds(1));
+
+        Mono.when(publish(publisher, "key"), publish(publisher, "key"), publish(publisher, "key"))
+                .block(Duration.ofSeconds(5));
+
+        verify(template, times(1)).invoke(any());
+        verify(template, times(3)).convertAndSend("exchange", "key", "message");
+        verify(template, times(1)).waitForConfirmsOrDie(1000);
+    }
+
+    @Test
+    public void testBatchSentAfterWindow() {
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(100, Duration.ofMillis(20), Duration.ofSeconds(1));
+
+        Mono.when(publish(publisher, "key"), publish(publisher, "key"), publish(publisher, "other"))
+                .block(Duration.ofSeconds(5));
+
+        verify(template, times(2)).invoke(any());
+        verify(template, times(2)).convertAndSend("exchange", "key", "message");
+        verify(template, never()).waitForConfirmsOrDie(anyLong());
+    }
+
+    @Test
+    public void testBatchNotConfirmed() {
+        when(connectionFactory.isPublisherConfirms()).thenReturn(true);
+        doThrow(new AmqpTimeoutException("timeout")).when(template).waitForConfirmsOrDie(anyLong());
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(2, Duration.ofMinutes(1), Duration.ofSeconds(1));
+
+        Mono<Void> first = publish(publisher, "key");
+        Mono<Void> second = publish(publisher, "key");
+        assertNotConfirmed(first);
+        assertNotConfirmed(second);
+    }
+
+    @Test
+    public void testBatchesOfAKeyAreSentInOrder() throws Exception {
+        AmqpBatchPublisher publisher = new AmqpBatchPublisher(1, Duration.ofMinutes(1), Duration.ofSeconds(1));
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstSending = new CountDownLatch(1);
+        CountDownLatch confirmed = new CountDownLatch(1);
+        try {
+            Mono<Void> first = publisher.publish(template, "exchange", "key", operations -> {
+                sent.add("first");
+                firstSending.countDown();
+                await(confirmed);
+            });
+            Mono<Void> second = publisher.publish(template, "exchange", "key", operations -> sent.add("second"));
+
+            assertTrue(firstSending.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            // the pool has idle threads, the second batch waits for the first one
+            assertEquals(Collections.singletonList("first"), sent);
+
+            confirmed.countDown();
+            Mono.when(first, second).block(Duration.ofSeconds(5));
+            assertEquals(Arrays.asList("first", "second"), sent);
+        } finally {
+            publisher.destroy();
+        }
+    }
+
+    private Mono<Void> publish(AmqpBatchPublisher publisher, String routingKey) {
+        return publisher.publish(template, "exchange", routingKey,
+                operations -> operations.convertAndSend("exchange", routingKey, "message"));
+    }
+
+    private void assertNotConfirmed(Mono<Void> sent) {
+        try {
+            sent.block(Duration.ofSeconds(5));
+            fail("batch not confirmed");
+        } catch (PublishNotConfirmedException e) {
+            assertEquals(AmqpTimeoutException.class, e.getCause().getClass());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class AmqpCompressionTest {
+
+    @Test
+    public void testGzip() throws IOException {
+        for (int size : new int[]{0, 100, 100_000}) {
+            byte[] body = body(size);
+            byte[] compressed = AmqpCompression.GZIP.compress(body);
+            assertArrayEquals(body, StreamUtils.copyToByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        }
+    }
+
+    @Test
+    public void testLz4() throws IOException {
+        for (int size : new int[]{0, 100, 100_000}) {
+            byte[] body = body(size);
+            byte[] compressed = AmqpCompression.LZ4.compress(body);
+            try (InputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(compressed))) {
+                assertArrayEquals(body, StreamUtils.copyToByteArray(in));
+            }
+        }
+    }
+
+    @Test
+    public void testLz4IncompressibleBlocks() throws IOException {
+        byte[] body = new byte[100_000];
+        new Random(42).nextBytes(body);
+        byte[] compressed = AmqpCompression.LZ4.compress(body);
+        try (InputStream in = new LZ4FrameInputStream(new ByteArrayInputStream(compressed))) {
+            assertArrayEquals(body, StreamUtils.copyToByteArray(in));
+        }
+    }
+
+    @Test
+    public void testContentEncodingKeepsThePreviousEncoding() {
+        Message message = MessageBuilder.withBody(body(10_000)).setContentEncoding("UTF-8").build();
+        Message compressed = AmqpCompression.GZIP.compress(message);
+        assertEquals("gzip:UTF-8", compressed.getMessageProperties().getContentEncoding());
+        assertEquals(compressed.getBody().length, compressed.getMessageProperties().getContentLength());
+        assertTrue(compressed.getBody().length < 10_000);
+
+        Message raw = AmqpCompression.LZ4.compress(MessageBuilder.withBody(body(100)).build());
+        assertEquals("lz4", raw.getMessageProperties().getContentEncoding());
+
+        assertSame(message, AmqpCompression.NONE.compress(message));
+        assertEquals(AmqpCompression.LZ4, AmqpCompression.of(" Lz4 "));
+        assertEquals(AmqpCompression.NONE, AmqpCompression.of(null));
+    }
+
+    private byte[] body(int size) {
+        StringBuilder body = new StringBuilder(size);
+        while (body.length() < size) {
+            body.append("{\"name\":\"value\",\"index\":").append(body.length()).append('}');
+        }
+        return body.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
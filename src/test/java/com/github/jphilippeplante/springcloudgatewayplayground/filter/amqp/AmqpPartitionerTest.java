@@ -0,0 +1,61 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.junit.Test;
+import org.springframework.http.HttpCookie;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class AmqpPartitionerTest {
+
+    @Test
+    public void testMurmur3() {
+        assertEquals(0, AmqpPartitioner.murmur3(new byte[0]));
+        assertEquals(0x248bfa47, AmqpPartitioner.murmur3("hello".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0x2e4ff723, AmqpPartitioner.murmur3("The quick brown fox jumps over the lazy dog"
+                .getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testKeySources() {
+        int partition = AmqpPartitioner.partition("customer-42", 16);
+
+        assertEquals(partition, AmqpPartitioner.of(16, "header:X-Customer-Id")
+                .partition(MockServerHttpRequest.get("/").header("X-Customer-Id", "customer-42").build()));
+        assertEquals(partition, AmqpPartitioner.of(16, "query:customer")
+                .partition(MockServerHttpRequest.get("/?customer=customer-42").build()));
+        assertEquals(partition, AmqpPartitioner.of(16, "cookie:customer")
+                .partition(MockServerHttpRequest.get("/").cookie(new HttpCookie("customer", "customer-42")).build()));
+    }
+
+    @Test
+    public void testPartitionsAreSpread() {
+        int[] counts = new int[16];
+        for (int i = 0; i < 16_000; i++) {
+            counts[AmqpPartitioner.partition("customer-" + i, 16)]++;
+        }
+        for (int count : counts) {
+            assertTrue("unbalanced partition: " + count, count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testRequestWithoutKey() {
+        AmqpPartitioner partitioner = AmqpPartitioner.of(4, "header:X-Customer-Id");
+        for (int i = 0; i < 100; i++) {
+            int partition = partitioner.partition(MockServerHttpRequest.get("/").build());
+            assertTrue(partition >= 0 && partition < 4);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPartitionBy() {
+        AmqpPartitioner.of(4, "X-Customer-Id");
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.junit.Test;
+import org.springframework.amqp.core.AsyncAmqpTemplate;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.util.concurrent.SettableListenableFuture;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class AmqpRpcClientTest {
+
+    private final RabbitTemplate template = mock(RabbitTemplate.class);
+    private final AsyncAmqpTemplate asyncTemplate = mock(AsyncAmqpTemplate.class);
+    private final Message request = MessageBuilder.withBody(new byte[]{1}).build();
+
+    @Test
+    public void testReplyWithTheDefaultsOfTheTemplate() {
+        when(template.getExchange()).thenReturn("");
+        when(template.getRoutingKey()).thenReturn("defaultrouting");
+        Message reply = MessageBuilder.withBody(new byte[]{2}).build();
+        SettableListenableFuture<Message> future = new SettableListenableFuture<>();
+        future.set(reply);
+        when(asyncTemplate.sendAndReceive(eq(""), eq("defaultrouting"), any(Message.class))).thenReturn(future);
+
+        AtomicInteger created = new AtomicInteger();
+        AmqpRpcClient client = new AmqpRpcClient(t -> {
+            created.incrementAndGet();
+            return asyncTemplate;
+        });
+        StepVerifier.create(client.sendAndReceive(template, null, null, request, Duration.ofSeconds(1)))
+                .expectNext(reply)
+                .verifyComplete();
+        StepVerifier.create(client.sendAndReceive(template, null, null, request, Duration.ofSeconds(1)))
+                .expectNext(reply)
+                .verifyComplete();
+        assertEquals(1, created.get());
+        assertEquals(1, client.size());
+    }
+
+    @Test
+    public void testTimeoutCancelsThePendingRequest() {
+        SettableListenableFuture<Message> future = new SettableListenableFuture<>();
+        when(asyncTemplate.sendAndReceive(eq("myexchange"), eq("myrouting"), any(Message.class))).thenReturn(future);
+
+        AmqpRpcClient client = new AmqpRpcClient(t -> asyncTemplate);
+        StepVerifier.create(client.sendAndReceive(template, "myexchange", "myrouting", request, Duration.ofMillis(50)))
+                .expectError(TimeoutException.class)
+                .verify();
+        assertTrue(future.isCancelled());
+    }
+}
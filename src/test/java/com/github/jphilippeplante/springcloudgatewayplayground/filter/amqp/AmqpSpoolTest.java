@@ -0,0 +1,258 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class AmqpSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SpooledMessage> published = Collections.synchronizedList(new ArrayList<>());
+    private AmqpSpool spool;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (spool != null) {
+            spool.destroy();
+        }
+    }
+
+    @Test
+    public void testMessagesAreReplayedInOrderAcrossSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        spool = spool(directory, 128, 4096);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(message(i)));
+        }
+        assertTrue(spool.getSize() > 128);
+        assertEquals(10, spool.getPendingCount());
+
+        spool.start(this::publish);
+        await(() -> spool.getPendingCount() == 0);
+
+        assertEquals(10, published.size());
+        for (int i = 0; i < 10; i++) {
+            SpooledMessage message = published.get(i);
+            assertEquals("default", message.getTemplateName());
+            assertEquals("myexchange", message.getExchange());
+            assertEquals("myrouting", message.getRoutingKey());
+            assertEquals("text/plain", message.getMessage().getMessageProperties().getContentType());
+            assertEquals(i, message.getMessage().getMessageProperties().getHeaders().get("index"));
+            assertEquals("message" + i, new String(message.getMessage().getBody(), StandardCharsets.UTF_8));
+        }
+        assertEquals(10, spool.getDrainedCount());
+        // the replayed segments are deleted
+        await(() -> directory.toFile().list().length == 1);
+    }
+
+    @Test
+    public void testPendingMessagesAreRecovered() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        spool = spool(directory, 128, 4096);
+        for (int i = 0; i < 5; i++) {
+            spool.append(message(i));
+        }
+        spool.destroy();
+
+        spool = spool(directory, 128, 4096);
+        assertEquals(5, spool.getPendingCount());
+        spool.start(this::publish);
+        await(() -> spool.getPendingCount() == 0);
+        assertEquals("message0", new String(published.get(0).getMessage().getBody(), StandardCharsets.UTF_8));
+        assertEquals(5, published.size());
+
+        spool.destroy();
+        spool = spool(directory, 128, 4096);
+        assertEquals(0, spool.getPendingCount());
+    }
+
+    @Test
+    public void testMessagesAreRejectedWhenFull() throws Exception {
+        spool = spool(folder.getRoot().toPath(), 128, 128);
+        int appended = 0;
+        while (spool.append(message(appended))) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertEquals(appended, spool.getPendingCount());
+        assertEquals(1, spool.getRejectedCount());
+        // larger than a segment
+        assertFalse(spool.append(largeMessage(256)));
+    }
+
+    @Test
+    public void testMessageIsReplayedUntilPublished() throws Exception {
+        spool = spool(folder.getRoot().toPath(), 128, 4096);
+        spool.append(message(0));
+        spool.append(message(1));
+
+        AtomicInteger failures = new AtomicInteger(2);
+        spool.start(messages -> {
+            if (failures.getAndDecrement() > 0) {
+                return Mono.error(new AmqpConnectException("down", null));
+            }
+            return publish(messages);
+        });
+        await(() -> spool.getPendingCount() == 0);
+        assertEquals(2, spool.getRetryCount());
+        assertEquals("message0", new String(published.get(0).getMessage().getBody(), StandardCharsets.UTF_8));
+        assertEquals("message1", new String(published.get(1).getMessage().getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testMessageIdsAreReplayed() throws Exception {
+        spool = spool(folder.getRoot().toPath(), 256, 4096);
+        spool.append(new SpooledMessage("default", "myexchange", "myrouting", MessageBuilder
+                .withBody("body".getBytes(StandardCharsets.UTF_8))
+                .setMessageId("message-id")
+                .setCorrelationIdString("request-id")
+                .build()));
+
+        spool.start(this::publish);
+        await(() -> spool.getPendingCount() == 0);
+
+        MessageProperties properties = published.get(0).getMessage().getMessageProperties();
+        assertEquals("message-id", properties.getMessageId());
+        assertEquals("request-id", properties.getCorrelationId());
+    }
+
+    @Test
+    public void testOneRunIsReplayedAtATime() throws Exception {
+        // a message every 100ms
+        spool = spool(folder.getRoot().toPath(), 1024, 4096, 10);
+        for (int i = 0; i < 3; i++) {
+            spool.append(message(i));
+        }
+        List<MonoProcessor<Void>> runs = Collections.synchronizedList(new ArrayList<>());
+        spool.start(messages -> {
+            MonoProcessor<Void> run = MonoProcessor.create();
+            runs.add(run);
+            published.addAll(messages);
+            return run;
+        });
+        await(() -> runs.size() == 1);
+
+        // the next run waits for the first one
+        Thread.sleep(250);
+        assertEquals(1, runs.size());
+        assertEquals(1, published.size());
+        runs.get(0).onComplete();
+
+        // the messages allowed by the drain rate meanwhile are published together
+        await(() -> runs.size() == 2);
+        assertEquals(3, published.size());
+        assertEquals(2, spool.getPendingCount());
+        runs.get(1).onComplete();
+        await(() -> spool.getPendingCount() == 0);
+        assertEquals(3, spool.getDrainedCount());
+        assertEquals("message2", new String(published.get(2).getMessage().getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRunIsReplayedFromItsFirstMessage() throws Exception {
+        spool = spool(folder.getRoot().toPath(), 1024, 4096, 10);
+        for (int i = 0; i < 5; i++) {
+            spool.append(message(i));
+        }
+        List<List<Object>> runs = Collections.synchronizedList(new ArrayList<>());
+        spool.start(messages -> {
+            runs.add(messages.stream()
+                    .map(message -> message.getMessage().getMessageProperties().getHeaders().get("index"))
+                    .collect(Collectors.toList()));
+            published.addAll(messages);
+            if (runs.size() == 2) {
+                return Mono.error(new AmqpConnectException("down", null));
+            }
+            return Mono.empty();
+        });
+        await(() -> spool.getPendingCount() == 0);
+
+        assertEquals(1, spool.getRetryCount());
+        // replayed again from the first message of the failed run, nothing skipped
+        assertEquals(runs.get(1).get(0), runs.get(2).get(0));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), published.stream()
+                .map(message -> message.getMessage().getMessageProperties().getHeaders().get("index"))
+                .distinct()
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testSubmittedMessagesArePendingUntilReplayed() throws Exception {
+        spool = spool(folder.getRoot().toPath(), 128, 4096);
+        Mono<Boolean> submitted = spool.submit(message(0));
+        assertEquals(0, spool.getPendingCount());
+
+        assertTrue(submitted.block());
+        assertEquals(1, spool.getPendingCount());
+        assertEquals(1, spool.getAppendedCount());
+        // larger than a segment
+        assertFalse(spool.submit(largeMessage(256)).block());
+        assertEquals(1, spool.getPendingCount());
+        assertEquals(1, spool.getRejectedCount());
+
+        spool.start(this::publish);
+        await(() -> spool.getPendingCount() == 0);
+        assertEquals("message0", new String(published.get(0).getMessage().getBody(), StandardCharsets.UTF_8));
+    }
+
+    private Mono<Void> publish(List<SpooledMessage> messages) {
+        published.addAll(messages);
+        return Mono.empty();
+    }
+
+    private AmqpSpool spool(Path directory, long segmentSize, long maximumSize) throws IOException {
+        return spool(directory, segmentSize, maximumSize, 10_000);
+    }
+
+    private AmqpSpool spool(Path directory, long segmentSize, long maximumSize, int drainRate) throws IOException {
+        return new AmqpSpool(directory, segmentSize, maximumSize, AmqpSpool.FsyncPolicy.ALWAYS, Duration.ofSeconds(1),
+                drainRate, Duration.ofMillis(10));
+    }
+
+    private SpooledMessage message(int index) {
+        return new SpooledMessage("default", "myexchange", "myrouting", MessageBuilder
+                .withBody(("message" + index).getBytes(StandardCharsets.UTF_8))
+                .setContentType("text/plain")
+                .setHeader("index", index)
+                .build());
+    }
+
+    private SpooledMessage largeMessage(int size) {
+        return new SpooledMessage("default", "myexchange", "myrouting", MessageBuilder.withBody(new byte[size]).build());
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
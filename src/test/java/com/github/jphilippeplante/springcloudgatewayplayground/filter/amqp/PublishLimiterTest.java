@@ -0,0 +1,118 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import com.rabbitmq.client.BlockedListener;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PublishLimiterTest {
+
+    @Mock
+    private RabbitTemplate template;
+
+    @Test
+    public void testPermitIsReleasedWhenPublishCompletes() {
+        PublishLimiter limiter = new PublishLimiter(1, Duration.ZERO);
+        StepVerifier.create(limiter.limit(template, () -> Mono.just("sent")))
+                .expectNext("sent")
+                .verifyComplete();
+        StepVerifier.create(limiter.limit(template, () -> Mono.error(new IllegalStateException())))
+                .expectError(IllegalStateException.class)
+                .verify();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getShedCount());
+    }
+
+    @Test
+    public void testPublishOverTheLimitIsThrottled() {
+        PublishLimiter limiter = new PublishLimiter(1, Duration.ofMillis(20));
+        Disposable inFlight = limiter.limit(template, Mono::never).subscribe();
+        assertEquals(1, limiter.getInFlight());
+
+        StepVerifier.create(limiter.limit(template, () -> Mono.just("sent")))
+                .expectErrorMatches(e -> e instanceof ResponseStatusException
+                        && ((ResponseStatusException) e).getStatus() == HttpStatus.TOO_MANY_REQUESTS)
+                .verify();
+        assertEquals(1, limiter.getThrottledCount());
+
+        // cancelling the publish releases its permit
+        inFlight.dispose();
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testWaitingPublishGetsTheReleasedPermit() {
+        PublishLimiter limiter = new PublishLimiter(1, Duration.ofSeconds(5));
+        MonoProcessor<String> first = MonoProcessor.create();
+        limiter.limit(template, () -> first).subscribe();
+
+        StepVerifier.create(limiter.limit(template, () -> Mono.just("second")))
+                .then(() -> first.onNext("first"))
+                .expectNext("second")
+                .verifyComplete();
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getShedCount());
+    }
+
+    @Test
+    public void testPublishWaitsWhileTheConnectionIsBlocked() throws Exception {
+        ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+        when(template.getConnectionFactory()).thenReturn(connectionFactory);
+        PublishLimiter limiter = new PublishLimiter(10, Duration.ofMillis(20));
+        limiter.limit(template, () -> Mono.empty()).block();
+
+        ArgumentCaptor<ConnectionListener> connectionListener = ArgumentCaptor.forClass(ConnectionListener.class);
+        verify(connectionFactory).addConnectionListener(connectionListener.capture());
+        Connection connection = mock(Connection.class);
+        connectionListener.getValue().onCreate(connection);
+        ArgumentCaptor<BlockedListener> blockedListener = ArgumentCaptor.forClass(BlockedListener.class);
+        verify(connection).addBlockedListener(blockedListener.capture());
+
+        blockedListener.getValue().handleBlocked("low on memory");
+        assertTrue(limiter.isBlocked(template));
+        StepVerifier.create(limiter.limit(template, () -> Mono.just("sent")))
+                .expectErrorMatches(e -> e instanceof ResponseStatusException
+                        && ((ResponseStatusException) e).getStatus() == HttpStatus.SERVICE_UNAVAILABLE)
+                .verify();
+        assertEquals(1, limiter.getBlockedCount());
+
+        // a waiting publish is sent once unblocked
+        StepVerifier.create(limiter.limit(template, () -> Mono.just("sent")))
+                .then(() -> {
+                    try {
+                        blockedListener.getValue().handleUnblocked();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .expectNext("sent")
+                .verifyComplete();
+        assertFalse(limiter.isBlocked(template));
+        assertTrue(limiter.getBlockedTime().toNanos() > 0);
+    }
+}
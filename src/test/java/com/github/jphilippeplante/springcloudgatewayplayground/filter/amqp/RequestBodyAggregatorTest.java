@@ -0,0 +1,110 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class RequestBodyAggregatorTest {
+
+    private final NettyDataBufferFactory factory = new NettyDataBufferFactory(new UnpooledByteBufAllocator(false));
+
+    @Test
+    public void testAggregateChunks() {
+        byte[] bytes = "héllo wörld".getBytes(StandardCharsets.UTF_8);
+        // split inside the two bytes of the é
+        List<DataBuffer> buffers = Arrays.asList(buffer(bytes, 0, 2), buffer(bytes, 2, 6), buffer(bytes, 6, bytes.length));
+
+        String body = RequestBodyAggregator.aggregate(request(buffers), 1024).block();
+
+        assertEquals("héllo wörld", body);
+        buffers.forEach(buffer -> assertEquals(0, nativeBuffer(buffer).refCnt()));
+    }
+
+    @Test
+    public void testAggregateWithCharset() {
+        byte[] bytes = "héllo".getBytes(StandardCharsets.ISO_8859_1);
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/"))
+                .contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.ISO_8859_1))
+                .body(Flux.just(buffer(bytes, 0, bytes.length)));
+
+        assertEquals("héllo", RequestBodyAggregator.aggregate(request, 1024).block());
+    }
+
+    @Test
+    public void testAggregateEmptyBody() {
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/")).build();
+
+        assertEquals("", RequestBodyAggregator.aggregate(request, 1024).block());
+    }
+
+    @Test
+    public void testBodyTooLargeReleasesBuffers() {
+        byte[] bytes = new byte[100];
+        List<DataBuffer> buffers = Arrays.asList(buffer(bytes, 0, 60), buffer(bytes, 60, 100));
+
+        try {
+            RequestBodyAggregator.aggregate(request(buffers), 80).block();
+            fail("body larger than the maximum");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+        buffers.forEach(buffer -> assertEquals(0, nativeBuffer(buffer).refCnt()));
+    }
+
+    @Test
+    public void testContentLengthTooLargeDoesNotReadBody() {
+        MockServerHttpRequest request = MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/"))
+                .contentLength(2048)
+                .body(Flux.error(new IllegalStateException("body read")));
+
+        try {
+            RequestBodyAggregator.aggregate(request, 1024).block();
+            fail("body larger than the maximum");
+        } catch (ResponseStatusException e) {
+            assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testCheckMaxBodySize() {
+        assertEquals(RequestBodyAggregator.MAXIMUM_BODY_SIZE,
+                RequestBodyAggregator.checkMaxBodySize(RequestBodyAggregator.MAXIMUM_BODY_SIZE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxBodySizeLargerThanAnArray() {
+        RequestBodyAggregator.checkMaxBodySize(3L * 1024 * 1024 * 1024);
+    }
+
+    private MockServerHttpRequest request(List<DataBuffer> buffers) {
+        return MockServerHttpRequest.method(HttpMethod.POST, URI.create("http://localhost/"))
+                .body(Flux.fromIterable(buffers));
+    }
+
+    private DataBuffer buffer(byte[] bytes, int from, int to) {
+        return factory.wrap(factory.getByteBufAllocator().buffer().writeBytes(bytes, from, to - from));
+    }
+
+    private ByteBuf nativeBuffer(DataBuffer buffer) {
+        return NettyDataBufferFactory.toByteBuf(buffer);
+    }
+}
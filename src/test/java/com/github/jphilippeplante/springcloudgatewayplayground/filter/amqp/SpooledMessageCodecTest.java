@@ -0,0 +1,71 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.amqp;
+
+import org.junit.Test;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class SpooledMessageCodecTest {
+
+    @Test
+    public void testMessagePropertiesAreEncoded() {
+        Date timestamp = new Date(1234567890L);
+        SpooledMessage spooled = new SpooledMessage("default", null, "myrouting", MessageBuilder
+                .withBody("body".getBytes(StandardCharsets.UTF_8))
+                .setContentType("application/json")
+                .setContentEncoding("gzip")
+                .setMessageId("message-id")
+                .setCorrelationIdString("correlation-id")
+                .setReplyTo("reply-queue")
+                .setExpiration("60000")
+                .setType("event")
+                .setAppId("gateway")
+                .setTimestamp(timestamp)
+                .setPriority(5)
+                .setDeliveryMode(MessageDeliveryMode.NON_PERSISTENT)
+                .setHeader("string", "value")
+                .setHeader("long", 42L)
+                .setHeader("boolean", true)
+                .setHeader("date", timestamp)
+                .setHeader("list", Arrays.asList(1, "two"))
+                .setHeader("null", null)
+                .build());
+
+        SpooledMessage replayed = SpooledMessageCodec.decode(SpooledMessageCodec.encode(spooled));
+
+        assertEquals("default", replayed.getTemplateName());
+        assertNull(replayed.getExchange());
+        assertEquals("myrouting", replayed.getRoutingKey());
+        MessageProperties properties = replayed.getMessage().getMessageProperties();
+        assertEquals("application/json", properties.getContentType());
+        assertEquals("gzip", properties.getContentEncoding());
+        assertEquals("message-id", properties.getMessageId());
+        assertEquals("correlation-id", properties.getCorrelationId());
+        assertEquals("reply-queue", properties.getReplyTo());
+        assertEquals("60000", properties.getExpiration());
+        assertEquals("event", properties.getType());
+        assertEquals("gateway", properties.getAppId());
+        assertNull(properties.getUserId());
+        assertEquals(timestamp, properties.getTimestamp());
+        assertEquals(Integer.valueOf(5), properties.getPriority());
+        assertEquals(MessageDeliveryMode.NON_PERSISTENT, properties.getDeliveryMode());
+        assertEquals("value", properties.getHeaders().get("string"));
+        assertEquals(42L, properties.getHeaders().get("long"));
+        assertEquals(true, properties.getHeaders().get("boolean"));
+        assertEquals(timestamp, properties.getHeaders().get("date"));
+        assertEquals(Arrays.asList(1, "two"), properties.getHeaders().get("list"));
+        assertTrue(properties.getHeaders().containsKey("null"));
+        assertEquals("body", new String(replayed.getMessage().getBody(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,481 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.factory;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.exception.UnresolvedSigningKeyException;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.CustomFilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.DefaultFilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.FilterSigningKeyResolver;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtValidator;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.JwtVerificationScheduler;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.RejectedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.ValidatedJwt;
+import com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation.VerifiedTokenCache;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.VirtualGatewayClock;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.CompressionCodecs;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.GatewayFilterChain;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.URI;
+import java.security.Key;
+import java.time.Duration;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ValidateJwtGatewayFilterFactoryTest {
+
+    private static final String SIGNING_KEY_RESOLVER = "customFilterSigningKeyResolver";
+    private static final String RSA_SIGNING_KEY_RESOLVER = "rsaFilterSigningKeyResolver";
+
+    @Mock
+    private ConfigurableApplicationContext context;
+
+    private VerifiedTokenCache verifiedTokenCache;
+    private RejectedTokenCache rejectedTokenCache;
+    private ValidateJwtGatewayFilterFactory factory;
+
+    @Before
+    public void setup() {
+        when(context.getBean(eq(SIGNING_KEY_RESOLVER), eq(FilterSigningKeyResolver.class)))
+                .thenReturn(new CustomFilterSigningKeyResolver());
+        verifiedTokenCache = new VerifiedTokenCache(10);
+        rejectedTokenCache = new RejectedTokenCache(10, Duration.ofMinutes(1));
+        factory = new ValidateJwtGatewayFilterFactory(context, new DefaultFilterSigningKeyResolver(), verifiedTokenCache,
+                new JwtVerificationScheduler(1, 1), rejectedTokenCache);
+    }
+
+    @Test
+    public void testValidTokenIsCached() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope");
+
+        filter(filter, jwt);
+        assertEquals(0, verifiedTokenCache.getHitCount());
+        assertEquals(1, verifiedTokenCache.size());
+
+        filter(filter, jwt);
+        assertEquals(1, verifiedTokenCache.getHitCount());
+    }
+
+    @Test
+    public void testCacheIsPerConfiguration() {
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope,other");
+
+        filter(factory.apply(config("myscope")), jwt);
+        filter(factory.apply(config("other")), jwt);
+
+        assertEquals(0, verifiedTokenCache.getHitCount());
+        assertEquals(2, verifiedTokenCache.size());
+    }
+
+    @Test
+    public void testSigningKeyResolverIsResolvedOncePerRoute() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        filter(filter, token(new Date(System.currentTimeMillis() + 60_000), "myscope"));
+        filter(filter, token(new Date(System.currentTimeMillis() + 120_000), "myscope"));
+
+        verify(context, times(1)).getBean(SIGNING_KEY_RESOLVER, FilterSigningKeyResolver.class);
+    }
+
+    @Test
+    public void testValidatedJwtIsReusedByTheNextFilter() {
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope,other");
+        ServerWebExchange exchange = exchange(jwt);
+
+        filter(factory.apply(config("myscope")), exchange);
+        ValidatedJwt validatedJwt = exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR);
+        assertNotNull(validatedJwt);
+
+        filter(factory.apply(config("other")), exchange);
+        assertSame(validatedJwt, exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR));
+        assertEquals(1, verifiedTokenCache.size());
+    }
+
+    @Test
+    public void testValidatedJwtClaimsAreValidatedByTheNextFilter() {
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope");
+        ServerWebExchange exchange = exchange(jwt);
+
+        filter(factory.apply(config("myscope")), exchange);
+        filter(factory.apply(config("other")), exchange);
+
+        assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testExpiredTokenIsNotCached() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = token(new Date(System.currentTimeMillis() - 60_000), "myscope");
+
+        ServerWebExchange exchange = filter(filter, jwt);
+
+        assertEquals(HttpStatus.UNAUTHORIZED, exchange.getResponse().getStatusCode());
+        assertEquals(0, verifiedTokenCache.size());
+    }
+
+    @Test
+    public void testTokenExpiresWithTheGatewayClock() {
+        VirtualGatewayClock clock = new VirtualGatewayClock(System.currentTimeMillis());
+        verifiedTokenCache = new VerifiedTokenCache(10, clock);
+        rejectedTokenCache = new RejectedTokenCache(10, Duration.ofMinutes(1), clock);
+        factory = new ValidateJwtGatewayFilterFactory(context, new DefaultFilterSigningKeyResolver(), verifiedTokenCache,
+                new JwtVerificationScheduler(1, 1), rejectedTokenCache, clock);
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = token(new Date(clock.currentTimeMillis() + 60_000), "myscope");
+
+        assertNull(filter(filter, jwt).getResponse().getStatusCode());
+
+        clock.advance(Duration.ofMinutes(2));
+        ServerWebExchange exchange = filter(filter, jwt);
+        assertEquals(HttpStatus.UNAUTHORIZED, exchange.getResponse().getStatusCode());
+        assertEquals(0, verifiedTokenCache.size());
+    }
+
+    @Test
+    public void testTokenIsValidatedOnlyWithTheGatewayClock() {
+        VirtualGatewayClock clock = new VirtualGatewayClock(System.currentTimeMillis() - 3_600_000);
+        factory = new ValidateJwtGatewayFilterFactory(context, new DefaultFilterSigningKeyResolver(), verifiedTokenCache,
+                new JwtVerificationScheduler(1, 1), rejectedTokenCache, clock);
+        // expired for the system clock, not for the gateway clock
+        String jwt = token(new Date(clock.currentTimeMillis() + 60_000), "myscope");
+
+        assertNull(filter(factory.apply(config("myscope")), jwt).getResponse().getStatusCode());
+    }
+
+    @Test
+    public void testCompressedToken() {
+        String jwt = Jwts.builder()
+                .setIssuer("mine")
+                .setAudience("our_audience")
+                .setExpiration(new Date(System.currentTimeMillis() + 60_000))
+                .claim("scope", "myscope")
+                .compressWith(CompressionCodecs.DEFLATE)
+                .signWith(SignatureAlgorithm.HS256, "secret".getBytes())
+                .compact();
+
+        ServerWebExchange exchange = filter(factory.apply(config("myscope")), jwt);
+
+        ValidatedJwt validatedJwt = exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR);
+        assertEquals("mine", validatedJwt.getClaims().getBody().getIssuer());
+    }
+
+    @Test
+    public void testRejectedTokenIsAnsweredFromTheCache() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = token(new Date(System.currentTimeMillis() - 60_000), "myscope");
+        filter(filter, jwt);
+        assertEquals(1, rejectedTokenCache.size());
+
+        ServerWebExchange exchange = filter(filter, jwt);
+        assertEquals(HttpStatus.UNAUTHORIZED, exchange.getResponse().getStatusCode());
+        assertEquals("Bearer", exchange.getResponse().getHeaders().getFirst("WWW-Authenticate"));
+        assertEquals(1, rejectedTokenCache.getHitCount());
+        assertNull(exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR));
+    }
+
+    @Test
+    public void testInvalidSignatureIsRemembered() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope", "othersecret");
+        try {
+            filter(filter, jwt);
+            fail("a token with an invalid signature is rejected");
+        } catch (SignatureException e) {
+            assertEquals(1, rejectedTokenCache.size());
+        }
+
+        ServerWebExchange exchange = filter(filter, jwt);
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, exchange.getResponse().getStatusCode());
+        assertEquals(1, rejectedTokenCache.getHitCount());
+    }
+
+    @Test
+    public void testUnresolvedSigningKeyIsNotRemembered() {
+        FilterSigningKeyResolver resolver = () -> new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                throw new UnresolvedSigningKeyException("No signing key for kid " + header.getKeyId());
+            }
+        };
+        when(context.getBean(eq(RSA_SIGNING_KEY_RESOLVER), eq(FilterSigningKeyResolver.class))).thenReturn(resolver);
+        ValidateJwtConfig config = config("myscope");
+        config.setSigningKeyResolver(RSA_SIGNING_KEY_RESOLVER);
+        GatewayFilter filter = factory.apply(config);
+        String jwt = rsaToken(rsaKeyPair());
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                filter(filter, jwt);
+                fail("a token without signing key is rejected");
+            } catch (UnresolvedSigningKeyException e) {
+                assertEquals(0, rejectedTokenCache.size());
+            }
+        }
+        assertEquals(0, rejectedTokenCache.getHitCount());
+    }
+
+    @Test
+    public void testPrematureTokenIsNotRemembered() {
+        GatewayFilter filter = factory.apply(config("myscope"));
+        String jwt = Jwts.builder()
+                .setIssuer("mine")
+                .setAudience("our_audience")
+                .setNotBefore(new Date(System.currentTimeMillis() + 60_000))
+                .setExpiration(new Date(System.currentTimeMillis() + 120_000))
+                .claim("scope", "myscope")
+                .signWith(SignatureAlgorithm.HS256, "secret".getBytes())
+                .compact();
+
+        ServerWebExchange exchange = filter(filter, jwt);
+
+        assertEquals(HttpStatus.UNAUTHORIZED, exchange.getResponse().getStatusCode());
+        assertEquals(0, rejectedTokenCache.size());
+    }
+
+    @Test
+    public void testAllScopesOfTheTokenMustBeInTheRoute() {
+        ValidateJwtConfig config = config("myscope,other");
+        config.setScopeValidation(JwtValidator.SCOPE_VALIDATION_ALL);
+        GatewayFilter filter = factory.apply(config);
+
+        assertNull(filter(filter, token(new Date(System.currentTimeMillis() + 60_000), "myscope"))
+                .getResponse().getStatusCode());
+        assertNull(filter(filter, token(new Date(System.currentTimeMillis() + 60_000), "other,myscope"))
+                .getResponse().getStatusCode());
+
+        ServerWebExchange exchange = filter(filter, token(new Date(System.currentTimeMillis() + 60_000), "other,myscope,extra"));
+        assertEquals(HttpStatus.FORBIDDEN, exchange.getResponse().getStatusCode());
+        assertEquals("{\"error\":\"insufficient_scope\",\"error_description\":\"Insufficient scope, expected all of: [myscope, other]\"}",
+                ((MockServerHttpResponse) exchange.getResponse()).getBodyAsString().block());
+    }
+
+    @Test
+    public void testClaimsFirstValidToken() {
+        ValidateJwtConfig config = config("myscope");
+        config.setValidationMode(JwtValidator.VALIDATION_MODE_CLAIMS_FIRST);
+        ServerWebExchange exchange = filter(factory.apply(config), token(new Date(System.currentTimeMillis() + 60_000), "myscope"));
+
+        ValidatedJwt validatedJwt = exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR);
+        assertEquals("mine", validatedJwt.getClaims().getBody().getIssuer());
+    }
+
+    @Test
+    public void testClaimsFirstRejectsExpiredTokenBeforeSignature() {
+        ValidateJwtConfig config = config("myscope");
+        config.setValidationMode(JwtValidator.VALIDATION_MODE_CLAIMS_FIRST);
+        String jwt = token(new Date(System.currentTimeMillis() - 60_000), "myscope", "othersecret");
+
+        ServerWebExchange exchange = filter(factory.apply(config), jwt);
+
+        assertEquals(HttpStatus.UNAUTHORIZED, exchange.getResponse().getStatusCode());
+    }
+
+    @Test(expected = SignatureException.class)
+    public void testClaimsFirstRejectsInvalidSignature() {
+        ValidateJwtConfig config = config("myscope");
+        config.setValidationMode(JwtValidator.VALIDATION_MODE_CLAIMS_FIRST);
+        String jwt = token(new Date(System.currentTimeMillis() + 60_000), "myscope", "othersecret");
+
+        filter(factory.apply(config), jwt);
+    }
+
+    @Test
+    public void testOffloadedVerification() {
+        KeyPair keyPair = rsaKeyPair();
+        ValidateJwtConfig config = rsaConfig(keyPair);
+        config.setExecution(ValidateJwtGatewayFilterFactory.EXECUTION_OFFLOAD);
+        String jwt = rsaToken(keyPair);
+
+        ServerWebExchange exchange = filter(factory.apply(config), jwt);
+
+        ValidatedJwt validatedJwt = exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR);
+        assertEquals("mine", validatedJwt.getClaims().getBody().getIssuer());
+        assertEquals(1, verifiedTokenCache.size());
+    }
+
+    @Test
+    public void testOffloadedVerificationResumesOutOfThePool() {
+        KeyPair keyPair = rsaKeyPair();
+        ValidateJwtConfig config = rsaConfig(keyPair);
+        config.setExecution(ValidateJwtGatewayFilterFactory.EXECUTION_OFFLOAD);
+        AtomicReference<String> thread = new AtomicReference<>();
+        GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
+        when(filterChain.filter(any(ServerWebExchange.class))).thenAnswer(invocation -> {
+            thread.set(Thread.currentThread().getName());
+            return Mono.empty();
+        });
+
+        factory.apply(config).filter(exchange(rsaToken(keyPair)), filterChain).block();
+
+        assertNotNull(thread.get());
+        assertFalse(thread.get(), thread.get().startsWith("jwt-verification-"));
+    }
+
+    @Test
+    public void testOffloadedMalformedTokenIsAnError() {
+        ValidateJwtConfig config = rsaConfig(rsaKeyPair());
+        config.setExecution(ValidateJwtGatewayFilterFactory.EXECUTION_OFFLOAD);
+        GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
+
+        Mono<Void> result = factory.apply(config).filter(exchange("malformed"), filterChain);
+        try {
+            result.block();
+            fail("a malformed token is rejected");
+        } catch (MalformedJwtException e) {
+            assertEquals(1, rejectedTokenCache.size());
+        }
+    }
+
+    @Test
+    public void testSaturatedVerificationIsRejected() throws InterruptedException {
+        JwtVerificationScheduler scheduler = new JwtVerificationScheduler(1, 0);
+        factory = new ValidateJwtGatewayFilterFactory(context, new DefaultFilterSigningKeyResolver(), verifiedTokenCache, scheduler);
+        KeyPair keyPair = rsaKeyPair();
+        ValidateJwtConfig config = rsaConfig(keyPair);
+        config.setExecution(ValidateJwtGatewayFilterFactory.EXECUTION_OFFLOAD);
+
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(() -> {
+            running.countDown();
+            return release.await(10, TimeUnit.SECONDS);
+        }).subscribe();
+        running.await(10, TimeUnit.SECONDS);
+        try {
+            ServerWebExchange exchange = filter(factory.apply(config), rsaToken(keyPair));
+
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exchange.getResponse().getStatusCode());
+            assertEquals(1, scheduler.getRejectedCount());
+            assertNull(exchange.getAttribute(ValidateJwtGatewayFilterFactory.VALIDATED_JWT_ATTR));
+        } finally {
+            release.countDown();
+            scheduler.destroy();
+        }
+    }
+
+    @Test
+    public void testExtractJwt() {
+        assertEquals("abc", ValidateJwtGatewayFilterFactory.extractJwt("Bearer abc"));
+        assertEquals("abc", ValidateJwtGatewayFilterFactory.extractJwt("bearer   abc  "));
+        assertEquals("abc", ValidateJwtGatewayFilterFactory.extractJwt("BEARER abc, Basic xyz"));
+        assertEquals("", ValidateJwtGatewayFilterFactory.extractJwt("Bearer"));
+        assertNull(ValidateJwtGatewayFilterFactory.extractJwt("Basic xyz"));
+        assertNull(ValidateJwtGatewayFilterFactory.extractJwt(null));
+    }
+
+    private ValidateJwtConfig config(String scope) {
+        ValidateJwtConfig config = new ValidateJwtConfig();
+        config.setIss("mine");
+        config.setAud("our_audience");
+        config.setScope(scope);
+        config.setSigningKeyResolver(SIGNING_KEY_RESOLVER);
+        return config;
+    }
+
+    private ValidateJwtConfig rsaConfig(KeyPair keyPair) {
+        FilterSigningKeyResolver resolver = () -> new SigningKeyResolverAdapter() {
+            @Override
+            public Key resolveSigningKey(JwsHeader header, Claims claims) {
+                return keyPair.getPublic();
+            }
+        };
+        when(context.getBean(eq(RSA_SIGNING_KEY_RESOLVER), eq(FilterSigningKeyResolver.class))).thenReturn(resolver);
+        ValidateJwtConfig config = config("myscope");
+        config.setSigningKeyResolver(RSA_SIGNING_KEY_RESOLVER);
+        return config;
+    }
+
+    private KeyPair rsaKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String rsaToken(KeyPair keyPair) {
+        return Jwts.builder()
+                .setIssuer("mine")
+                .setAudience("our_audience")
+                .setExpiration(new Date(System.currentTimeMillis() + 60_000))
+                .claim("scope", "myscope")
+                .signWith(SignatureAlgorithm.RS256, keyPair.getPrivate())
+                .compact();
+    }
+
+    private String token(Date expiration, String scope) {
+        return token(expiration, scope, "secret");
+    }
+
+    private String token(Date expiration, String scope, String secret) {
+        return Jwts.builder()
+                .setIssuer("mine")
+                .setAudience("our_audience")
+                .setExpiration(expiration)
+                .claim("scope", scope)
+                .signWith(SignatureAlgorithm.HS256, secret.getBytes())
+                .compact();
+    }
+
+    private ServerWebExchange exchange(String jwt) {
+        MockServerHttpRequest request = MockServerHttpRequest
+                .method(HttpMethod.GET, URI.create("http://localhost/jwtvalidation"))
+                .header("Authorization", "Bearer " + jwt)
+                .build();
+        return MockServerWebExchange.from(request);
+    }
+
+    private ServerWebExchange filter(GatewayFilter filter, String jwt) {
+        return filter(filter, exchange(jwt));
+    }
+
+    private ServerWebExchange filter(GatewayFilter filter, ServerWebExchange exchange) {
+        GatewayFilterChain filterChain = mock(GatewayFilterChain.class);
+        when(filterChain.filter(any(ServerWebExchange.class))).thenReturn(Mono.empty());
+
+        filter.filter(exchange, filterChain).block();
+        return exchange;
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.sun.net.httpserver.HttpServer;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.SignatureException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class JwksFilterSigningKeyResolverTest {
+
+    private KeyPair rsaKeyPair;
+    private KeyPair ecKeyPair;
+    private HttpServer server;
+    private JwksFilterSigningKeyResolver resolver;
+
+    @Before
+    public void setup() throws Exception {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(2048);
+        rsaKeyPair = rsa.generateKeyPair();
+        KeyPairGenerator ec = KeyPairGenerator.getInstance("EC");
+        ec.initialize(256);
+        ecKeyPair = ec.generateKeyPair();
+    }
+
+    @After
+    public void tearDown() {
+        if (resolver != null) {
+            resolver.destroy();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testKeysFromFile() throws Exception {
+        File file = File.createTempFile("jwks", ".json");
+        file.deleteOnExit();
+        Files.write(file.toPath(), jwks(rsaJwk("rsa1"), ecJwk("ec1")).getBytes(StandardCharsets.UTF_8));
+
+        resolver = new JwksFilterSigningKeyResolver(file.toURI().toURL());
+        resolver.refresh().join();
+
+        assertEquals(2, resolver.getKeys().size());
+        assertEquals("mine", parse(token(SignatureAlgorithm.RS256, rsaKeyPair, "rsa1")).getBody().getIssuer());
+        assertEquals("mine", parse(token(SignatureAlgorithm.ES256, ecKeyPair, "ec1")).getBody().getIssuer());
+    }
+
+    @Test
+    public void testKeysAreFetchedBeforeReady() throws Exception {
+        resolver = new JwksFilterSigningKeyResolver(serve(new StringBuilder(jwks(rsaJwk("rsa1")))));
+        resolver.afterPropertiesSet();
+
+        assertEquals(1, resolver.getKeys().size());
+        assertEquals("mine", parse(token(SignatureAlgorithm.RS256, rsaKeyPair, "rsa1")).getBody().getIssuer());
+    }
+
+    @Test
+    public void testUnknownKidFetchesAreRateLimited() throws Exception {
+        StringBuilder document = new StringBuilder(jwks(rsaJwk("rsa1")));
+        resolver = new JwksFilterSigningKeyResolver(serve(document), Duration.ofHours(1), Duration.ofHours(1), Duration.ofSeconds(2));
+        resolver.refresh().join();
+        assertEquals(1, resolver.getFetchCount());
+
+        for (int i = 0; i < 10; i++) {
+            try {
+                parse(token(SignatureAlgorithm.ES256, ecKeyPair, "ec1"));
+                fail("unknown kid");
+            } catch (SignatureException e) {
+                // expected
+            }
+        }
+        assertEquals(1, resolver.getFetchCount());
+    }
+
+    @Test
+    public void testUnknownKidFetchesRotatedKeys() throws Exception {
+        StringBuilder document = new StringBuilder(jwks(rsaJwk("rsa1")));
+        resolver = new JwksFilterSigningKeyResolver(serve(document), Duration.ofHours(1), Duration.ZERO, Duration.ofSeconds(2));
+        resolver.refresh().join();
+
+        // key rotation on the issuer
+        document.setLength(0);
+        document.append(jwks(rsaJwk("rsa1"), ecJwk("ec1")));
+
+        String token = token(SignatureAlgorithm.ES256, ecKeyPair, "ec1");
+        try {
+            parse(token);
+            fail("unknown kid is rejected without waiting for the fetch");
+        } catch (SignatureException e) {
+            // expected
+        }
+
+        // the fetch triggered by the unknown kid completes in the background
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!resolver.getKeys().containsKey("ec1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Jws<Claims> claims = parse(token);
+        assertNotNull(claims);
+        assertEquals(2, resolver.getFetchCount());
+    }
+
+    private Jws<Claims> parse(String token) {
+        return Jwts.parser().setSigningKeyResolver(resolver.resolve()).parseClaimsJws(token);
+    }
+
+    private String token(SignatureAlgorithm algorithm, KeyPair keyPair, String kid) {
+        return Jwts.builder()
+                .setHeaderParam("kid", kid)
+                .setIssuer("mine")
+                .signWith(algorithm, keyPair.getPrivate())
+                .compact();
+    }
+
+    private URL serve(StringBuilder document) throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/jwks.json", exchange -> {
+            byte[] bytes = document.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        });
+        server.start();
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/jwks.json");
+    }
+
+    private String jwks(String... jwks) {
+        return "{\"keys\":[" + String.join(",", jwks) + "]}";
+    }
+
+    private String rsaJwk(String kid) {
+        RSAPublicKey key = (RSAPublicKey) rsaKeyPair.getPublic();
+        return String.format("{\"kty\":\"RSA\",\"kid\":\"%s\",\"use\":\"sig\",\"n\":\"%s\",\"e\":\"%s\"}",
+                kid, encode(key.getModulus()), encode(key.getPublicExponent()));
+    }
+
+    private String ecJwk(String kid) {
+        ECPublicKey key = (ECPublicKey) ecKeyPair.getPublic();
+        return String.format("{\"kty\":\"EC\",\"kid\":\"%s\",\"crv\":\"P-256\",\"x\":\"%s\",\"y\":\"%s\"}",
+                kid, encode(key.getW().getAffineX()), encode(key.getW().getAffineY()));
+    }
+
+    private String encode(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
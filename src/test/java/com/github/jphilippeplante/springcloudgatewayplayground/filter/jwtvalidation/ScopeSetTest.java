@@ -0,0 +1,83 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class ScopeSetTest {
+
+    private ScopeDictionary dictionary;
+
+    @Before
+    public void setup() {
+        dictionary = new ScopeDictionary();
+    }
+
+    @Test
+    public void testMatchesAny() {
+        ScopeSet scopes = ScopeSet.compile(dictionary, Arrays.asList("read", "write"));
+
+        assertTrue(scopes.matchesAny("write"));
+        assertTrue(scopes.matchesAny(" other,read "));
+        assertFalse(scopes.matchesAny("other,readonly"));
+        assertFalse(scopes.matchesAny(""));
+        assertFalse(scopes.matchesAny(null));
+    }
+
+    @Test
+    public void testMatchesAllRequiresEveryScopeOfTheTokenInTheRoute() {
+        ScopeSet scopes = ScopeSet.compile(dictionary, Arrays.asList("read", "write"));
+
+        assertTrue(scopes.matchesAll("write,read"));
+        assertTrue(scopes.matchesAll("read"));
+        assertTrue(scopes.matchesAll("read,read"));
+        assertFalse(scopes.matchesAll("write,other,read"));
+        assertFalse(scopes.matchesAll("readonly"));
+        assertTrue(scopes.matchesAll(""));
+        assertTrue(scopes.matchesAll(null));
+    }
+
+    @Test
+    public void testEmptyScopes() {
+        ScopeSet scopes = ScopeSet.compile(dictionary, Collections.emptyList());
+
+        assertFalse(scopes.matchesAny("read"));
+        assertFalse(scopes.matchesAll("read"));
+        assertTrue(scopes.matchesAll(null));
+    }
+
+    @Test
+    public void testManyScopes() {
+        List<String> required = IntStream.range(0, 150).mapToObj(i -> "scope" + i).collect(Collectors.toList());
+        ScopeSet scopes = ScopeSet.compile(dictionary, required);
+        String all = String.join(",", required);
+
+        assertTrue(scopes.matchesAll(all));
+        assertTrue(scopes.matchesAll("scope149,scope0"));
+        assertFalse(scopes.matchesAll(all.replace("scope149", "other")));
+        assertTrue(scopes.matchesAny("other,scope130"));
+        assertEquals(150, dictionary.size());
+    }
+
+    @Test
+    public void testTokenScopesAreNotInterned() {
+        ScopeSet.compile(dictionary, Collections.singletonList("read"));
+        ScopeSet.compile(dictionary, Collections.singletonList("read")).matchesAny("unknown,other");
+
+        assertEquals(1, dictionary.size());
+        assertEquals(-1, dictionary.indexOf("unknown", 0, 7));
+        assertEquals(0, dictionary.indexOf("x,read,y", 2, 6));
+    }
+}
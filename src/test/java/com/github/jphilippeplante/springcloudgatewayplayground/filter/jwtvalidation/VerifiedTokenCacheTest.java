@@ -0,0 +1,71 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.filter.jwtvalidation;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.test.VirtualGatewayClock;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.Header;
+import io.jsonwebtoken.Jwt;
+import io.jsonwebtoken.impl.DefaultClaims;
+import io.jsonwebtoken.impl.DefaultHeader;
+import io.jsonwebtoken.impl.DefaultJwt;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class VerifiedTokenCacheTest {
+
+    private final VirtualGatewayClock clock = new VirtualGatewayClock(1_000_000);
+
+    @Test
+    public void testFullCacheEvictsATenth() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(100, clock);
+        for (int i = 0; i < 100; i++) {
+            cache.put("token" + i, claims(Duration.ofMinutes(5)));
+        }
+        assertEquals(100, cache.size());
+
+        cache.put("token100", claims(Duration.ofMinutes(5)));
+        assertEquals(91, cache.size());
+        assertEquals(10, cache.getEvictionCount());
+        assertNotNull(cache.get("token100"));
+
+        // the next inserts don't evict until the cache is full again
+        for (int i = 101; i < 110; i++) {
+            cache.put("token" + i, claims(Duration.ofMinutes(5)));
+        }
+        assertEquals(100, cache.size());
+        assertEquals(10, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testExpiredEntriesAreEvictedFirst() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10, clock);
+        for (int i = 0; i < 10; i++) {
+            cache.put("token" + i, claims(Duration.ofSeconds(i < 5 ? 1 : 60)));
+        }
+        clock.advance(Duration.ofSeconds(2));
+
+        cache.put("token10", claims(Duration.ofMinutes(5)));
+        assertEquals(6, cache.size());
+        assertNull(cache.get("token0"));
+        assertNotNull(cache.get("token9"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeMaximumSize() {
+        new VerifiedTokenCache(-1, clock);
+    }
+
+    private Jwt<Header, Claims> claims(Duration timeToLive) {
+        Claims claims = new DefaultClaims();
+        claims.setExpiration(new Date(clock.currentTimeMillis() + timeToLive.toMillis()));
+        return new DefaultJwt<>(new DefaultHeader(), claims);
+    }
+}
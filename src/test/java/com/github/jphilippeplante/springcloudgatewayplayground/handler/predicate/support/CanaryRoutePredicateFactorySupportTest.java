@@ -0,0 +1,60 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.support;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryConfig;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.VirtualGatewayClock;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static com.github.jphilippeplante.springcloudgatewayplayground.handler.predicate.CanaryRoutePredicateFactory.BY_TIME;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class CanaryRoutePredicateFactorySupportTest {
+
+    private VirtualGatewayClock clock;
+    private CanaryRoutePredicateFactorySupport support;
+
+    @Before
+    public void setup() {
+        clock = new VirtualGatewayClock(1_000_000L);
+        support = new CanaryRoutePredicateFactorySupport(clock);
+    }
+
+    @Test
+    public void testRatioIncreasesWithElapsedTime() {
+        CanaryBetaConfiguration configuration = support.getConfiguration(config());
+
+        clock.advance(Duration.ofMinutes(3));
+        support.increaseRatioFor(configuration);
+        assertEquals(0.4, configuration.getRatio(), 0.0001);
+
+        clock.advance(Duration.ofMinutes(1));
+        support.increaseRatioFor(configuration);
+        assertEquals(0.5, configuration.getRatio(), 0.0001);
+    }
+
+    @Test
+    public void testRatioIncreasesUpToOne() {
+        CanaryBetaConfiguration configuration = support.getConfiguration(config());
+
+        clock.advance(Duration.ofHours(1));
+        support.increaseRatioFor(configuration);
+        assertEquals(1, configuration.getRatio(), 0.0001);
+    }
+
+    private CanaryConfig config() {
+        CanaryConfig config = new CanaryConfig();
+        config.setBeta("beta");
+        config.setCookie("beta-cookie");
+        config.setExpiration("1h");
+        config.setRatio(0.1);
+        config.setBy(BY_TIME);
+        config.setIncrement(0.1);
+        config.setEvery("1m");
+        return config;
+    }
+}
@@ -0,0 +1,244 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.load;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.PlaygroundConfiguration;
+import com.github.jphilippeplante.springcloudgatewayplayground.support.Durations;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.EmbeddedAmqpBroker;
+import com.github.jphilippeplante.springcloudgatewayplayground.test.PermitAllSecurityConfiguration;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.reactive.context.ReactiveWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load of the amqp routes of the {@code embedded-amqp} profile: starts the embedded broker
+ * and the gateway, posts bodies of {@code load.body-size} bytes to {@code load.route} with
+ * {@code load.concurrency} requests in flight for {@code load.duration} after a
+ * {@code load.warmup}, and prints the messages per second, the gateway latency and the
+ * confirm latency of the broker. The confirms are measured apart from the requests, with a
+ * template of its own. Run it with
+ * {@code ./gradlew amqpLoad -Pload.route=/amqp/confirm}.
+ *
+ * @author Jean-Philippe Plante
+ */
+public class AmqpLoadHarness {
+
+    private static final String QUEUE = "gateway.embedded";
+    private static final String PROBE_ROUTING_KEY = "gateway.embedded.probe";
+
+    public static void main(String[] args) throws Exception {
+        Duration duration = Durations.parse(System.getProperty("load.duration", "30s"));
+        Duration warmup = Durations.parse(System.getProperty("load.warmup", "10s"));
+        int concurrency = Integer.getInteger("load.concurrency", 64);
+        String route = System.getProperty("load.route", "/amqp/raw");
+        byte[] body = new byte[Integer.getInteger("load.body-size", 512)];
+        Arrays.fill(body, (byte) 'a');
+
+        EmbeddedAmqpBroker broker = new EmbeddedAmqpBroker();
+        broker.start();
+        ConfigurableApplicationContext context = null;
+        try {
+            context = new SpringApplicationBuilder(LoadConfig.class)
+                    .profiles(EmbeddedAmqpBroker.PROFILE)
+                    .run(withDefaults(args));
+            int port = ((ReactiveWebServerApplicationContext) context).getWebServer().getPort();
+            WebClient client = WebClient.create("http://localhost:" + port);
+            ConnectionFactory connectionFactory = context.getBean(ConnectionFactory.class);
+
+            AtomicLong consumed = new AtomicLong();
+            SimpleMessageListenerContainer consumer = new SimpleMessageListenerContainer(connectionFactory);
+            consumer.setQueueNames(QUEUE);
+            consumer.setPrefetchCount(250);
+            consumer.setConcurrentConsumers(2);
+            consumer.setMessageListener(message -> consumed.incrementAndGet());
+            consumer.start();
+
+            System.out.println("warming up " + route + " for " + warmup);
+            AtomicLong warmupErrors = new AtomicLong();
+            long warmupRequests = run(client, route, body, concurrency, warmup, new Latencies(), warmupErrors);
+            // the messages of the warmup still in flight are not counted in the measured window
+            awaitConsumed(consumed, warmupRequests - warmupErrors.get());
+            consumed.set(0);
+
+            Latencies gatewayLatencies = new Latencies();
+            Latencies confirmLatencies = new Latencies();
+            AtomicLong errors = new AtomicLong();
+            ConfirmProbe probe = new ConfirmProbe(connectionFactory, confirmLatencies);
+            long start = System.nanoTime();
+            probe.start();
+            long requests = run(client, route, body, concurrency, duration, gatewayLatencies, errors);
+            probe.stop();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            consumer.stop();
+            System.out.printf("route %s, %d bytes, concurrency %d, %.1fs%n", route, body.length, concurrency, seconds);
+            System.out.printf("requests: %d (%.0f/s), errors: %d, consumed: %d messages (%.0f/s)%n",
+                    requests, requests / seconds, errors.get(), consumed.get(), consumed.get() / seconds);
+            System.out.println("gateway latency: " + gatewayLatencies.summary());
+            System.out.println("broker confirm latency: " + confirmLatencies.summary());
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+            broker.stop();
+        }
+    }
+
+    /**
+     * Command line arguments to override the debug logs of the test configuration.
+     */
+    private static String[] withDefaults(String[] args) {
+        String[] defaults = {"--server.port=0", "--logging.level.root=WARN",
+                "--logging.level.org.springframework.cloud.gateway=WARN",
+                "--logging.level.org.springframework.http.server.reactive=WARN",
+                "--logging.level.org.springframework.web.reactive=WARN",
+                "--logging.level.reactor.ipc.netty=WARN"};
+        String[] all = Arrays.copyOf(defaults, defaults.length + args.length);
+        System.arraycopy(args, 0, all, defaults.length, args.length);
+        return all;
+    }
+
+    /**
+     * Wait until the accepted messages are consumed, or no message was consumed for a second
+     * (the messages of the failed requests the gateway spooled or dropped).
+     */
+    private static void awaitConsumed(AtomicLong consumed, long accepted) throws InterruptedException {
+        long last = -1;
+        while (consumed.get() < accepted && consumed.get() != last) {
+            last = consumed.get();
+            Thread.sleep(1000);
+        }
+    }
+
+    private static long run(WebClient client, String route, byte[] body, int concurrency, Duration duration,
+                            Latencies latencies, AtomicLong errors) {
+        long end = System.nanoTime() + duration.toNanos();
+        return Flux.<Integer>generate(sink -> {
+                    if (System.nanoTime() < end) {
+                        sink.next(0);
+                    } else {
+                        sink.complete();
+                    }
+                })
+                .flatMap(ignored -> {
+                    long start = System.nanoTime();
+                    return client.post().uri(route)
+                            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                            .syncBody(body)
+                            .exchange()
+                            .flatMap(response -> response.bodyToMono(Void.class).then(Mono.just(response.statusCode())))
+                            .doOnNext(status -> {
+                                latencies.record(System.nanoTime() - start);
+                                if (status != HttpStatus.ACCEPTED) {
+                                    errors.incrementAndGet();
+                                }
+                            })
+                            .onErrorResume(e -> {
+                                errors.incrementAndGet();
+                                return Mono.empty();
+                            });
+                }, concurrency)
+                .count()
+                .block();
+    }
+
+    /**
+     * Publishes a message every millisecond and records the time until its confirm. The routing
+     * key has no queue: the broker confirms the message and drops it.
+     */
+    private static class ConfirmProbe {
+
+        private final RabbitTemplate template;
+        private final Latencies latencies;
+        private volatile boolean running;
+        private Thread thread;
+
+        ConfirmProbe(ConnectionFactory connectionFactory, Latencies latencies) {
+            this.template = new RabbitTemplate(connectionFactory);
+            this.latencies = latencies;
+            this.template.setConfirmCallback((correlation, ack, cause) -> {
+                if (ack && correlation != null) {
+                    latencies.record(System.nanoTime() - Long.parseLong(correlation.getId()));
+                }
+            });
+        }
+
+        void start() {
+            running = true;
+            thread = new Thread(() -> {
+                while (running) {
+                    template.convertAndSend("", PROBE_ROUTING_KEY, "probe", new CorrelationData(String.valueOf(System.nanoTime())));
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }, "amqp-confirm-probe");
+            thread.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, sorted once for the percentiles.
+     */
+    static class Latencies {
+
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        synchronized void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        synchronized long percentile(double percentile) {
+            if (size == 0) {
+                return 0;
+            }
+            Arrays.sort(values, 0, size);
+            int index = (int) Math.ceil(percentile / 100 * size) - 1;
+            return values[Math.max(0, Math.min(index, size - 1))];
+        }
+
+        String summary() {
+            return String.format("p50 %.3fms, p99 %.3fms, p999 %.3fms",
+                    percentile(50) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6);
+        }
+    }
+
+    @EnableAutoConfiguration
+    @SpringBootConfiguration
+    @Import({PermitAllSecurityConfiguration.class, PlaygroundConfiguration.class})
+    public static class LoadConfig {
+
+        @Bean
+        public Queue embeddedQueue() {
+            return new Queue(QUEUE, false);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.test.VirtualGatewayClock;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class RequestIdGeneratorTest {
+
+    @Test
+    public void testIdLayout() {
+        RequestIdGenerator generator = new RequestIdGenerator(new VirtualGatewayClock(0x0123456789aL), 0xcafe);
+        String id = generator.nextId();
+        assertEquals(RequestIdGenerator.LENGTH, id.length());
+        assertEquals("00123456789a", id.substring(0, 12));
+        assertEquals("0000cafe", id.substring(12, 20));
+        assertTrue(id.matches("[0-9a-f]{32}"));
+    }
+
+    @Test
+    public void testIdsOfAThreadAreIncreasing() {
+        VirtualGatewayClock clock = new VirtualGatewayClock(1_000);
+        RequestIdGenerator generator = new RequestIdGenerator(clock, 1);
+        String previous = generator.nextId();
+        for (int i = 0; i < 10_000; i++) {
+            if (i % 1000 == 0) {
+                clock.advance(Duration.ofMillis(1));
+            }
+            String id = generator.nextId();
+            assertTrue(previous + " >= " + id, id.compareTo(previous) > 0);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void testTimeNeverGoesBackward() {
+        VirtualGatewayClock clock = new VirtualGatewayClock(10_000);
+        RequestIdGenerator generator = new RequestIdGenerator(clock, 1);
+        String before = generator.nextId();
+        clock.advance(Duration.ofMillis(-5_000));
+        assertTrue(generator.nextId().compareTo(before) > 0);
+    }
+
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws InterruptedException {
+        RequestIdGenerator generator = new RequestIdGenerator(new VirtualGatewayClock(1_000), 1);
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int thread = 0; thread < 8; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    ids.add(generator.nextId());
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(80_000, ids.size());
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.support;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jean-Philippe Plante
+ */
+public class SizesTest {
+
+    @Test
+    public void testParse() {
+        assertEquals(512, Sizes.parse("512"));
+        assertEquals(512, Sizes.parse("512b"));
+        assertEquals(256 * 1024, Sizes.parse(" 256KB "));
+        assertEquals(2 * 1024 * 1024, Sizes.parse("2mb"));
+        assertEquals(1024L * 1024 * 1024, Sizes.parse("1gb"));
+        assertEquals(0, Sizes.parse("0kb"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNegative() {
+        Sizes.parse("-1kb");
+    }
+}
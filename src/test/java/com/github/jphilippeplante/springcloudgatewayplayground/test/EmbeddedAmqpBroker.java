@@ -0,0 +1,82 @@
+package com.github.jphilippeplante.springcloudgatewayplayground.test;
+
+import org.apache.qpid.server.SystemLauncher;
+import org.apache.qpid.server.model.ConfiguredObject;
+import org.apache.qpid.server.model.SystemConfig;
+import org.junit.rules.ExternalResource;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory AMQP 0-9-1 broker (Qpid Broker-J) on a free port of localhost, with the
+ * {@code guest} user. The port is in the {@code embedded-amqp.port} system property read by
+ * the {@code embedded-amqp} profile. As a {@code @ClassRule}, it is started before the
+ * spring context of the test. Its work directory is deleted when it stops.
+ *
+ * @author Jean-Philippe Plante
+ */
+public class EmbeddedAmqpBroker extends ExternalResource {
+
+    public static final String PORT_PROPERTY = "embedded-amqp.port";
+    public static final String PROFILE = "embedded-amqp";
+
+    private final SystemLauncher launcher = new SystemLauncher();
+    private int port;
+    private Path workDirectory;
+
+    @Override
+    protected void before() throws Exception {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        stop();
+    }
+
+    public void start() throws Exception {
+        port = findFreePort();
+        workDirectory = Files.createTempDirectory("embedded-amqp");
+
+        Map<String, String> context = new HashMap<>();
+        context.put("qpid.amqp_port", String.valueOf(port));
+        context.put(SystemConfig.QPID_WORK_DIR, workDirectory.toString());
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put(ConfiguredObject.TYPE, "Memory");
+        attributes.put(SystemConfig.INITIAL_CONFIGURATION_LOCATION,
+                EmbeddedAmqpBroker.class.getResource("/embedded-amqp-broker.json").toExternalForm());
+        attributes.put(SystemConfig.STARTUP_LOGGED_TO_SYSTEM_OUT, false);
+        attributes.put(ConfiguredObject.CONTEXT, context);
+        launcher.startup(attributes);
+
+        System.setProperty(PORT_PROPERTY, String.valueOf(port));
+    }
+
+    public void stop() {
+        launcher.shutdown();
+        System.clearProperty(PORT_PROPERTY);
+        try {
+            FileSystemUtils.deleteRecursively(workDirectory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
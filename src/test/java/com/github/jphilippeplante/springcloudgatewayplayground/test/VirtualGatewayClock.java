@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.jphilippeplante.springcloudgatewayplayground.test;
+
+import com.github.jphilippeplante.springcloudgatewayplayground.support.GatewayClock;
+
+import java.time.Duration;
+
+/**
+ * Clock moved forward by the tests only.
+ *
+ * @author Jean-Philippe Plante
+ */
+public class VirtualGatewayClock implements GatewayClock {
+
+    private volatile long now;
+
+    public VirtualGatewayClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public void advance(Duration duration) {
+        now += duration.toMillis();
+    }
+}